@@ -19,26 +19,56 @@ package it.polito.elite.dog.communication.rest.device;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.util.HashMap;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.measure.Measure;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Path;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.device.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.osgi.service.log.LogService;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.AnnotationIntrospector;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -49,6 +79,12 @@ import com.fasterxml.jackson.dataformat.xml.JacksonXmlModule;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi;
+import it.polito.elite.dog.communication.rest.device.cache.IdempotencyStore;
+import it.polito.elite.dog.communication.rest.device.cache.NegativeCache;
+import it.polito.elite.dog.communication.rest.device.cache.ReadThroughCache;
+import it.polito.elite.dog.communication.rest.device.cache.SingleFlight;
+import it.polito.elite.dog.communication.rest.device.catalogue.CatalogueEntry;
+import it.polito.elite.dog.communication.rest.device.catalogue.DeviceCatalogue;
 import it.polito.elite.dog.communication.rest.device.command.ClimateSchedulePayload;
 import it.polito.elite.dog.communication.rest.device.command.CommandPayload;
 import it.polito.elite.dog.communication.rest.device.command.DailyClimateSchedulePayload;
@@ -58,8 +94,23 @@ import it.polito.elite.dog.communication.rest.device.command.HSBColorPayload;
 import it.polito.elite.dog.communication.rest.device.command.MeasurePayload;
 import it.polito.elite.dog.communication.rest.device.command.RGBColorPayload;
 import it.polito.elite.dog.communication.rest.device.command.StringPayload;
-import it.polito.elite.dog.communication.rest.device.status.AllDeviceStatesResponsePayload;
-import it.polito.elite.dog.communication.rest.device.status.DeviceStateResponsePayload;
+import it.polito.elite.dog.communication.rest.device.dispatch.Bulkhead;
+import it.polito.elite.dog.communication.rest.device.dispatch.CommandDispatcher;
+import it.polito.elite.dog.communication.rest.device.dispatch.RedundantCommandFilter;
+import it.polito.elite.dog.communication.rest.device.history.Aggregate;
+import it.polito.elite.dog.communication.rest.device.history.StateHistory;
+import it.polito.elite.dog.communication.rest.device.history.StateHistoryStore;
+import it.polito.elite.dog.communication.rest.device.index.SearchIndex;
+import it.polito.elite.dog.communication.rest.device.index.StateIndex;
+import it.polito.elite.dog.communication.rest.device.metrics.CommandStatistics;
+import it.polito.elite.dog.communication.rest.device.metrics.EndpointMetrics;
+import it.polito.elite.dog.communication.rest.device.metrics.FlightRecorderEventType;
+import it.polito.elite.dog.communication.rest.device.metrics.ServerTiming;
+import it.polito.elite.dog.communication.rest.device.metrics.SlowRequestLog;
+import it.polito.elite.dog.communication.rest.device.persistence.DescriptorWriteBehind;
+import it.polito.elite.dog.communication.rest.device.status.DeviceStatusWriter;
+import it.polito.elite.dog.communication.rest.device.util.ComponentConfiguration;
+import it.polito.elite.dog.communication.rest.device.util.StripedLocks;
 import it.polito.elite.dog.core.devicefactory.api.DeviceFactory;
 import it.polito.elite.dog.core.housemodel.api.HouseModel;
 import it.polito.elite.dog.core.library.jaxb.Controllables;
@@ -71,8 +122,8 @@ import it.polito.elite.dog.core.library.model.DeviceCostants;
 import it.polito.elite.dog.core.library.model.DeviceDescriptor;
 import it.polito.elite.dog.core.library.model.DeviceStatus;
 import it.polito.elite.dog.core.library.model.devicecategory.Controllable;
+import it.polito.elite.dog.core.library.model.notification.StateChangeNotification;
 import it.polito.elite.dog.core.library.model.state.State;
-import it.polito.elite.dog.core.library.model.statevalue.StateValue;
 import it.polito.elite.dog.core.library.util.Executor;
 import it.polito.elite.dog.core.library.util.LogHelper;
 
@@ -84,8 +135,38 @@ import it.polito.elite.dog.core.library.util.LogHelper;
  * 
  */
 @Path("/api/v1/devices/")
-public class DeviceRESTEndpoint implements DeviceRESTApi
+public class DeviceRESTEndpoint implements DeviceRESTApi, EventHandler
 {
+    // the Flight Recorder event of a command sent to a device
+    private static final FlightRecorderEventType COMMAND_EVENT = new FlightRecorderEventType(
+            "it.polito.elite.dog.DeviceCommand", "Device Command",
+            "A command sent to a device through the REST API",
+            new String[] { "deviceId", "command", "payloadType", "outcome" },
+            new Class<?>[] { String.class, String.class, String.class,
+                    String.class });
+
+    // the Flight Recorder event of a read of the device states
+    private static final FlightRecorderEventType STATUS_EVENT = new FlightRecorderEventType(
+            "it.polito.elite.dog.DeviceStatusRead", "Device Status Read",
+            "A read of the current states of a device",
+            new String[] { "deviceId", "states" },
+            new Class<?>[] { String.class, int.class });
+
+    // the Flight Recorder event of a build of the device catalogue
+    private static final FlightRecorderEventType CATALOGUE_EVENT = new FlightRecorderEventType(
+            "it.polito.elite.dog.CatalogueSerialization",
+            "Catalogue Serialization",
+            "A serialization of all the configured devices, in JSON and XML",
+            new String[] { "devices", "jsonLength", "xmlLength" },
+            new Class<?>[] { int.class, int.class, int.class });
+
+    // the Flight Recorder event of a cache lookup
+    private static final FlightRecorderEventType CACHE_EVENT = new FlightRecorderEventType(
+            "it.polito.elite.dog.CacheLookup", "Cache Lookup",
+            "A lookup of the status cache or of the cache of missing devices",
+            new String[] { "cache", "key", "hit" },
+            new Class<?>[] { String.class, String.class, boolean.class });
+
     // the service logger
     private LogHelper logger;
 
@@ -108,6 +189,89 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
     // the XML Mapper
     private XmlMapper xmlMapper;
 
+    // the streaming writer for device states
+    private DeviceStatusWriter statusWriter;
+
+    // the short-term history of numeric device states
+    private StateHistoryStore history;
+
+    // the maximum number of buckets of a history aggregation
+    private int maxHistoryBuckets;
+
+    // the index of devices by current state value
+    private StateIndex stateIndex;
+
+    // the read-through cache of device states
+    private ReadThroughCache<String, DeviceStatus> statusCache;
+
+    // the default time-to-live of cached device states
+    private long defaultStatusTtl;
+
+    // the time-to-live of cached device states, per technology or device
+    // category
+    private Map<String, Long> statusTtls;
+
+    // the identical GET requests in flight, null if collapsing is disabled
+    private SingleFlight<String, String> requestFlights;
+
+    // the cache of device ids known to be missing
+    private NegativeCache negativeCache;
+
+    // the listener of device registrations
+    private ServiceListener deviceListener;
+
+    // the current snapshot of the configured devices
+    private AtomicReference<DeviceCatalogue> catalogue;
+
+    // true if a catalogue refresh is waiting to be run
+    private AtomicBoolean catalogueRefreshPending;
+
+    // the text index over the configured devices
+    private SearchIndex searchIndex;
+
+    // the executor for background tasks, e.g., catalogue refresh
+    private volatile ScheduledExecutorService backgroundExecutor;
+
+    // the duration of the last warm-up, in ns (0 if not completed)
+    private volatile long warmUpTime;
+
+    // the locks serializing the metadata updates of each device
+    private StripedLocks metadataLocks;
+
+    // the entity tags of the device metadata updated since the catalogue
+    // was last rebuilt, by device id
+    private ConcurrentHashMap<String, String> metadataTags;
+
+    // the deferred persistence of device metadata, null if disabled
+    private volatile DescriptorWriteBehind writeBehind;
+
+    // the executor sending group commands, bounding their concurrency
+    private volatile ExecutorService commandExecutor;
+
+    // the dispatcher of commands to drivers, with per-technology timeouts
+    // and circuit breakers
+    private volatile CommandDispatcher commandDispatcher;
+
+    // the bulkheads isolating catalogue reads, status reads and commands,
+    // the reads yielding to commands
+    private Bulkhead catalogueLane;
+    private Bulkhead statusLane;
+    private Bulkhead commandLane;
+
+    // the request and operation metrics
+    private EndpointMetrics metrics;
+
+    // the outcome and latency of the commands, per device and technology
+    private CommandStatistics commandStatistics;
+
+    // the outcome of the commands carrying an idempotency key, null if
+    // disabled
+    private IdempotencyStore<Integer> idempotencyStore;
+
+    // the detector of the commands leaving the devices in their current
+    // state, null if such commands are sent anyway
+    private RedundantCommandFilter redundantCommands;
+
     /**
      * Constructor
      */
@@ -119,6 +283,20 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
         // init the device factory atomic reference
         this.deviceFactory = new AtomicReference<DeviceFactory>();
 
+        // init the catalogue snapshot reference, empty until first built
+        this.catalogue = new AtomicReference<DeviceCatalogue>();
+        this.catalogueRefreshPending = new AtomicBoolean();
+
+        // init the text index, filled with the catalogue
+        this.searchIndex = new SearchIndex();
+
+        // init the per-device locks for metadata updates
+        this.metadataLocks = new StripedLocks(64);
+        this.metadataTags = new ConcurrentHashMap<String, String>();
+
+        // init the metrics
+        this.metrics = new EndpointMetrics();
+
         // init the set of allowed payloads
         this.payloads = new Vector<Class<? extends CommandPayload<?>>>();
         this.payloads.add(ClimateSchedulePayload.class);
@@ -169,6 +347,8 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
         // mapper.registerModule(new JaxbAnnotationModule());
         this.xmlMapper.setAnnotationIntrospector(jaxb);
 
+        // initialize the instance-wide device status writer
+        this.statusWriter = new DeviceStatusWriter();
     }
 
     /**
@@ -176,8 +356,10 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      * framework to get access to system data, e.g., installed bundles, etc.
      * 
      * @param context
+     * @param properties
+     *            the component properties
      */
-    public void activate(BundleContext context)
+    public void activate(BundleContext context, Map<String, ?> properties)
     {
         // store the bundle context
         this.context = context;
@@ -185,15 +367,326 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
         // init the logger with a null logger
         this.logger = new LogHelper(this.context);
 
+        // read the component configuration
+        ComponentConfiguration configuration = new ComponentConfiguration(
+                properties);
+
+        // init the state history
+        this.history = new StateHistoryStore(
+                configuration.getInt("history.capacity", 120),
+                configuration.getInt("history.max.series", 10000),
+                configuration.getLong("history.min.interval", 60000),
+                configuration.getString("history.rollups",
+                        "60000:60,900000:96,3600000:168"));
+        this.maxHistoryBuckets = Math.max(1,
+                configuration.getInt("history.max.buckets", 5000));
+
+        // init the state index
+        this.stateIndex = new StateIndex();
+
+        // init the status cache
+        this.statusCache = new ReadThroughCache<String, DeviceStatus>();
+        this.defaultStatusTtl = configuration.getLong("status.cache.ttl", 0);
+        this.statusTtls = configuration
+                .getLongsByPrefix("status.cache.ttl.");
+
+        // init the collapsing of identical concurrent requests
+        this.requestFlights = configuration.getBoolean("request.collapsing",
+                true) ? new SingleFlight<String, String>() : null;
+
+        // init the negative cache, and keep it aware of new devices
+        this.negativeCache = new NegativeCache(
+                configuration.getInt("negative.cache.size", 1024));
+        this.deviceListener = new ServiceListener()
+        {
+            @Override
+            public void serviceChanged(ServiceEvent event)
+            {
+                Object deviceId = event.getServiceReference()
+                        .getProperty(DeviceCostants.DEVICEURI);
+
+                if ((deviceId instanceof String)
+                        && (event.getType() != ServiceEvent.UNREGISTERING))
+                    DeviceRESTEndpoint.this.negativeCache
+                            .add((String) deviceId);
+
+                // index the states of a new device, changes being notified
+                // from now on
+                if ((deviceId instanceof String)
+                        && (event.getType() == ServiceEvent.REGISTERED))
+                    DeviceRESTEndpoint.this.scheduleStatusRead(
+                            event.getServiceReference(), (String) deviceId);
+            }
+        };
+        try
+        {
+            this.context.addServiceListener(this.deviceListener,
+                    String.format("(%s=%s)",
+                            org.osgi.framework.Constants.OBJECTCLASS,
+                            org.osgi.service.device.Device.class.getName()));
+        }
+        catch (InvalidSyntaxException e)
+        {
+            // cannot happen with a constant filter
+            this.logger.log(LogService.LOG_ERROR,
+                    "Unable to listen to device registrations", e);
+        }
+
+        // start the background executor
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor(
+                DeviceRESTEndpoint.createThreadFactory(
+                        "device-rest-endpoint-background"));
+
+        // init the command statistics
+        this.commandStatistics = new CommandStatistics(
+                configuration.getInt("commands.stats.max.devices", 256));
+
+        // init the store of idempotent command outcomes
+        int idempotencyCapacity = configuration.getInt("idempotency.capacity",
+                1024);
+        this.idempotencyStore = (idempotencyCapacity > 0)
+                ? new IdempotencyStore<Integer>(idempotencyCapacity,
+                        configuration.getLong("idempotency.retention",
+                                86400000))
+                : null;
+
+        // suppress the redundant commands, if enabled
+        RedundantCommandFilter redundantCommands = null;
+        if (configuration.getBoolean("commands.suppression", false))
+        {
+            redundantCommands = new RedundantCommandFilter(
+                    configuration.getString("commands.suppression.mapping",
+                            "on:OnOffState=on,off:OnOffState=off"),
+                    configuration.getLong("commands.suppression.max.age",
+                            5000));
+            if (redundantCommands.isEmpty())
+                redundantCommands = null;
+        }
+        this.redundantCommands = redundantCommands;
+
+        // detect the slow requests, unless disabled by all the thresholds
+        long slowThreshold = configuration.getLong("slow.request.threshold",
+                2000);
+        Map<String, Long> slowThresholds = configuration
+                .getLongsByPrefix("slow.request.threshold.");
+        boolean detectSlowRequests = slowThreshold > 0;
+        for (Long threshold : slowThresholds.values())
+            detectSlowRequests |= threshold > 0;
+        this.metrics.setSlowRequestLog(detectSlowRequests
+                ? new SlowRequestLog(slowThreshold, slowThresholds,
+                        configuration.getInt("slow.request.capacity", 100),
+                        configuration.getLong("slow.request.log.interval",
+                                10000),
+                        this.logger)
+                : null);
+
+        // start the group command executor
+        this.commandExecutor = Executors.newFixedThreadPool(
+                Math.max(1,
+                        configuration.getInt("commands.group.concurrency", 8)),
+                DeviceRESTEndpoint
+                        .createThreadFactory("device-rest-endpoint-command"));
+
+        // isolate catalogue reads, status reads and commands from each
+        // other, giving priority to commands
+        long maxWait = configuration.getLong("bulkhead.max.wait", 1000);
+        this.commandLane = new Bulkhead(
+                configuration.getInt("bulkhead.commands.concurrency", 32),
+                configuration.getInt("bulkhead.commands.queue", 64), maxWait,
+                null);
+        this.statusLane = new Bulkhead(
+                configuration.getInt("bulkhead.status.concurrency", 8),
+                configuration.getInt("bulkhead.status.queue", 32), maxWait,
+                this.commandLane);
+        this.catalogueLane = new Bulkhead(
+                configuration.getInt("bulkhead.catalogue.concurrency", 8),
+                configuration.getInt("bulkhead.catalogue.queue", 32), maxWait,
+                this.commandLane);
+
+        // start the command dispatcher, the initial limit of each technology
+        // matching the group command fan-out
+        this.commandDispatcher = new CommandDispatcher(
+                configuration.getInt("commands.technology.concurrency", 16),
+                configuration.getInt("commands.limit.initial", 8),
+                configuration.getInt("commands.technology.queue", 64),
+                configuration.getLong("commands.timeout", 10000),
+                configuration.getLongsByPrefix("commands.timeout."),
+                configuration.getInt("commands.breaker.failures", 5),
+                configuration.getLong("commands.breaker.open.time", 30000),
+                DeviceRESTEndpoint
+                        .createThreadFactory("device-rest-endpoint-dispatch"));
+
+        // warm-up mappers and build the device catalogue in background,
+        // then keep the catalogue up-to-date with any change made to the
+        // HouseModel by other bundles
+        this.backgroundExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                DeviceRESTEndpoint.this.warmUp();
+            }
+        });
+        long catalogueRefreshInterval = configuration
+                .getLong("catalogue.refresh.interval", 30000);
+        if (catalogueRefreshInterval > 0)
+            this.backgroundExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    DeviceRESTEndpoint.this.refreshCatalogue();
+                }
+            }, catalogueRefreshInterval, catalogueRefreshInterval,
+                    TimeUnit.MILLISECONDS);
+
+        // persist metadata updates in periodic batches, if required
+        long metadataFlushInterval = configuration
+                .getLong("metadata.flush.interval", 0);
+        if (metadataFlushInterval > 0)
+        {
+            final DescriptorWriteBehind metadataWriteBehind = new DescriptorWriteBehind(
+                    this.deviceFactory, this.logger);
+            this.backgroundExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // the catalogue only reflects the persisted descriptors
+                    if (metadataWriteBehind.flush() > 0)
+                        DeviceRESTEndpoint.this.scheduleCatalogueRefresh();
+                }
+            }, metadataFlushInterval, metadataFlushInterval,
+                    TimeUnit.MILLISECONDS);
+            this.writeBehind = metadataWriteBehind;
+        }
+
+        // periodically read the states of all devices, if enabled, for the
+        // drivers not notifying state changes
+        long stateIndexRefreshInterval = configuration
+                .getLong("status.index.refresh.interval", 0);
+        if (stateIndexRefreshInterval > 0)
+            this.backgroundExecutor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    DeviceRESTEndpoint.this.refreshStateIndex();
+                }
+            }, stateIndexRefreshInterval, stateIndexRefreshInterval,
+                    TimeUnit.MILLISECONDS);
+
         // log the activation
         this.logger.log(LogService.LOG_INFO, "Activated....");
     }
 
+    /**
+     * Prime everything that would otherwise be lazily initialized by the first
+     * requests after a restart: Jackson serializers and deserializers for the
+     * JAXB classes and for all the {@link CommandPayload} types (whose
+     * introspection, especially of JAXB annotations, is expensive), the
+     * streaming status writer, the device catalogue with its serialized
+     * representations and the index of device states, then kept up-to-date
+     * by state change notifications. To be run off the request path; the
+     * overall time is logged and kept for later reporting.
+     */
+    private void warmUp()
+    {
+        long start = System.nanoTime();
+
+        // the logger is dropped on deactivation
+        LogHelper currentLogger = this.logger;
+
+        try
+        {
+            // prime the JSON serializers and deserializers of the
+            // configuration classes
+            this.mapper.writerFor(Controllables.class);
+            this.mapper.writerFor(Device.class);
+            this.mapper.readerFor(Device.class);
+
+            // prime the XML serializers of the configuration classes
+            this.xmlMapper.writerFor(DogHomeConfiguration.class);
+
+            // prime the deserializers of all the command payloads
+            for (Class<? extends CommandPayload<?>> payload : this.payloads)
+                this.mapper.readerFor(payload);
+
+            // prime the JSON generator used for streaming device states
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = this.createJsonGenerator(writer);
+            this.statusWriter.writeDeviceStatus(generator, "warm-up", false,
+                    null, false);
+            generator.close();
+
+            // build, serialize and index the device catalogue
+            this.refreshCatalogue();
+
+            // index the current device states
+            this.refreshStateIndex();
+        }
+        catch (Exception e)
+        {
+            // warm-up is a best-effort optimization
+            currentLogger.log(LogService.LOG_WARNING,
+                    "Error while warming up the device endpoint", e);
+        }
+
+        this.warmUpTime = System.nanoTime() - start;
+
+        currentLogger.log(LogService.LOG_INFO, "Warm-up completed in "
+                + TimeUnit.NANOSECONDS.toMillis(this.warmUpTime) + " ms");
+    }
+
     /**
      * Prepare the bundle to be deactivated...
      */
     public void deactivate()
     {
+        // stop listening to device registrations
+        this.context.removeServiceListener(this.deviceListener);
+        this.deviceListener = null;
+
+        // stop the background tasks, giving the running one, if any, a
+        // chance to complete before the logger and the context are dropped
+        ScheduledExecutorService executor = this.backgroundExecutor;
+        this.backgroundExecutor = null;
+        executor.shutdownNow();
+        try
+        {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                this.logger.log(LogService.LOG_WARNING,
+                        "A background task is still running after deactivation");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // persist any pending metadata update, waiting for a running flush
+        if (this.writeBehind != null)
+        {
+            this.writeBehind.flush();
+            List<String> lostIds = this.writeBehind.getPendingIds();
+            if (!lostIds.isEmpty())
+                this.logger.log(LogService.LOG_ERROR,
+                        "Unable to persist the pending updates of devices "
+                                + lostIds + ", now lost");
+            this.writeBehind = null;
+        }
+
+        // stop sending group commands
+        this.commandExecutor.shutdownNow();
+        this.commandExecutor = null;
+        this.commandDispatcher.shutdown();
+        this.commandDispatcher = null;
+
+        // drop the catalogue snapshot
+        this.catalogue.set(null);
+
+        // stop detecting slow requests
+        this.metrics.setSlowRequestLog(null);
+
         // null the context
         this.context = null;
 
@@ -253,12 +746,24 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
     @Override
     public Response options()
     {
-        return Response.ok("").header("Access-Control-Allow-Origin", "*")
-                .header("Access-Control-Allow-Headers",
-                        "origin, content-type, accept, authorization")
-                .header("Access-Control-Allow-Methods",
-                        "GET, POST, PUT, OPTIONS, HEAD")
-                .build();
+        RequestBody<Response> body = new RequestBody<Response>()
+        {
+            @Override
+            public Response run(EndpointMetrics.Request request)
+            {
+                return Response.ok("")
+                        .header("Access-Control-Allow-Origin", "*")
+                        .header("Access-Control-Allow-Headers",
+                                "origin, content-type, accept, authorization, "
+                                        + "if-match, x-server-timing, "
+                                        + "idempotency-key")
+                        .header("Access-Control-Allow-Methods",
+                                "GET, POST, PUT, PATCH, OPTIONS, HEAD")
+                        .build();
+            }
+        };
+
+        return this.measured("options", null, body);
     }
 
     /*
@@ -268,40 +773,36 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      * getAllDevicesInJson()
      */
     @Override
-    public String getAllDevicesInJson(HttpServletResponse httpResponse)
+    public String getAllDevicesInJson(final HttpServletResponse httpResponse)
     {
-        String devicesJSON = "";
-
-        this.setCORSSupport(httpResponse);
-
-        // get the JAXB object containing all the configured devices
-        DogHomeConfiguration dhc = this.getAllDevices();
-
-        try
+        RequestBody<String> body = new RequestBody<String>()
         {
-            devicesJSON = this.mapper
-                    .writeValueAsString(dhc.getControllables().get(0));
-        }
-        catch (Exception e)
-        {
-            this.logger.log(LogService.LOG_ERROR,
-                    "Error in creating the JSON representing all the configured devices",
-                    e);
-        }
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
 
-        // if no devices are available, send a 404 Not found HTTP response
-        // assume, as before, that only one Controllables tag exists
-        boolean noDevices = dhc.getControllables().get(0).getDevice().isEmpty();
+                // get the current snapshot of all the configured devices
+                DeviceCatalogue catalogue = DeviceRESTEndpoint.this
+                        .getCatalogue();
 
-        if (devicesJSON.isEmpty() || noDevices)
-        {
-            // launch the exception responsible for sending the HTTP response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        }
-        else
-        {
-            return devicesJSON;
-        }
+                // if no devices are available, send a 404 Not found HTTP
+                // response
+                if (catalogue.getJson().isEmpty() || catalogue.isEmpty())
+                {
+                    // launch the exception responsible for sending the HTTP
+                    // response
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+                }
+                else
+                {
+                    return catalogue.getJson();
+                }
+            }
+        };
+
+        return this.measured("getAllDevicesInJson", this.catalogueLane, body);
     }
 
     /*
@@ -311,287 +812,507 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      * getAllDevicesInXml ()
      */
     @Override
-    public String getAllDevicesInXml(HttpServletResponse httpResponse)
+    public String getAllDevicesInXml(final HttpServletResponse httpResponse)
     {
-        String devicesXML = "";
-
-        this.setCORSSupport(httpResponse);
-
-        // get the JAXB object containing all the configured devices
-        DogHomeConfiguration dhc = this.getAllDevices();
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
 
-        // create the XML for replying the request
-        devicesXML = this.generateXML(dhc);
+                // get the current snapshot of all the configured devices
+                DeviceCatalogue catalogue = DeviceRESTEndpoint.this
+                        .getCatalogue();
 
-        // if no devices are available, send a 404 Not found HTTP response
-        // assume, as before, that only one Controllables tag exists
-        boolean noDevices = dhc.getControllables().get(0).getDevice().isEmpty();
+                // if no devices are available, send a 404 Not found HTTP
+                // response
+                if (catalogue.getXml().isEmpty() || catalogue.isEmpty())
+                {
+                    // launch the exception responsible for sending the HTTP
+                    // response
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+                }
+                else
+                {
+                    return catalogue.getXml();
+                }
+            }
+        };
 
-        if (devicesXML.isEmpty() || noDevices)
-        {
-            // launch the exception responsible for sending the HTTP response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        }
-        else
-        {
-            return devicesXML;
-        }
+        return this.measured("getAllDevicesInXml", this.catalogueLane, body);
     }
 
-    /**
-     * Get all the devices configured in Dog from the {@link HouseModel} in
-     * their "clean" format, e.g., without all the network-related information
-     * and unneeded tabs or newlines
+    /*
+     * (non-Javadoc)
      * 
-     * @return a {@link DogHomeConfiguration} object with all the devices
-     *         information
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getDeviceInJson(java.lang.String)
      */
-    private DogHomeConfiguration getAllDevices()
+    @Override
+    public String getDeviceInJson(final String deviceId,
+            final HttpServletResponse httpResponse)
     {
-        // create a JAXB Object Factory for adding the proper header...
-        ObjectFactory factory = new ObjectFactory();
-        DogHomeConfiguration dhc = factory.createDogHomeConfiguration();
-
-        // check if the HouseModel service is available
-        if (this.houseModel.get() != null)
+        RequestBody<String> body = new RequestBody<String>()
         {
-            // get all the devices from the HouseModel
-            Controllables controllables = this.houseModel.get()
-                    .getSimpleDevices().get(0);
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
 
-            dhc.getControllables().add(controllables);
-        }
+                // get the requested device from the current snapshot
+                CatalogueEntry entry = DeviceRESTEndpoint.this.getCatalogue()
+                        .getEntry(deviceId);
+
+                if ((entry != null) && (!entry.getJson().isEmpty()))
+                {
+                    // tag the device metadata, for conditional updates
+                    httpResponse.setHeader("ETag",
+                            DeviceRESTEndpoint.this.getMetadataTag(entry));
+                    httpResponse.setHeader("Access-Control-Expose-Headers",
+                            "ETag");
+
+                    return entry.getJson();
+                }
+                else
+                {
+                    // the requested device is not present, send a 404 Not found
+                    // HTTP response
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+                }
 
-        return dhc;
+            }
+        };
+
+        return this.measured("getDeviceInJson", this.catalogueLane, body);
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
-     * getDeviceInJson(java.lang.String)
+     * getDeviceInXml (java.lang.String)
      */
     @Override
-    public String getDeviceInJson(String deviceId,
-            HttpServletResponse httpResponse)
+    public String getDeviceInXml(final String deviceId,
+            final HttpServletResponse httpResponse)
     {
-        String deviceJSON = "";
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // get the requested device from the current snapshot
+                CatalogueEntry entry = DeviceRESTEndpoint.this.getCatalogue()
+                        .getEntry(deviceId);
 
-        this.setCORSSupport(httpResponse);
+                if ((entry != null) && (!entry.getXml().isEmpty()))
+                {
+                    // tag the device metadata, for conditional updates
+                    httpResponse.setHeader("ETag",
+                            DeviceRESTEndpoint.this.getMetadataTag(entry));
+                    httpResponse.setHeader("Access-Control-Expose-Headers",
+                            "ETag");
+
+                    return entry.getXml();
+                }
+                else
+                {
+                    // the requested device is not present, send a 404 Not found
+                    // HTTP response
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+                }
+            }
+        };
+
+        return this.measured("getDeviceInXml", this.catalogueLane, body);
+    }
 
-        // get the requested device configuration, in JAXB
-        DogHomeConfiguration dhc = this.getDevice(deviceId);
+    /**
+     * Get the current snapshot of the devices configured in Dog. The snapshot
+     * is built in background; only the very first request issued before the
+     * first build completes builds it on the request thread.
+     * 
+     * @return the current {@link DeviceCatalogue}
+     */
+    private DeviceCatalogue getCatalogue()
+    {
+        DeviceCatalogue current = this.catalogue.get();
 
-        if (dhc.getControllables().get(0).getDevice() != null)
+        if (current == null)
         {
-            // get the JAXB representation of the desired device
-            Device requestedDevice = dhc.getControllables().get(0).getDevice()
-                    .get(0);
+            // publish only if no background build completed meanwhile
+            DeviceCatalogue snapshot = this.buildCatalogue();
+            if (this.catalogue.compareAndSet(null, snapshot))
+                this.indexCatalogue(snapshot);
+            current = this.catalogue.get();
+        }
+
+        return current;
+    }
+
+    /**
+     * Require a new snapshot of the configured devices to be built and
+     * published in background; requests issued while a build is already
+     * pending are coalesced with it.
+     */
+    private void scheduleCatalogueRefresh()
+    {
+        ScheduledExecutorService executor = this.backgroundExecutor;
 
+        if ((executor != null) && (this.catalogueRefreshPending
+                .compareAndSet(false, true)))
+        {
             try
             {
-                deviceJSON = this.mapper.writeValueAsString(requestedDevice);
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        DeviceRESTEndpoint.this.catalogueRefreshPending
+                                .set(false);
+                        DeviceRESTEndpoint.this.refreshCatalogue();
+                    }
+                });
             }
-            catch (Exception e)
+            catch (RejectedExecutionException e)
             {
-                this.logger.log(LogService.LOG_ERROR,
-                        "Error in creating the JSON representing all the configured devices",
-                        e);
+                // the bundle is being deactivated
+                this.catalogueRefreshPending.set(false);
             }
+        }
+    }
 
-            return deviceJSON;
+    /**
+     * Build a new snapshot of the configured devices and publish it with a
+     * single atomic swap. To be run off the request path.
+     */
+    private void refreshCatalogue()
+    {
+        try
+        {
+            // devices registered from now on are kept by the rebuild
+            this.negativeCache.beginRebuild();
+
+            DeviceCatalogue snapshot = this.buildCatalogue();
+            this.catalogue.set(snapshot);
+            this.indexCatalogue(snapshot);
+
+            // forget the ids and the status of devices no longer configured
+            // nor registered
+            Set<String> knownIds = this.getKnownDeviceIds(snapshot);
+            this.negativeCache.completeRebuild(knownIds);
+            this.statusCache.retain(knownIds);
+            this.stateIndex.retain(knownIds);
+            this.history.retain(knownIds);
+            this.metadataTags.keySet().retainAll(knownIds);
+            for (CatalogueEntry entry : snapshot.getEntries())
+            {
+                // the catalogue caught up with the updated metadata
+                String tag = DeviceRESTEndpoint.getMetadataTag(
+                        entry.getLocation(), entry.getDescription());
+                this.metadataTags.remove(entry.getId(), tag);
+            }
+            RedundantCommandFilter redundantCommands = this.redundantCommands;
+            if (redundantCommands != null)
+                redundantCommands.retain(knownIds);
         }
-        else
+        catch (Exception e)
         {
-            // the requested device is not present, send a 404 Not found HTTP
-            // response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            // keep serving the previous snapshot, the next refresh will
+            // retry
+            LogHelper currentLogger = this.logger;
+            if (currentLogger != null)
+                currentLogger.log(LogService.LOG_WARNING,
+                        "Unable to refresh the device catalogue", e);
         }
-
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Bring the text index in line with the given catalogue snapshot, only
+     * re-indexing the devices whose description or location changed.
      * 
-     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
-     * getDeviceInXml (java.lang.String)
+     * @param snapshot
+     *            the {@link DeviceCatalogue} snapshot
      */
-    @Override
-    public String getDeviceInXml(String deviceId,
-            HttpServletResponse httpResponse)
+    private void indexCatalogue(DeviceCatalogue snapshot)
     {
-        String deviceXML = "";
+        Set<String> deviceIds = new HashSet<String>();
+
+        for (CatalogueEntry entry : snapshot.getEntries())
+        {
+            deviceIds.add(entry.getId());
+            this.searchIndex.update(entry.getId(), entry.getDescription(),
+                    entry.getLocation());
+        }
 
-        this.setCORSSupport(httpResponse);
+        this.searchIndex.retain(deviceIds);
+    }
 
-        // get the requested device configuration
-        DogHomeConfiguration dhc = this.getDevice(deviceId);
+    /**
+     * Get the ids of all the devices either configured in the given catalogue
+     * snapshot or registered in the framework
+     * 
+     * @param snapshot
+     *            the {@link DeviceCatalogue} snapshot
+     * @return the known device ids
+     * @throws InvalidSyntaxException
+     */
+    private Set<String> getKnownDeviceIds(DeviceCatalogue snapshot)
+            throws InvalidSyntaxException
+    {
+        Set<String> deviceIds = new HashSet<String>();
 
-        if (dhc.getControllables().get(0).getDevice() != null)
-        {
-            // create the XML for replying the request
-            deviceXML = this.generateXML(dhc);
+        for (CatalogueEntry entry : snapshot.getEntries())
+            deviceIds.add(entry.getId());
 
-            return deviceXML;
-        }
-        else
+        // get the device service references
+        ServiceReference<?>[] allDevices = this.context.getAllServiceReferences(
+                org.osgi.service.device.Device.class.getName(), null);
+
+        if (allDevices != null)
         {
-            // the requested device is not present, send a 404 Not found HTTP
-            // response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            for (ServiceReference<?> device : allDevices)
+            {
+                Object deviceId = device.getProperty(DeviceCostants.DEVICEURI);
+                if (deviceId instanceof String)
+                    deviceIds.add((String) deviceId);
+            }
         }
+
+        return deviceIds;
     }
 
     /**
+     * Build an immutable snapshot of all the devices configured in Dog from
+     * the {@link HouseModel}, in their "clean" format, e.g., without all the
+     * network-related information and unneeded tabs or newlines, together
+     * with their JSON and XML representations.
      * 
-     * Get the configuration of the device identified by the parameter deviceId
-     * from the {@link HouseModel} and perform some "cleaning" operations, such
-     * as removing all the network-related information and removing unneeded
-     * tabs or newlines
-     * 
-     * @param deviceId
-     *            the device unique identifier
-     * @return a {@link DogHomeConfiguration} object with the required device
-     *         information
+     * @return the {@link DeviceCatalogue} snapshot
      */
-    private DogHomeConfiguration getDevice(String deviceId)
+    private DeviceCatalogue buildCatalogue()
     {
+        long start = System.nanoTime();
+        FlightRecorderEventType.Event event = DeviceRESTEndpoint.CATALOGUE_EVENT
+                .begin();
+
+        // the logger is dropped on deactivation
+        LogHelper currentLogger = this.logger;
+
+        // create a JAXB Object Factory for adding the proper header...
         ObjectFactory factory = new ObjectFactory();
-        DogHomeConfiguration dhc = factory.createDogHomeConfiguration();
 
-        // check if the HouseModel service is available
-        if (this.houseModel.get() != null)
+        // copy the current list of devices from the HouseModel, if available
+        Controllables controllables = factory.createControllables();
+        HouseModel currentHouseModel = this.houseModel.get();
+        if (currentHouseModel != null)
         {
-            // create a JAXB Object Factory for adding the proper header...
+            controllables.getDevice().addAll(
+                    currentHouseModel.getSimpleDevices().get(0).getDevice());
+        }
+
+        // the configuration containing all the devices
+        DogHomeConfiguration dhc = factory.createDogHomeConfiguration();
+        dhc.getControllables().add(controllables);
 
-            Controllables controllables = factory.createControllables();
+        // the catalogue entries
+        List<CatalogueEntry> entries = new ArrayList<CatalogueEntry>();
 
-            // get the desired device from the HouseModel service
-            for (Device device : this.houseModel.get().getSimpleDevices().get(0)
-                    .getDevice())
+        for (Device device : controllables.getDevice())
+        {
+            // the configuration containing only the current device
+            Controllables deviceControllables = factory.createControllables();
+            deviceControllables.getDevice().add(device);
+            DogHomeConfiguration deviceDhc = factory
+                    .createDogHomeConfiguration();
+            deviceDhc.getControllables().add(deviceControllables);
+
+            String deviceJSON = "";
+            try
             {
-                if (device.getId().equalsIgnoreCase(deviceId))
-                {
-                    // add the device to its container
-                    controllables.getDevice().add(device);
-                }
+                deviceJSON = this.mapper.writeValueAsString(device);
+            }
+            catch (Exception e)
+            {
+                currentLogger.log(LogService.LOG_ERROR,
+                        "Error in creating the JSON representing the device "
+                                + device.getId(),
+                        e);
             }
 
-            dhc.getControllables().add(controllables);
+            entries.add(new CatalogueEntry(device.getId(),
+                    device.getDescription(), device.getIsIn(),
+                    device.getClazz(), device.getDomoticSystem(), deviceJSON,
+                    this.generateXML(deviceDhc)));
         }
-        return dhc;
+
+        String devicesJSON = "";
+        try
+        {
+            devicesJSON = this.mapper.writeValueAsString(controllables);
+        }
+        catch (Exception e)
+        {
+            currentLogger.log(LogService.LOG_ERROR,
+                    "Error in creating the JSON representing all the configured devices",
+                    e);
+        }
+
+        DeviceCatalogue catalogue = new DeviceCatalogue(entries, devicesJSON,
+                this.generateXML(dhc));
+
+        this.metrics.recordOperation("buildCatalogue", start);
+        event.commit(entries.size(), catalogue.getJson().length(),
+                catalogue.getXml().length());
+
+        return catalogue;
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
-     * updateDeviceLocation(java.lang.String, java.lang.String)
+     * searchDevices(java.lang.String, int)
      */
     @Override
-    public Response updateDeviceLocation(String deviceId, String location,
-            HttpServletResponse httpResponse)
+    public String searchDevices(final String query, final int limit,
+            final HttpServletResponse httpResponse)
     {
-        // set and init the variable used to store the HTTP response that will
-        // be sent by exception to the client
-        Status response = Response.Status.EXPECTATION_FAILED;
-
-        if (location != null && !location.isEmpty())
+        RequestBody<String> body = new RequestBody<String>()
         {
-            // create filter for getting the desired device
-            String deviceFilter = String.format("(&(%s=*)(%s=%s))",
-                    Constants.DEVICE_CATEGORY, DeviceCostants.DEVICEURI,
-                    deviceId);
-
-            try
+            @Override
+            public String run(EndpointMetrics.Request request)
             {
-                // try to read the value from the JSON
-                Device deviceLocation = this.mapper.readValue(location,
-                        Device.class);
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
 
-                // get the device service references
-                ServiceReference<?>[] deviceService = this.context
-                        .getAllServiceReferences(
-                                org.osgi.service.device.Device.class.getName(),
-                                deviceFilter);
+                if ((query == null) || (query.trim().isEmpty()) || (limit < 0))
+                    throw new WebApplicationException(
+                            Response.Status.BAD_REQUEST);
 
-                // only one device with the given deviceId can exists in the
-                // framework...
-                if (deviceService != null && deviceService.length == 1)
-                {
-                    // get the OSGi service pointed by the current device
-                    // reference
-                    Object device = this.context.getService(deviceService[0]);
+                // ensure the index has been filled at least once
+                DeviceRESTEndpoint.this.getCatalogue();
+
+                // the response
+                String responseAsString = "";
 
-                    if ((device != null)
-                            && (device instanceof ControllableDevice))
+                try
+                {
+                    List<SearchIndex.Document> results = DeviceRESTEndpoint.this
+                            .searchIndex.search(query);
+
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeNumberField("total", results.size());
+                    generator.writeArrayFieldStart("devices");
+                    for (int i = 0; i < Math.min(limit, results.size()); i++)
                     {
-                        // get the device instance
-                        ControllableDevice currentDevice = (ControllableDevice) device;
-                        // get the associated device descriptor
-                        DeviceDescriptor currentDeviceDescr = currentDevice
-                                .getDeviceDescriptor();
+                        SearchIndex.Document result = results.get(i);
+                        generator.writeStartObject();
+                        generator.writeStringField("id", result.getId());
+                        if (result.getDescription() != null)
+                            generator.writeStringField("description",
+                                    result.getDescription());
+                        if (result.getLocation() != null)
+                            generator.writeStringField("isIn",
+                                    result.getLocation());
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                    generator.close();
 
-                        // update the device location, if available
-                        if ((deviceLocation.getIsIn() != null)
-                                && (!deviceLocation.getIsIn().isEmpty()))
-                        {
-                            currentDeviceDescr
-                                    .setLocation(deviceLocation.getIsIn());
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while searching the devices matching "
+                                    + query,
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
 
-                            // check if the DeviceFactory service is available
-                            if (this.deviceFactory.get() != null)
-                            {
-                                // update the device configuration
-                                this.deviceFactory.get()
-                                        .updateDevice(currentDeviceDescr);
-                                // set the variable used to store the HTTP
-                                // response by the right value
-                                // OK: the device location was successfully
-                                // updated
-                                response = Response.Status.OK;
+                return responseAsString;
+            }
+        };
 
-                            }
-                            else
-                            {
-                                this.logger.log(LogService.LOG_WARNING,
-                                        "Impossible to update the device location: the Device Factory is not available!");
-                                // set the variable used to store the HTTP
-                                // response by the right value
-                                // PRECONDITION_FAILED: impossible to update the
-                                // device location since the Device Factory is
-                                // not available
-                                // it was the best response status available
-                                response = Response.Status.PRECONDITION_FAILED;
-                            }
-                        }
-                    }
+        return this.measured("searchDevices", this.catalogueLane, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * updateDeviceLocation(java.lang.String, java.lang.String)
+     */
+    @Override
+    public Response updateDeviceLocation(final String deviceId,
+            final String location, final String ifMatch,
+            HttpServletResponse httpResponse)
+    {
+        RequestBody<Response> body = new RequestBody<Response>()
+        {
+            @Override
+            public Response run(EndpointMetrics.Request request)
+            {
+                // set and init the variable used to store the HTTP response
+                // that will be sent by exception to the client
+                Status response = Response.Status.EXPECTATION_FAILED;
+
+                if (location != null && !location.isEmpty())
+                {
+                    try
+                    {
+                        // try to read the value from the JSON
+                        Device deviceLocation = DeviceRESTEndpoint.this.mapper
+                                .readValue(location, Device.class);
 
-                    // releases all the services object referenced at the
-                    // beginning of the method
-                    for (ServiceReference<?> singleServiceReference : deviceService)
+                        // update the device location, if available
+                        response = DeviceRESTEndpoint.this
+                                .updateDeviceMetadata(deviceId,
+                                        deviceLocation.getIsIn(), null,
+                                        ifMatch);
+                    }
+                    catch (Exception e)
                     {
-                        this.context.ungetService(singleServiceReference);
+                        DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                                "Error in updating the location of device "
+                                        + deviceId,
+                                e);
+                        // set the variable used to store the HTTP response by
+                        // the right value
+                        // NOT_MODIFIED: impossible to update the location of
+                        // the device
+                        response = Response.Status.NOT_MODIFIED;
                     }
                 }
-            }
-            catch (Exception e)
-            {
-                this.logger.log(LogService.LOG_ERROR,
-                        "Error in updating the location of device " + deviceId,
-                        e);
-                // set the variable used to store the HTTP response by the right
-                // value
-                // NOT_MODIFIED: impossible to update the location of the device
-                response = Response.Status.NOT_MODIFIED;
-            }
-        }
 
-        // launch the exception responsible for sending the HTTP response
-        if (response != Response.Status.OK)
-            throw new WebApplicationException(response);
+                // launch the exception responsible for sending the HTTP
+                // response
+                if ((response != Response.Status.OK)
+                        && (response != Response.Status.ACCEPTED))
+                    throw new WebApplicationException(response);
 
-        return Response.ok().header("Access-Control-Allow-Origin", "*").build();
+                // publish the updated device in the catalogue
+                DeviceRESTEndpoint.this.scheduleCatalogueRefresh();
+
+                // ACCEPTED if the update is still to be persisted
+                return Response.status(response)
+                        .header("Access-Control-Allow-Origin", "*").build();
+            }
+        };
+
+        return this.measured("updateDeviceLocation", null, body);
     }
 
     /*
@@ -601,221 +1322,269 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      * updateDeviceDescription(java.lang.String, java.lang.String)
      */
     @Override
-    public Response updateDeviceDescription(String deviceId, String description,
+    public Response updateDeviceDescription(final String deviceId,
+            final String description, final String ifMatch,
             HttpServletResponse httpResponse)
     {
-        // set and init the variable used to store the HTTP response that will
-        // be sent by exception to the client
-        Status response = Response.Status.EXPECTATION_FAILED;
-
-        if (description != null && !description.isEmpty())
+        RequestBody<Response> body = new RequestBody<Response>()
         {
-            // create filter for getting the desired device
-            String deviceFilter = String.format("(&(%s=*)(%s=%s))",
-                    Constants.DEVICE_CATEGORY, DeviceCostants.DEVICEURI,
-                    deviceId);
-
-            try
+            @Override
+            public Response run(EndpointMetrics.Request request)
             {
-                // try to read the value from the JSON
-                Device deviceDescription = this.mapper.readValue(description,
-                        Device.class);
-
-                // get the device service references
-                ServiceReference<?>[] deviceService = this.context
-                        .getAllServiceReferences(
-                                org.osgi.service.device.Device.class.getName(),
-                                deviceFilter);
+                // set and init the variable used to store the HTTP response
+                // that will be sent by exception to the client
+                Status response = Response.Status.EXPECTATION_FAILED;
 
-                // only one device with the given deviceId can exists in the
-                // framework...
-                if (deviceService != null && deviceService.length == 1)
+                if (description != null && !description.isEmpty())
                 {
-                    // get the OSGi service pointed by the current device
-                    // reference
-                    Object device = this.context.getService(deviceService[0]);
-
-                    if ((device != null)
-                            && (device instanceof ControllableDevice))
+                    try
                     {
-                        // get the device instance
-                        ControllableDevice currentDevice = (ControllableDevice) device;
-                        // get the associated device descriptor
-                        DeviceDescriptor currentDeviceDescr = currentDevice
-                                .getDeviceDescriptor();
+                        // try to read the value from the JSON
+                        Device deviceDescription = DeviceRESTEndpoint.this
+                                .mapper.readValue(description, Device.class);
 
                         // update the device description, if available
-                        if ((deviceDescription.getDescription() != null)
-                                && (!deviceDescription.getDescription()
-                                        .isEmpty()))
-                        {
-                            currentDeviceDescr.setDescription(
-                                    deviceDescription.getDescription());
-
-                            // check if the DeviceFactory service is available
-                            if (this.deviceFactory.get() != null)
-                            {
-                                // update the device configuration
-                                this.deviceFactory.get()
-                                        .updateDevice(currentDeviceDescr);
-                                // set the variable used to store the HTTP
-                                // response by the right value
-                                // OK: the description was successfully updated
-                                response = Response.Status.OK;
-                            }
-                            else
-                            {
-                                this.logger.log(LogService.LOG_WARNING,
-                                        "Impossible to update the device description: the Device Factory is not available!");
-                                // set the variable used to store the HTTP
-                                // response by the right value
-                                // PRECONDITION_FAILED: impossible to update the
-                                // device description since the Device Factory
-                                // is not available
-                                // it was the best response status available
-                                response = Response.Status.PRECONDITION_FAILED;
-                            }
-                        }
+                        response = DeviceRESTEndpoint.this
+                                .updateDeviceMetadata(deviceId, null,
+                                        deviceDescription.getDescription(),
+                                        ifMatch);
                     }
-
-                    // releases all the services object referenced at the
-                    // beginning of the method
-                    for (ServiceReference<?> singleServiceReference : deviceService)
+                    catch (Exception e)
                     {
-                        this.context.ungetService(singleServiceReference);
+                        DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                                "Error in updating the description of device "
+                                        + deviceId,
+                                e);
+                        // set the variable used to store the HTTP response by
+                        // the right value
+                        // NOT_MODIFIED: impossible to update the description
+                        // of the device
+                        // it was the best response status available
+                        response = Response.Status.NOT_MODIFIED;
                     }
                 }
-            }
-            catch (Exception e)
-            {
-                this.logger.log(LogService.LOG_ERROR,
-                        "Error in updating the description of device "
-                                + deviceId,
-                        e);
-                // set the variable used to store the HTTP response by the right
-                // value
-                // NOT_MODIFIED: impossible to update the description of the
-                // device
-                // it was the best response status available
-                response = Response.Status.NOT_MODIFIED;
-            }
-        }
 
-        // launch the exception responsible for sending the HTTP response
-        if (response != Response.Status.OK)
-            throw new WebApplicationException(response);
+                // launch the exception responsible for sending the HTTP
+                // response
+                if ((response != Response.Status.OK)
+                        && (response != Response.Status.ACCEPTED))
+                    throw new WebApplicationException(response);
 
-        return Response.ok().header("Access-Control-Allow-Origin", "*").build();
+                // publish the updated device in the catalogue
+                DeviceRESTEndpoint.this.scheduleCatalogueRefresh();
+
+                // ACCEPTED if the update is still to be persisted
+                return Response.status(response)
+                        .header("Access-Control-Allow-Origin", "*").build();
+            }
+        };
+
+        return this.measured("updateDeviceDescription", null, body);
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
-     * getAllDeviceStatus()
+     * updateDevice(java.lang.String, java.lang.String)
      */
-    public String getAllDeviceStatus(HttpServletResponse httpResponse)
+    @Override
+    public Response updateDevice(final String deviceId, final String metadata,
+            final String ifMatch, HttpServletResponse httpResponse)
     {
-        // the response
-        String responseAsString = "";
-        boolean listIsEmpty = true;
-
-        this.setCORSSupport(httpResponse);
-
-        // get all the installed device services
-        try
+        RequestBody<Response> body = new RequestBody<Response>()
         {
-            // get the device service references
-            ServiceReference<?>[] allDevices = this.context
-                    .getAllServiceReferences(
-                            org.osgi.service.device.Device.class.getName(),
-                            null);
-
-            // check not null
-            if (allDevices != null)
+            @Override
+            public Response run(EndpointMetrics.Request request)
             {
-                // create an AllDeviceStatesResponsePayload
-                AllDeviceStatesResponsePayload responsePayload = new AllDeviceStatesResponsePayload();
-
-                // create an array of DeviceStateResponsePayloads
-                DeviceStateResponsePayload[] deviceStateResponsePayload = new DeviceStateResponsePayload[allDevices.length];
+                // set and init the variable used to store the HTTP response
+                // that will be sent by exception to the client
+                Status response = Response.Status.EXPECTATION_FAILED;
 
-                // set the array as part of the response payload
-                responsePayload.setDevicesStatus(deviceStateResponsePayload);
-
-                // iterate over all devices
-                for (int i = 0; i < allDevices.length; i++)
+                if (metadata != null && !metadata.isEmpty())
                 {
-                    // get the OSGi service pointed by the current device
-                    // reference
-                    Object device = this.context.getService(allDevices[i]);
-
-                    // check if the service belongs to the set of dog devices
-                    if (device instanceof ControllableDevice)
+                    try
                     {
-                        // get the device instance
-                        ControllableDevice currentDevice = (ControllableDevice) device;
-
-                        // get the response payload for the current device
-                        deviceStateResponsePayload[i] = this
-                                .getControllableStatus(currentDevice,
-                                        allDevices[i]);
-                        // if we are here it means that the list will not be
-                        // empty
-                        listIsEmpty = false;
+                        // try to read the fields to update from the JSON
+                        Device deviceMetadata = DeviceRESTEndpoint.this.mapper
+                                .readValue(metadata, Device.class);
+
+                        // update all the given fields at once
+                        response = DeviceRESTEndpoint.this
+                                .updateDeviceMetadata(deviceId,
+                                        deviceMetadata.getIsIn(),
+                                        deviceMetadata.getDescription(),
+                                        ifMatch);
+                    }
+                    catch (Exception e)
+                    {
+                        DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                                "Error in updating the device " + deviceId, e);
+                        // NOT_MODIFIED: impossible to update the device
+                        response = Response.Status.NOT_MODIFIED;
                     }
-
-                    this.context.ungetService(allDevices[i]);
                 }
-                // store the device
-                responsePayload.setDevicesStatus(deviceStateResponsePayload);
 
-                // convert the response body to json
-                responseAsString = this.mapper
-                        .writeValueAsString(responsePayload);
+                // launch the exception responsible for sending the HTTP
+                // response
+                if ((response != Response.Status.OK)
+                        && (response != Response.Status.ACCEPTED))
+                    throw new WebApplicationException(response);
 
-                // Releases all the services object referenced at the beginning
-                // of the method
-                for (ServiceReference<?> singleServiceReference : allDevices)
-                {
-                    this.context.ungetService(singleServiceReference);
-                }
-            }
+                // publish the updated device in the catalogue
+                DeviceRESTEndpoint.this.scheduleCatalogueRefresh();
 
-        }
-        catch (Exception e)
-        {
-            this.logger.log(LogService.LOG_ERROR,
-                    "Error while composing the response", e);
-        }
+                // ACCEPTED if the update is still to be persisted
+                return Response.status(response)
+                        .header("Access-Control-Allow-Origin", "*").build();
+            }
+        };
 
-        // if the responseAsString variable is empty we have to send an HTTP
-        // response
-        // 404 Not found
-        if (responseAsString.isEmpty() || listIsEmpty == true)
-        {
-            // launch the exception responsible for sending the HTTP response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
-        }
-        else
-            return responseAsString;
+        return this.measured("updateDevice", null, body);
     }
 
     /*
      * (non-Javadoc)
      * 
      * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
-     * getDeviceStatus(java.lang.String)
+     * updateDevices(java.lang.String)
      */
     @Override
-    public String getDeviceStatus(String deviceId,
-            HttpServletResponse httpResponse)
+    public String updateDevices(final String metadata,
+            final HttpServletResponse httpResponse)
     {
-        // the response
-        String responseAsString = "";
-        boolean listIsEmpty = true;
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // try to read the devices to update from the JSON
+                Device[] devices;
+                try
+                {
+                    devices = DeviceRESTEndpoint.this.mapper.readValue(metadata,
+                            Device[].class);
+                }
+                catch (Exception e)
+                {
+                    throw new WebApplicationException(
+                            Response.Status.BAD_REQUEST);
+                }
+
+                // each device shall be identified
+                for (Device device : devices)
+                {
+                    if ((device == null) || (device.getId() == null))
+                        throw new WebApplicationException(
+                                Response.Status.BAD_REQUEST);
+                }
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    int updated = 0;
+
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeArrayFieldStart("results");
+                    for (Device device : devices)
+                    {
+                        // update all the given fields of the device at once
+                        Status status = DeviceRESTEndpoint.this
+                                .updateDeviceMetadata(device.getId(),
+                                        device.getIsIn(),
+                                        device.getDescription(), null);
+                        if ((status == Response.Status.OK)
+                                || (status == Response.Status.ACCEPTED))
+                            updated++;
+
+                        generator.writeStartObject();
+                        generator.writeStringField("id", device.getId());
+                        generator.writeNumberField("status",
+                                status.getStatusCode());
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndArray();
+                    generator.writeNumberField("updated", updated);
+                    generator.writeNumberField("failed",
+                            devices.length - updated);
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+
+                    // publish the updated devices in the catalogue, at once
+                    if (updated > 0)
+                        DeviceRESTEndpoint.this.scheduleCatalogueRefresh();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the results of the device "
+                                    + "updates",
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
 
-        this.setCORSSupport(httpResponse);
+        return this.measured("updateDevices", null, body);
+    }
+
+    /**
+     * Update the location and/or the description of a device, applying all
+     * the changes to its {@link DeviceDescriptor} and then persisting them
+     * with a single call to {@link DeviceFactory#updateDevice}, either at once
+     * or, if write-behind is enabled, at the next periodic flush. In the
+     * latter case, a failure of the previous flush of the device is reported
+     * by flushing the device immediately.
+     * 
+     * Updates of the same device are serialized, while updates of different
+     * devices run in parallel; if an entity tag is given, the update is
+     * applied only if the device metadata still match it.
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @param location
+     *            the new device location, null or empty to keep the current
+     *            one
+     * @param description
+     *            the new device description, null or empty to keep the
+     *            current one
+     * @param ifMatch
+     *            the expected entity tag(s) of the device metadata, null to
+     *            skip the check
+     * @return OK if the device was updated, ACCEPTED if the update is
+     *         waiting to be flushed, PRECONDITION_FAILED if the device changed
+     *         since the given entity tag was read or the DeviceFactory is not
+     *         available, SERVICE_UNAVAILABLE if a previous flush of the device
+     *         failed again, NOT_MODIFIED if the update failed and
+     *         EXPECTATION_FAILED if there was nothing to update
+     */
+    private Status updateDeviceMetadata(String deviceId, String location,
+            String description, String ifMatch)
+    {
+        // set and init the variable used to store the HTTP response that will
+        // be sent by exception to the client
+        Status response = Response.Status.EXPECTATION_FAILED;
+
+        boolean updateLocation = (location != null) && (!location.isEmpty());
+        boolean updateDescription = (description != null)
+                && (!description.isEmpty());
+
+        // nothing to update, or unknown device
+        if (((!updateLocation) && (!updateDescription))
+                || (this.isMissing(deviceId)))
+            return response;
 
         // create filter for getting the desired device
         String deviceFilter = String.format("(&(%s=*)(%s=%s))",
@@ -828,41 +1597,60 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
                     .getAllServiceReferences(
                             org.osgi.service.device.Device.class.getName(),
                             deviceFilter);
-            if (deviceService != null)
+
+            // only one device with the given deviceId can exists in the
+            // framework...
+            if (deviceService != null && deviceService.length == 1)
             {
-                // create a DeviceStateResponsePayload
-                DeviceStateResponsePayload deviceStateResponsePayload = new DeviceStateResponsePayload();
+                // get the OSGi service pointed by the current device
+                // reference
+                Object device = this.context.getService(deviceService[0]);
 
-                // only one device with the given deviceId can exists in the
-                // framework
-                if (deviceService.length == 1)
+                if ((device != null) && (device instanceof ControllableDevice))
                 {
-                    // get the OSGi service pointed by the current device
-                    // reference
-                    Object device = this.context.getService(deviceService[0]);
-
-                    if (device instanceof ControllableDevice)
+                    // get the device instance
+                    ControllableDevice currentDevice = (ControllableDevice) device;
+                    // get the associated device descriptor
+                    DeviceDescriptor currentDeviceDescr = currentDevice
+                            .getDeviceDescriptor();
+
+                    // check if the DeviceFactory service is available
+                    DeviceFactory currentDeviceFactory = this.deviceFactory
+                            .get();
+                    if (currentDeviceFactory != null)
                     {
-                        // get the device instance
-                        ControllableDevice currentDevice = (ControllableDevice) device;
-
-                        // get the response payload
-                        deviceStateResponsePayload = this.getControllableStatus(
-                                currentDevice, deviceService[0]);
-                        // if we are here it means that the list will not be
-                        // empty
-                        listIsEmpty = false;
+                        // serialize the updates of the same device
+                        ReentrantLock lock = this.metadataLocks
+                                .get(currentDeviceDescr.getDeviceURI());
+                        lock.lock();
+                        try
+                        {
+                            response = this.applyDeviceMetadata(
+                                    currentDeviceDescr, currentDeviceFactory,
+                                    updateLocation ? location : null,
+                                    updateDescription ? description : null,
+                                    ifMatch);
+                        }
+                        finally
+                        {
+                            lock.unlock();
+                        }
+                    }
+                    else
+                    {
+                        this.logger.log(LogService.LOG_WARNING,
+                                "Impossible to update the device "
+                                        + deviceId
+                                        + ": the Device Factory is not available!");
+                        // PRECONDITION_FAILED: impossible to update the
+                        // device since the Device Factory is not available
+                        // it was the best response status available
+                        response = Response.Status.PRECONDITION_FAILED;
                     }
-
-                    this.context.ungetService(deviceService[0]);
                 }
 
-                // convert the response body to json
-                responseAsString = this.mapper
-                        .writeValueAsString(deviceStateResponsePayload);
-
-                // Releases all the services object referenced at the beginning
-                // of the method
+                // releases all the services object referenced at the
+                // beginning of the method
                 for (ServiceReference<?> singleServiceReference : deviceService)
                 {
                     this.context.ungetService(singleServiceReference);
@@ -872,155 +1660,1658 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
         catch (Exception e)
         {
             this.logger.log(LogService.LOG_ERROR,
-                    "Error while composing the response for the status of "
-                            + deviceId,
-                    e);
+                    "Error in updating the device " + deviceId, e);
+            // NOT_MODIFIED: impossible to update the device
+            response = Response.Status.NOT_MODIFIED;
         }
 
-        // if the responseAsString variable is empty we have to send an HTTP
-        // response
-        // 404 Not found
-        if (responseAsString.isEmpty() || listIsEmpty == true)
+        return response;
+    }
+
+    /**
+     * Apply the given changes to a device descriptor and persist them, either
+     * at once or at the next flush, if the descriptor still matches the given
+     * entity tag. To be called while holding the device lock.
+     * 
+     * @param deviceDescriptor
+     *            the {@link DeviceDescriptor} to update
+     * @param deviceFactory
+     *            the {@link DeviceFactory} persisting the change
+     * @param location
+     *            the new device location, null to keep the current one
+     * @param description
+     *            the new device description, null to keep the current one
+     * @param ifMatch
+     *            the expected entity tag(s), null to skip the check
+     * @return OK if the device was updated, ACCEPTED if the update is
+     *         waiting to be flushed, PRECONDITION_FAILED if it does not match
+     *         the given entity tag, SERVICE_UNAVAILABLE if a previous flush of
+     *         the device failed again, the update being kept for the next one
+     */
+    private Status applyDeviceMetadata(DeviceDescriptor deviceDescriptor,
+            DeviceFactory deviceFactory, String location, String description,
+            String ifMatch)
+    {
+        String updatedDeviceId = deviceDescriptor.getDeviceURI();
+
+        // the device changed since the client read it: 412
+        if ((ifMatch != null) && (!DeviceRESTEndpoint.matchesTag(ifMatch,
+                DeviceRESTEndpoint.getMetadataTag(
+                        deviceDescriptor.getLocation(),
+                        deviceDescriptor.getDescription()))))
+            return Response.Status.PRECONDITION_FAILED;
+
+        // apply all the changes to the device descriptor
+        if (location != null)
+            deviceDescriptor.setLocation(location);
+        if (description != null)
+            deviceDescriptor.setDescription(description);
+
+        // tag the device with its live metadata until the catalogue catches
+        // up, be the change persisted now or at the next flush
+        this.metadataTags.put(updatedDeviceId,
+                DeviceRESTEndpoint.getMetadataTag(
+                        deviceDescriptor.getLocation(),
+                        deviceDescriptor.getDescription()));
+
+        // update the device configuration, once, either now or at the next
+        // flush
+        Status response = Response.Status.OK;
+        DescriptorWriteBehind currentWriteBehind = this.writeBehind;
+        if (currentWriteBehind == null)
         {
-            // launch the exception responsible for sending the HTTP response
-            throw new WebApplicationException(Response.Status.NOT_FOUND);
+            deviceFactory.updateDevice(deviceDescriptor);
         }
         else
-            return responseAsString;
+        {
+            currentWriteBehind.enqueue(deviceDescriptor);
+            response = Response.Status.ACCEPTED;
+
+            // a previous flush of the device failed: retry now to report the
+            // outcome
+            if (currentWriteBehind.hasFailed(updatedDeviceId))
+                response = currentWriteBehind.flush(updatedDeviceId)
+                        ? Response.Status.OK
+                        : Response.Status.SERVICE_UNAVAILABLE;
+        }
+
+        // re-index the device
+        this.searchIndex.update(updatedDeviceId,
+                deviceDescriptor.getDescription(),
+                deviceDescriptor.getLocation());
+
+        return response;
     }
 
     /**
-     * Build the Jackson representation for the status of a given
-     * {@link ControllableDevice} object.
+     * Get the entity tag of the current metadata of a device, i.e., the one
+     * of the last update if not yet in the catalogue
      * 
-     * @param device
-     *            the {@link ControllableDevice} to query for the status
-     * @param deviceService
-     *            the OSGi service reference for the given
-     *            {@link ControllableDevice}
-     * @return a {@link DeviceStateResponsePayload} containing the proper
-     *         response to the status API
+     * @param entry
+     *            the {@link CatalogueEntry} of the device
+     * @return the quoted entity tag
      */
-    private DeviceStateResponsePayload getControllableStatus(
-            ControllableDevice device, ServiceReference<?> deviceService)
+    private String getMetadataTag(CatalogueEntry entry)
     {
-        // init
-        DeviceStateResponsePayload deviceStateResponsePayload = null;
+        String tag = this.metadataTags.get(entry.getId());
 
-        // get the device descriptor
-        DeviceDescriptor deviceDescriptor = device.getDeviceDescriptor();
+        return (tag != null) ? tag
+                : DeviceRESTEndpoint.getMetadataTag(entry.getLocation(),
+                        entry.getDescription());
+    }
 
-        // create the response payload
-        deviceStateResponsePayload = new DeviceStateResponsePayload();
+    /**
+     * Compute the entity tag of the metadata of a device, as a SHA-256
+     * digest of the metadata, so that different metadata never share a tag
+     * in practice
+     * 
+     * @param location
+     *            the device location, may be null
+     * @param description
+     *            the device description, may be null
+     * @return the quoted entity tag
+     */
+    private static String getMetadataTag(String location, String description)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
 
-        // set the device id
-        deviceStateResponsePayload.setId(deviceDescriptor.getDeviceURI());
+            // a marker tells null values apart from any string
+            for (String field : new String[] { location, description })
+            {
+                if (field == null)
+                {
+                    digest.update((byte) 0);
+                }
+                else
+                {
+                    digest.update((byte) 1);
+                    byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                    digest.update(ByteBuffer.allocate(4).putInt(bytes.length)
+                            .array());
+                    digest.update(bytes);
+                }
+            }
 
-        // set the activation status of the device
-        deviceStateResponsePayload.setActive(Boolean.valueOf(
-                (String) deviceService.getProperty(DeviceCostants.ACTIVE)));
+            // 128 bits are enough for a tag
+            StringBuilder tag = new StringBuilder("\"");
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 16; i++)
+                tag.append(String.format("%02x", hash[i]));
 
-        // get the device status
-        Map<String, State> allStates = null;
-        DeviceStatus state = ((Controllable) device).getState();
-        if (state != null)
+            return tag.append('"').toString();
+        }
+        catch (NoSuchAlgorithmException e)
         {
-            allStates = state.getStates();
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
         }
+    }
 
-        // check if the device state is available, i.e., not null
-        if (allStates != null)
+    /**
+     * Check an If-Match header against the current entity tag
+     * 
+     * @param ifMatch
+     *            the comma-separated entity tags, or *
+     * @param tag
+     *            the current entity tag
+     * @return true if any of the given entity tags matches
+     */
+    private static boolean matchesTag(String ifMatch, String tag)
+    {
+        for (String candidate : ifMatch.split(","))
         {
-            // iterate over all states
-            for (String stateKey : allStates.keySet())
-            {
-                // get the current state
-                State currentState = allStates.get(stateKey);
+            candidate = candidate.trim();
 
-                // get the values associate to the current state
-                StateValue currentStateValues[] = currentState
-                        .getCurrentStateValue();
+            // weak tags are compared as strong ones
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
 
-                // create the response-level state values
-                Object responseBodyStateValues[] = new Object[currentStateValues.length];
+            if ((candidate.equals("*")) || (candidate.equals(tag)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getAllDeviceStatus(java.lang.String, java.lang.String, boolean)
+     */
+    public String getAllDeviceStatus(final String measureFormat,
+            final String where, final boolean timing,
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // time the request phases, if required, on its own response
+                final ServerTiming serverTiming = request.startTiming(timing);
+                if (timing)
+                {
+                    try
+                    {
+                        return DeviceRESTEndpoint.this.composeAllDeviceStatus(
+                                measureFormat, where, serverTiming);
+                    }
+                    finally
+                    {
+                        DeviceRESTEndpoint.this.setServerTiming(httpResponse,
+                                serverTiming);
+                    }
+                }
+
+                // share the response among identical concurrent requests
+                return DeviceRESTEndpoint.this.collapse("json:/status?measure="
+                        + measureFormat + "&where=" + where,
+                        new Callable<String>()
+                        {
+                            @Override
+                            public String call() throws Exception
+                            {
+                                return DeviceRESTEndpoint.this
+                                        .composeAllDeviceStatus(measureFormat,
+                                                where, serverTiming);
+                            }
+                        });
+            }
+        };
+
+        return this.measured("getAllDeviceStatus", this.statusLane, body);
+    }
+
+    /**
+     * Compose the JSON description of the status of all the devices, or of
+     * the devices matching the given conditions
+     * 
+     * @param measureFormat
+     *            the representation of measures
+     * @param where
+     *            the comma-separated state:value conditions, may be null
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     * @return the JSON description of the device states
+     */
+    private String composeAllDeviceStatus(String measureFormat, String where,
+            ServerTiming serverTiming)
+    {
+        // the response
+        String responseAsString = "";
+        boolean listIsEmpty = true;
+
+        // check whether measures shall be split in value and unit
+        boolean numericMeasures = DeviceRESTApi.NUMERIC_MEASURES
+                .equalsIgnoreCase(measureFormat);
+
+        // only query the devices matching the given conditions
+        if (where != null)
+            return this.getMatchingDeviceStatus(where, numericMeasures,
+                    serverTiming);
+
+        // get all the installed device services
+        try
+        {
+            // get the device service references
+            long begin = serverTiming.begin();
+            ServiceReference<?>[] allDevices = this.context
+                    .getAllServiceReferences(
+                            org.osgi.service.device.Device.class.getName(),
+                            null);
+            serverTiming.end("registry", begin);
+
+            // check not null
+            if (allDevices != null)
+            {
+                // stream the response body as json
+                StringWriter writer = new StringWriter();
+                JsonGenerator generator = this.createJsonGenerator(writer);
+
+                // open the object wrapping the status of all devices
+                generator.writeStartObject();
+                generator.writeFieldName(DeviceStatusWriter.DEVICES_STATUS);
+                generator.writeStartArray();
+
+                // iterate over all devices
+                for (int i = 0; i < allDevices.length; i++)
+                {
+                    // get the OSGi service pointed by the current device
+                    // reference
+                    begin = serverTiming.begin();
+                    Object device = this.context.getService(allDevices[i]);
+                    serverTiming.end("registry", begin);
+
+                    // check if the service belongs to the set of dog devices
+                    if (device instanceof ControllableDevice)
+                    {
+                        // write the status of the current device
+                        this.writeControllableStatus(generator,
+                                (ControllableDevice) device, allDevices[i],
+                                numericMeasures, serverTiming);
+                        // if we are here it means that the list will not be
+                        // empty
+                        listIsEmpty = false;
+                    }
+                    else
+                    {
+                        // keep the same array layout of the complete list of
+                        // device services
+                        generator.writeNull();
+                    }
+
+                    begin = serverTiming.begin();
+                    this.context.ungetService(allDevices[i]);
+                    serverTiming.end("registry", begin);
+                }
+
+                // close the array and the wrapping object
+                begin = serverTiming.begin();
+                generator.writeEndArray();
+                generator.writeEndObject();
+                generator.close();
+
+                responseAsString = writer.toString();
+                serverTiming.end("serialize", begin);
+            }
+
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error while composing the response", e);
+        }
+
+        // if the responseAsString variable is empty we have to send an HTTP
+        // response
+        // 404 Not found
+        if (responseAsString.isEmpty() || listIsEmpty == true)
+        {
+            // launch the exception responsible for sending the HTTP response
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        else
+            return responseAsString;
+    }
+
+    /**
+     * Get the status of the devices currently having all the given state
+     * values. Candidates are found through the state index, and only their
+     * states are read; candidates whose states no longer match are left out.
+     * 
+     * @param where
+     *            the comma-separated state:value conditions, e.g.,
+     *            OnOffState:on
+     * @param numericMeasures
+     *            true to write measures as a numeric value and a separate
+     *            unit
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     * @return the JSON description of the matching device states
+     */
+    private String getMatchingDeviceStatus(String where,
+            boolean numericMeasures, ServerTiming serverTiming)
+    {
+        // parse the conditions
+        List<String> keys = new ArrayList<String>();
+        for (String condition : where.split(","))
+        {
+            int separator = condition.indexOf(':');
+            if ((separator <= 0) || (separator == condition.length() - 1))
+                throw new WebApplicationException(Response.Status.BAD_REQUEST);
+
+            keys.add(StateIndex.key(condition.substring(0, separator).trim(),
+                    condition.substring(separator + 1).trim()));
+        }
+
+        // the response
+        String responseAsString = "";
+
+        try
+        {
+            // get the candidate devices from the index
+            long begin = serverTiming.begin();
+            Set<String> candidates = this.stateIndex.lookup(keys);
+            serverTiming.end("index", begin);
+
+            // stream the response body as json
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = this.createJsonGenerator(writer);
+
+            // open the object wrapping the status of the matching devices
+            generator.writeStartObject();
+            generator.writeFieldName(DeviceStatusWriter.DEVICES_STATUS);
+            generator.writeStartArray();
+
+            if (!candidates.isEmpty())
+            {
+                // create a filter for getting the candidate devices only
+                StringBuilder deviceFilter = new StringBuilder();
+                deviceFilter.append("(&(").append(Constants.DEVICE_CATEGORY)
+                        .append("=*)(|");
+                for (String candidate : candidates)
+                    deviceFilter.append('(').append(DeviceCostants.DEVICEURI)
+                            .append('=')
+                            .append(DeviceRESTEndpoint.escapeFilter(candidate))
+                            .append(')');
+                deviceFilter.append("))");
+
+                // get the device service references
+                begin = serverTiming.begin();
+                ServiceReference<?>[] matchingDevices = this.context
+                        .getAllServiceReferences(
+                                org.osgi.service.device.Device.class.getName(),
+                                deviceFilter.toString());
+                serverTiming.end("registry", begin);
+
+                if (matchingDevices != null)
+                {
+                    for (int i = 0; i < matchingDevices.length; i++)
+                    {
+                        begin = serverTiming.begin();
+                        Object device = this.context
+                                .getService(matchingDevices[i]);
+                        serverTiming.end("registry", begin);
+
+                        // write the device status, if still matching
+                        if (device instanceof ControllableDevice)
+                            this.writeControllableStatus(generator,
+                                    (ControllableDevice) device,
+                                    matchingDevices[i], numericMeasures, keys,
+                                    serverTiming);
+
+                        begin = serverTiming.begin();
+                        this.context.ungetService(matchingDevices[i]);
+                        serverTiming.end("registry", begin);
+                    }
+                }
+            }
+
+            // close the array and the wrapping object
+            begin = serverTiming.begin();
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.close();
+
+            responseAsString = writer.toString();
+            serverTiming.end("serialize", begin);
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error while composing the status of the devices matching "
+                            + where,
+                    e);
+            throw new WebApplicationException(
+                    Response.Status.INTERNAL_SERVER_ERROR);
+        }
+
+        return responseAsString;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getDeviceStatus(java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    public String getDeviceStatus(final String deviceId,
+            final String measureFormat, final boolean timing,
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+                request.describe(deviceId, null, null);
+
+                // time the request phases, if required, on its own response
+                final ServerTiming serverTiming = request.startTiming(timing);
+                if (timing)
+                {
+                    try
+                    {
+                        return DeviceRESTEndpoint.this.composeDeviceStatus(
+                                deviceId, measureFormat, serverTiming);
+                    }
+                    finally
+                    {
+                        DeviceRESTEndpoint.this.setServerTiming(httpResponse,
+                                serverTiming);
+                    }
+                }
+
+                // share the response among identical concurrent requests
+                return DeviceRESTEndpoint.this.collapse("json:/" + deviceId
+                        + "/status?measure=" + measureFormat,
+                        new Callable<String>()
+                        {
+                            @Override
+                            public String call() throws Exception
+                            {
+                                return DeviceRESTEndpoint.this
+                                        .composeDeviceStatus(deviceId,
+                                                measureFormat, serverTiming);
+                            }
+                        });
+            }
+        };
+
+        return this.measured("getDeviceStatus", this.statusLane, body);
+    }
+
+    /**
+     * Compose the JSON description of the status of the given device
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @param measureFormat
+     *            the representation of measures
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     * @return the JSON description of the device status
+     */
+    private String composeDeviceStatus(String deviceId, String measureFormat,
+            ServerTiming serverTiming)
+    {
+        // the response
+        String responseAsString = "";
+        boolean listIsEmpty = true;
+
+        // check whether measures shall be split in value and unit
+        boolean numericMeasures = DeviceRESTApi.NUMERIC_MEASURES
+                .equalsIgnoreCase(measureFormat);
+
+        // unknown devices: 404 Not found, without querying the registry
+        if (this.isMissing(deviceId))
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+
+        // create filter for getting the desired device
+        String deviceFilter = String.format("(&(%s=*)(%s=%s))",
+                Constants.DEVICE_CATEGORY, DeviceCostants.DEVICEURI, deviceId);
+
+        try
+        {
+            // get the device service references
+            long begin = serverTiming.begin();
+            ServiceReference<?>[] deviceService = this.context
+                    .getAllServiceReferences(
+                            org.osgi.service.device.Device.class.getName(),
+                            deviceFilter);
+            serverTiming.end("registry", begin);
+
+            // only one device with the given deviceId can exists in the
+            // framework
+            if (deviceService != null && deviceService.length == 1)
+            {
+                // get the OSGi service pointed by the current device
+                // reference
+                begin = serverTiming.begin();
+                Object device = this.context.getService(deviceService[0]);
+                serverTiming.end("registry", begin);
+
+                if (device instanceof ControllableDevice)
+                {
+                    // stream the response body as json
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = this.createJsonGenerator(writer);
+                    this.writeControllableStatus(generator,
+                            (ControllableDevice) device, deviceService[0],
+                            numericMeasures, serverTiming);
+                    begin = serverTiming.begin();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                    serverTiming.end("serialize", begin);
+
+                    // if we are here it means that the list will not be
+                    // empty
+                    listIsEmpty = false;
+                }
+
+                begin = serverTiming.begin();
+                this.context.ungetService(deviceService[0]);
+                serverTiming.end("registry", begin);
+            }
+            else if (deviceService == null)
+            {
+                // remember the miss
+                this.negativeCache.recordMiss(deviceId);
+            }
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error while composing the response for the status of "
+                            + deviceId,
+                    e);
+        }
+
+        // if the responseAsString variable is empty we have to send an HTTP
+        // response
+        // 404 Not found
+        if (responseAsString.isEmpty() || listIsEmpty == true)
+        {
+            // launch the exception responsible for sending the HTTP response
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        else
+            return responseAsString;
+    }
+
+    /**
+     * Write the JSON representation for the status of a given
+     * {@link ControllableDevice} object on the given {@link JsonGenerator}.
+     * 
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param device
+     *            the {@link ControllableDevice} to query for the status
+     * @param deviceService
+     *            the OSGi service reference for the given
+     *            {@link ControllableDevice}
+     * @param numericMeasures
+     *            true to write measures as a numeric value and a separate
+     *            unit
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     * @throws Exception
+     */
+    private void writeControllableStatus(JsonGenerator generator,
+            ControllableDevice device, ServiceReference<?> deviceService,
+            boolean numericMeasures, ServerTiming serverTiming)
+            throws Exception
+    {
+        this.writeControllableStatus(generator, device, deviceService,
+                numericMeasures, null, serverTiming);
+    }
+
+    /**
+     * Write the JSON representation for the status of a given
+     * {@link ControllableDevice} object on the given {@link JsonGenerator},
+     * provided that its current states satisfy the given state index keys.
+     * 
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param device
+     *            the {@link ControllableDevice} to query for the status
+     * @param deviceService
+     *            the OSGi service reference for the given
+     *            {@link ControllableDevice}
+     * @param numericMeasures
+     *            true to write measures as a numeric value and a separate
+     *            unit
+     * @param keys
+     *            the {@link StateIndex} keys to satisfy, null for none
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     * @return true if the status has been written
+     * @throws Exception
+     */
+    private boolean writeControllableStatus(JsonGenerator generator,
+            ControllableDevice device, ServiceReference<?> deviceService,
+            boolean numericMeasures, List<String> keys,
+            ServerTiming serverTiming) throws Exception
+    {
+        // get the device id
+        String deviceId = device.getDeviceDescriptor().getDeviceURI();
+
+        // get the device status, possibly cached
+        Map<String, State> allStates = null;
+        long begin = serverTiming.begin();
+        DeviceStatus state = this.loadDeviceStatus(device, deviceId);
+        serverTiming.end("state", begin);
+        if (state != null)
+        {
+            allStates = state.getStates();
+        }
+
+        // skip devices not satisfying the required state values
+        if ((keys != null) && (!StateIndex.matches(allStates, keys)))
+            return false;
+
+        // stream the device id, its activation status and its states
+        begin = serverTiming.begin();
+        this.statusWriter.writeDeviceStatus(generator, deviceId,
+                Boolean.valueOf((String) deviceService
+                        .getProperty(DeviceCostants.ACTIVE)),
+                allStates, numericMeasures);
+        serverTiming.end("serialize", begin);
+
+        return true;
+    }
+
+    /**
+     * Keep the state index and the state history up-to-date with the state
+     * changes notified by the devices
+     * 
+     * @param event
+     *            the notification {@link Event}
+     */
+    @Override
+    public void handleEvent(Event event)
+    {
+        Object notification = event.getProperty(EventConstants.EVENT);
+
+        if (notification instanceof StateChangeNotification)
+        {
+            StateChangeNotification stateChange = (StateChangeNotification) notification;
+            String deviceId = stateChange.getDeviceUri();
+            State newState = stateChange.getNewState();
+
+            if ((deviceId != null) && (newState != null))
+            {
+                this.stateIndex.updateState(deviceId, newState);
+                this.history.record(deviceId, newState,
+                        System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Read, in background, the states of a device, e.g., just registered, so
+     * that they are indexed before any change is notified
+     * 
+     * @param reference
+     *            the {@link ServiceReference} of the device
+     * @param deviceId
+     *            the device unique identifier
+     */
+    private void scheduleStatusRead(final ServiceReference<?> reference,
+            final String deviceId)
+    {
+        ScheduledExecutorService executor = this.backgroundExecutor;
+
+        if (executor != null)
+        {
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        DeviceRESTEndpoint.this.readStatus(reference,
+                                deviceId);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // the bundle is being deactivated
+            }
+        }
+    }
+
+    /**
+     * Read the states of a device through the status cache, feeding the
+     * state index; failures are only logged. To be run off the request path.
+     * 
+     * @param reference
+     *            the {@link ServiceReference} of the device
+     * @param deviceId
+     *            the device unique identifier
+     */
+    private void readStatus(ServiceReference<?> reference, String deviceId)
+    {
+        // the logger and the context are dropped on deactivation
+        LogHelper currentLogger = this.logger;
+        BundleContext currentContext = this.context;
+        if ((currentLogger == null) || (currentContext == null))
+            return;
+
+        try
+        {
+            Object device = currentContext.getService(reference);
+
+            if (device instanceof ControllableDevice)
+                this.loadDeviceStatus((ControllableDevice) device, deviceId);
+        }
+        catch (Exception e)
+        {
+            // a single unresponsive device shall not stop the refresh
+            currentLogger.log(LogService.LOG_DEBUG,
+                    "Unable to read the status of " + deviceId, e);
+        }
+        finally
+        {
+            try
+            {
+                currentContext.ungetService(reference);
+            }
+            catch (IllegalStateException e)
+            {
+                // the bundle is being stopped
+            }
+        }
+    }
+
+    /**
+     * Read the states of all the registered devices, through the status
+     * cache, to bring the state index up-to-date. To be run off the request
+     * path; only done on warm-up and periodically if explicitly enabled, as
+     * it queries every device.
+     */
+    private void refreshStateIndex()
+    {
+        // the logger and the context are dropped on deactivation
+        LogHelper currentLogger = this.logger;
+        BundleContext currentContext = this.context;
+
+        try
+        {
+            // get the device service references
+            ServiceReference<?>[] allDevices = currentContext
+                    .getAllServiceReferences(
+                            org.osgi.service.device.Device.class.getName(),
+                            null);
+
+            if (allDevices != null)
+            {
+                for (int i = 0; i < allDevices.length; i++)
+                {
+                    Object device = currentContext.getService(allDevices[i]);
+
+                    if (device instanceof ControllableDevice)
+                    {
+                        // loading the status updates the index
+                        String deviceId = ((ControllableDevice) device)
+                                .getDeviceDescriptor().getDeviceURI();
+
+                        try
+                        {
+                            this.loadDeviceStatus((ControllableDevice) device,
+                                    deviceId);
+                        }
+                        catch (Exception e)
+                        {
+                            // a single unresponsive device shall not stop the
+                            // refresh
+                            currentLogger.log(LogService.LOG_DEBUG,
+                                    "Unable to read the status of " + deviceId,
+                                    e);
+                        }
+                    }
+
+                    currentContext.ungetService(allDevices[i]);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            currentLogger.log(LogService.LOG_WARNING,
+                    "Error while refreshing the state index", e);
+        }
+    }
 
-                // iterate over the state values
-                for (int j = 0; j < currentStateValues.length; j++)
+    /**
+     * Get the status of the given device through the read-through status
+     * cache: concurrent requests for the same device share a single call to
+     * {@link Controllable#getState()}, whose result is then retained for the
+     * time-to-live configured for the device category or technology.
+     * 
+     * @param device
+     *            the {@link ControllableDevice} to query for the status
+     * @param deviceId
+     *            the device unique identifier
+     * @return the device status, may be null
+     * @throws Exception
+     */
+    private DeviceStatus loadDeviceStatus(final ControllableDevice device,
+            final String deviceId) throws Exception
+    {
+        // the lookup is a hit unless the state is read by this thread
+        FlightRecorderEventType.Event lookup = DeviceRESTEndpoint.CACHE_EVENT
+                .begin();
+        final boolean[] read = lookup.isRecorded() ? new boolean[1] : null;
+
+        DeviceStatus status = this.statusCache.get(deviceId,
+                this.getStatusTtl(device.getDeviceDescriptor()),
+                new Callable<DeviceStatus>()
                 {
-                    // get state value features
-                    HashMap<String, Object> features = currentStateValues[j]
-                            .getFeatures();
+                    @Override
+                    public DeviceStatus call() throws Exception
+                    {
+                        long start = System.nanoTime();
+                        FlightRecorderEventType.Event event = DeviceRESTEndpoint.STATUS_EVENT
+                                .begin();
+                        DeviceStatus state = ((Controllable) device)
+                                .getState();
+                        DeviceRESTEndpoint.this.metrics
+                                .recordOperation("getState", start);
+
+                        // feed the state history, the state index and the
+                        // redundant command filter
+                        Map<String, State> allStates = (state != null)
+                                ? state.getStates() : null;
+                        event.commit(deviceId,
+                                (allStates != null) ? allStates.size() : 0);
+                        if (read != null)
+                            read[0] = true;
+                        DeviceRESTEndpoint.this.history.record(deviceId,
+                                allStates, System.currentTimeMillis());
+                        DeviceRESTEndpoint.this.stateIndex.update(deviceId,
+                                allStates);
+                        RedundantCommandFilter redundantCommands = DeviceRESTEndpoint.this.redundantCommands;
+                        if (redundantCommands != null)
+                            redundantCommands.observe(deviceId, allStates,
+                                    start);
+
+                        return state;
+                    }
+                });
+
+        if (read != null)
+            lookup.commit("status", deviceId, !read[0]);
+
+        return status;
+    }
+
+    /**
+     * Get the time-to-live of the cached status of a device, looking for a
+     * configuration specific to the device category (either the full or the
+     * simple name), then to the device technology, and falling back to the
+     * default time-to-live.
+     * 
+     * @param deviceDescriptor
+     *            the device descriptor
+     * @return the time-to-live, in ms
+     */
+    private long getStatusTtl(DeviceDescriptor deviceDescriptor)
+    {
+        // nothing to look up
+        if (this.statusTtls.isEmpty())
+            return this.defaultStatusTtl;
+
+        Long ttl = null;
+        String category = deviceDescriptor.getDeviceCategory();
+
+        if (category != null)
+        {
+            ttl = this.statusTtls.get(category);
+            if (ttl == null)
+                ttl = this.statusTtls
+                        .get(category.substring(category.lastIndexOf('.') + 1));
+        }
+
+        if ((ttl == null) && (deviceDescriptor.getTechnology() != null))
+            ttl = this.statusTtls.get(deviceDescriptor.getTechnology());
+
+        return (ttl != null) ? ttl : this.defaultStatusTtl;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getStatusCacheStatistics()
+     */
+    @Override
+    public String getStatusCacheStatistics(
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                // the response
+                String responseAsString = "";
 
-                    // prepare the map to store in the response
-                    // body
-                    HashMap<String, Object> responseBodyFeatures = new HashMap<String, Object>();
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
 
-                    // iterate over the features
-                    for (String featureKey : features.keySet())
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    DeviceRESTEndpoint.this.statusCache
+                            .writeStatistics(generator);
+                    generator.writeObjectFieldStart("negative");
+                    DeviceRESTEndpoint.this.negativeCache
+                            .writeStatistics(generator);
+                    generator.writeEndObject();
+                    if (DeviceRESTEndpoint.this.requestFlights != null)
                     {
-                        // check the "value" feature and, if it
-                        // is an instance of measure, serialize
-                        // it as a String
-                        if (featureKey.contains("Value"))
-                        {
-                            if (features
-                                    .get(featureKey) instanceof Measure<?, ?>)
-                                responseBodyFeatures.put("value",
-                                        features.get(featureKey).toString());
-                            else
-                                responseBodyFeatures.put("value",
-                                        features.get(featureKey));
+                        generator.writeObjectFieldStart("requests");
+                        DeviceRESTEndpoint.this.requestFlights
+                                .writeStatistics(generator);
+                        generator.writeEndObject();
+                    }
+                    DescriptorWriteBehind currentWriteBehind;
+                    currentWriteBehind = DeviceRESTEndpoint.this.writeBehind;
+                    if (currentWriteBehind != null)
+                    {
+                        generator.writeObjectFieldStart("metadata");
+                        currentWriteBehind.writeStatus(generator);
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndObject();
+                    generator.close();
 
-                        }
-                        else
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the status cache statistics",
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getStatusCacheStatistics", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getMetricsInJson()
+     */
+    @Override
+    public String getMetricsInJson(final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                // the response
+                String responseAsString = "";
+
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    DeviceRESTEndpoint.this.metrics.writeJson(generator,
+                            DeviceRESTEndpoint.this.warmUpTime);
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the endpoint metrics", e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getMetricsInJson", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getMetricsInText()
+     */
+    @Override
+    public String getMetricsInText(final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                StringBuilder metricsAsText = new StringBuilder();
+                DeviceRESTEndpoint.this.metrics.writePrometheus(metricsAsText,
+                        DeviceRESTEndpoint.this.warmUpTime);
+
+                return metricsAsText.toString();
+            }
+        };
+
+        return this.measured("getMetricsInText", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getDeviceStateHistory(java.lang.String, java.lang.String, long, long,
+     * long, java.lang.String)
+     */
+    @Override
+    public String getDeviceStateHistory(final String deviceId,
+            final String stateName, final long from, final long to,
+            final long bucket, final String aggregate,
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+                request.describe(deviceId, null, null);
+
+                // share the response among identical concurrent requests
+                return DeviceRESTEndpoint.this.collapse("json:/" + deviceId
+                        + "/status/" + stateName + "/history?from=" + from
+                        + "&to=" + to + "&bucket=" + bucket + "&aggregate="
+                        + aggregate,
+                        new Callable<String>()
                         {
-                            Object value = features.get(featureKey);
+                            @Override
+                            public String call() throws Exception
+                            {
+                                return DeviceRESTEndpoint.this
+                                        .composeDeviceStateHistory(deviceId,
+                                                stateName, from, to, bucket,
+                                                aggregate);
+                            }
+                        });
+            }
+        };
 
-                            if ((!(value instanceof String))
-                                    || ((value instanceof String)
-                                            && (!((String) value).isEmpty())))
-                                responseBodyFeatures.put(featureKey,
-                                        features.get(featureKey));
-                        }
+        return this.measured("getDeviceStateHistory", this.statusLane, body);
+    }
+
+    /**
+     * Compose the JSON description of the history of a device state
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @param stateName
+     *            the state name
+     * @param from
+     *            the range start (ms since epoch)
+     * @param to
+     *            the range end (ms since epoch)
+     * @param bucket
+     *            the bucket duration (ms), 0 for raw samples
+     * @param aggregate
+     *            the comma-separated aggregation functions
+     * @return the JSON description of the state history
+     */
+    private String composeDeviceStateHistory(String deviceId,
+            String stateName, long from, long to, long bucket,
+            String aggregate)
+    {
+        // the response
+        String responseAsString = "";
+
+        // parse the required aggregation functions, if any
+        EnumSet<Aggregate> aggregates = null;
+        if (bucket > 0)
+        {
+            try
+            {
+                aggregates = Aggregate.parse(aggregate);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // unknown aggregation function
+                throw new WebApplicationException(
+                        Response.Status.BAD_REQUEST);
+            }
+        }
+
+        // get the history of the required state, if any
+        StateHistory stateHistory = this.history.getHistory(deviceId,
+                stateName);
+
+        if (stateHistory != null)
+        {
+            try
+            {
+                // stream the samples in the required range as json
+                StringWriter writer = new StringWriter();
+                JsonGenerator generator = this.createJsonGenerator(writer);
+                generator.writeStartObject();
+                generator.writeStringField("id", deviceId);
+                generator.writeStringField("state",
+                        stateHistory.getStateClass().getSimpleName());
+                if (aggregates != null)
+                    stateHistory.writeAggregate(generator, from, to, bucket,
+                            aggregates, this.maxHistoryBuckets);
+                else
+                    stateHistory.write(generator, from, to);
+                generator.writeEndObject();
+                generator.close();
+
+                responseAsString = writer.toString();
+            }
+            catch (IllegalArgumentException e)
+            {
+                // too many buckets required
+                throw new WebApplicationException(
+                        Response.Status.BAD_REQUEST);
+            }
+            catch (Exception e)
+            {
+                this.logger.log(LogService.LOG_ERROR,
+                        "Error while composing the history of " + stateName
+                                + " for " + deviceId,
+                        e);
+            }
+        }
+
+        // no history for the given device and state: 404 Not found
+        if (responseAsString.isEmpty())
+        {
+            // launch the exception responsible for sending the HTTP response
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        else
+            return responseAsString;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getDeviceCommandStatistics(java.lang.String)
+     */
+    @Override
+    public String getDeviceCommandStatistics(final String deviceId,
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // the response
+                String responseAsString = "";
+                boolean tracked = false;
+
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    tracked = DeviceRESTEndpoint.this.commandStatistics
+                            .writeDevice(generator, deviceId);
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the command statistics of "
+                                    + deviceId,
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                // no commands recently sent to the device: 404 Not found
+                if (!tracked)
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getDeviceCommandStatistics", null, body);
+    }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getCommandStatistics()
+     */
+    @Override
+    public String getCommandStatistics(final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    DeviceRESTEndpoint.this.commandStatistics
+                            .writeAll(generator);
+                    if (DeviceRESTEndpoint.this.idempotencyStore != null)
+                    {
+                        generator.writeObjectFieldStart("idempotency");
+                        DeviceRESTEndpoint.this.idempotencyStore
+                                .writeStatistics(generator);
+                        generator.writeEndObject();
                     }
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the command statistics", e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getCommandStatistics", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getCommandDispatchState()
+     */
+    @Override
+    public String getCommandDispatchState(
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                CommandDispatcher dispatcher = DeviceRESTEndpoint.this
+                        .commandDispatcher;
+                if (dispatcher == null)
+                    throw new WebApplicationException(
+                            Response.Status.SERVICE_UNAVAILABLE);
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeObjectFieldStart("technologies");
+                    dispatcher.write(generator);
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the command dispatch state",
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getCommandDispatchState", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getBulkheads()
+     */
+    @Override
+    public String getBulkheads(final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeObjectFieldStart("catalogue");
+                    DeviceRESTEndpoint.this.catalogueLane.write(generator);
+                    generator.writeEndObject();
+                    generator.writeObjectFieldStart("status");
+                    DeviceRESTEndpoint.this.statusLane.write(generator);
+                    generator.writeEndObject();
+                    generator.writeObjectFieldStart("commands");
+                    DeviceRESTEndpoint.this.commandLane.write(generator);
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the bulkhead state", e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
 
-                    // store the current state value
-                    responseBodyStateValues[j] = responseBodyFeatures;
+                return responseAsString;
+            }
+        };
+
+        return this.measured("getBulkheads", null, body);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * getSlowRequests()
+     */
+    @Override
+    public String getSlowRequests(final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    SlowRequestLog slowRequests = DeviceRESTEndpoint.this
+                            .metrics.getSlowRequestLog();
+
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeBooleanField("enabled",
+                            slowRequests != null);
+                    if (slowRequests != null)
+                        slowRequests.write(generator);
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the slow requests", e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
                 }
 
-                // store the state
-                deviceStateResponsePayload.getStatus().put(
-                        currentState.getClass().getSimpleName(),
-                        responseBodyStateValues);
+                return responseAsString;
             }
-        }
+        };
 
-        return deviceStateResponsePayload;
+        return this.measured("getSlowRequests", null, body);
     }
 
     @Override
-    public Response executeCommandGet(String deviceId, String commandName,
+    public Response executeCommandGet(final String deviceId,
+            final String commandName, final String idempotencyKey,
             HttpServletResponse httpResponse)
     {
-        // this.setCORSSupport(httpResponse);
-        return this.executeCommand(deviceId, commandName, null);
+        RequestBody<Response> body = new RequestBody<Response>()
+        {
+            @Override
+            public Response run(EndpointMetrics.Request request)
+            {
+                // DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+                return DeviceRESTEndpoint.this.executeCommandOnce("GET",
+                        deviceId, commandName, null, idempotencyKey, request);
+            }
+        };
+
+        return this.measured("executeCommandGet", this.commandLane, body);
     }
 
     @Override
-    public Response executeCommandPost(String deviceId, String commandName,
-            String commandParameters, HttpServletResponse httpResponse)
+    public Response executeCommandPost(final String deviceId,
+            final String commandName, final String commandParameters,
+            final String idempotencyKey, HttpServletResponse httpResponse)
     {
-        // this.setCORSSupport(httpResponse);
-        return this.executeCommand(deviceId, commandName, commandParameters);
+        RequestBody<Response> body = new RequestBody<Response>()
+        {
+            @Override
+            public Response run(EndpointMetrics.Request request)
+            {
+                // DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+                return DeviceRESTEndpoint.this.executeCommandOnce("POST",
+                        deviceId, commandName, commandParameters,
+                        idempotencyKey, request);
+            }
+        };
+
+        return this.measured("executeCommandPost", this.commandLane, body);
     }
 
     @Override
-    public Response executeCommandPut(String deviceId, String commandName,
-            String commandParameters, HttpServletResponse httpResponse)
+    public Response executeCommandPut(final String deviceId,
+            final String commandName, final String commandParameters,
+            final String idempotencyKey, HttpServletResponse httpResponse)
+    {
+        RequestBody<Response> body = new RequestBody<Response>()
+        {
+            @Override
+            public Response run(EndpointMetrics.Request request)
+            {
+                // DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+                return DeviceRESTEndpoint.this.executeCommandOnce("PUT",
+                        deviceId, commandName, commandParameters,
+                        idempotencyKey, request);
+            }
+        };
+
+        return this.measured("executeCommandPut", this.commandLane, body);
+    }
+
+    /**
+     * Execute a command at most once per idempotency key, if given: a
+     * retried request carrying the same key gets the outcome of the first
+     * one, without sending the command again. Only the outcomes of commands
+     * that may have reached the device, i.e., executed or timed out, are
+     * kept; the other failures leave the retry free to execute the command.
+     * 
+     * @param method
+     *            the HTTP method of the request
+     * @param deviceId
+     *            the device unique identifier
+     * @param commandName
+     *            the command to execute
+     * @param commandParameters
+     *            the command parameters, may be null
+     * @param idempotencyKey
+     *            the idempotency key, null if the command shall be executed
+     *            anyway
+     * @param request
+     *            the request being measured, described for the slow request
+     *            log
+     */
+    private Response executeCommandOnce(String method, final String deviceId,
+            final String commandName, final String commandParameters,
+            String idempotencyKey, final EndpointMetrics.Request request)
     {
-        // this.setCORSSupport(httpResponse);
-        return this.executeCommand(deviceId, commandName, commandParameters);
+        IdempotencyStore<Integer> store = this.idempotencyStore;
+        if ((idempotencyKey == null) || (idempotencyKey.isEmpty())
+                || (store == null))
+            return this.executeCommand(deviceId, commandName,
+                    commandParameters, request);
+
+        // true if the command is executed by this request, false if its
+        // outcome is replayed
+        final boolean[] executed = new boolean[1];
+        int status;
+
+        try
+        {
+            status = store.execute(idempotencyKey,
+                    method + " " + deviceId + "/" + commandName + " "
+                            + commandParameters,
+                    new Callable<Integer>()
+                    {
+                        @Override
+                        public Integer call() throws Exception
+                        {
+                            executed[0] = true;
+                            try
+                            {
+                                DeviceRESTEndpoint.this.executeCommand(
+                                        deviceId, commandName,
+                                        commandParameters, request);
+                                return Response.Status.OK.getStatusCode();
+                            }
+                            catch (WebApplicationException e)
+                            {
+                                // the command started, and may have been
+                                // executed late
+                                int failure = e.getResponse().getStatus();
+                                if (failure == Response.Status.GATEWAY_TIMEOUT
+                                        .getStatusCode())
+                                    return failure;
+                                throw e;
+                            }
+                        }
+                    });
+        }
+        catch (IdempotencyStore.ConflictException e)
+        {
+            // CONFLICT: the key was used for a different request
+            throw new WebApplicationException(Response.Status.CONFLICT);
+        }
+        catch (WebApplicationException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error while executing the command " + commandName
+                            + " on " + deviceId,
+                    e);
+            throw new WebApplicationException(
+                    Response.Status.INTERNAL_SERVER_ERROR);
+        }
+
+        if (status != Response.Status.OK.getStatusCode())
+            throw new WebApplicationException(status);
+
+        ResponseBuilder response = Response.ok()
+                .header("Access-Control-Allow-Origin", "*");
+        if (!executed[0])
+            response.header("Idempotent-Replayed", "true")
+                    .header("Access-Control-Expose-Headers",
+                            "Idempotent-Replayed");
+
+        return response.build();
     }
 
     /**
@@ -1028,21 +3319,180 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      * @param deviceId
      * @param commandName
      * @param commandParameters
+     * @param request
+     *            the request being measured, described for the slow request
+     *            log
      */
     private Response executeCommand(String deviceId, String commandName,
-            String commandParameters)
+            String commandParameters, EndpointMetrics.Request request)
     {
+        // unknown devices fail as before, without querying the registry
+        if (this.isMissing(deviceId))
+            throw new WebApplicationException(
+                    Response.Status.EXPECTATION_FAILED);
+
+        // send the command with the first parameters accepted by the device
+        List<Object[]> candidates = this
+                .parseCommandParameters(commandParameters);
+        request.describe(deviceId, commandName,
+                DeviceRESTEndpoint.getPayloadType(
+                        candidates.isEmpty() ? null : candidates.get(0)));
+        Status response = this.sendCommand(deviceId, commandName, candidates);
 
-        // set default value for the variable used to store the HTTP response by
-        // the right value: EXPECTATION_FAILED (If something goes wrong we will
-        // say to user that the command was not executed successfully)
-        // it was the best response status available
-        Status response = Response.Status.EXPECTATION_FAILED;
+        if (response != Response.Status.OK)
+        {
+            // launch the exception responsible for sending the HTTP response
+            throw new WebApplicationException(response);
+        }
 
-        // get the executor instance
-        Executor executor = Executor.getInstance();
+        return Response.ok().header("Access-Control-Allow-Origin", "*").build();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.polito.elite.dog.communication.rest.device.api.DeviceRESTApi#
+     * executeGroupCommand(java.lang.String, java.lang.String,
+     * java.lang.String, java.lang.String, java.lang.String)
+     */
+    @Override
+    public String executeGroupCommand(final String commandName,
+            final String location, final String category,
+            final String technology, final String commandParameters,
+            final HttpServletResponse httpResponse)
+    {
+        RequestBody<String> body = new RequestBody<String>()
+        {
+            @Override
+            public String run(EndpointMetrics.Request request)
+            {
+                DeviceRESTEndpoint.this.setCORSSupport(httpResponse);
+
+                // at least one selector is required, to avoid commanding the
+                // whole house by mistake
+                if ((location == null) && (category == null)
+                        && (technology == null))
+                    throw new WebApplicationException(
+                            Response.Status.BAD_REQUEST);
+
+                // select the devices through the catalogue indexes
+                List<CatalogueEntry> selected = DeviceRESTEndpoint.this
+                        .getCatalogue().select(location, category, technology);
+
+                if (selected.isEmpty())
+                    throw new WebApplicationException(
+                            Response.Status.NOT_FOUND);
+
+                // interpret the command parameters once for all the devices
+                final List<Object[]> candidates = DeviceRESTEndpoint.this
+                        .parseCommandParameters(commandParameters);
+                request.describe(null, commandName,
+                        DeviceRESTEndpoint.getPayloadType(candidates.isEmpty()
+                                ? null : candidates.get(0)));
+
+                // send the command to all the selected devices, in parallel up
+                // to the configured concurrency
+                List<Callable<Status>> commands = new ArrayList<Callable<Status>>();
+                for (final CatalogueEntry entry : selected)
+                {
+                    commands.add(new Callable<Status>()
+                    {
+                        @Override
+                        public Status call() throws Exception
+                        {
+                            return DeviceRESTEndpoint.this.sendCommand(
+                                    entry.getId(), commandName, candidates);
+                        }
+                    });
+                }
+
+                ExecutorService executor = DeviceRESTEndpoint.this
+                        .commandExecutor;
+                List<Future<Status>> results;
+                try
+                {
+                    if (executor == null)
+                        throw new RejectedExecutionException();
+
+                    results = executor.invokeAll(commands);
+                }
+                catch (InterruptedException | RejectedExecutionException e)
+                {
+                    // interrupted or deactivated while sending commands
+                    if (e instanceof InterruptedException)
+                        Thread.currentThread().interrupt();
+                    throw new WebApplicationException(
+                            Response.Status.SERVICE_UNAVAILABLE);
+                }
+
+                // the response
+                String responseAsString = "";
+
+                try
+                {
+                    int succeeded = 0;
+
+                    StringWriter writer = new StringWriter();
+                    JsonGenerator generator = DeviceRESTEndpoint.this
+                            .createJsonGenerator(writer);
+                    generator.writeStartObject();
+                    generator.writeStringField("command", commandName);
+                    generator.writeArrayFieldStart("results");
+                    for (int i = 0; i < selected.size(); i++)
+                    {
+                        Status status = results.get(i).get();
+                        if (status == Response.Status.OK)
+                            succeeded++;
+
+                        generator.writeStartObject();
+                        generator.writeStringField("id",
+                                selected.get(i).getId());
+                        generator.writeNumberField("status",
+                                status.getStatusCode());
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndArray();
+                    generator.writeNumberField("selected", selected.size());
+                    generator.writeNumberField("succeeded", succeeded);
+                    generator.writeNumberField("failed",
+                            selected.size() - succeeded);
+                    generator.writeEndObject();
+                    generator.close();
+
+                    responseAsString = writer.toString();
+                }
+                catch (Exception e)
+                {
+                    DeviceRESTEndpoint.this.logger.log(LogService.LOG_ERROR,
+                            "Error while composing the results of the group "
+                                    + "command " + commandName,
+                            e);
+                    throw new WebApplicationException(
+                            Response.Status.INTERNAL_SERVER_ERROR);
+                }
+
+                return responseAsString;
+            }
+        };
+
+        return this.measured("executeGroupCommand", this.commandLane, body);
+    }
 
-        // --- Use Jackson to interpret the type of data passed as value ---
+    /**
+     * Interpret the parameters of a command, given as the body of a POST/PUT
+     * request, using Jackson to detect the type of data passed as value. As a
+     * same body can be read as more than one payload type, e.g., as a
+     * {@link DoublePayload} or a {@link MeasurePayload}, all the readable
+     * interpretations are returned, in the order in which payloads are
+     * registered.
+     * 
+     * @param commandParameters
+     *            the command parameters, may be null or empty
+     * @return the candidate parameter arrays, to be tried in order
+     */
+    private List<Object[]> parseCommandParameters(String commandParameters)
+    {
+        List<Object[]> candidates = new ArrayList<Object[]>();
 
         // check if a post/put body is given, it is not an empty JSON object,
         // and convert it into an array of parameters
@@ -1059,59 +3509,331 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
                     CommandPayload<?> payload = this.mapper
                             .readValue(commandParameters, this.payloads.get(i));
 
-                    // if payload !=null
-                    executor.execute(context, deviceId, commandName,
-                            new Object[] { payload.getValue() });
-
-                    // set the variable used to store the HTTP response by the
-                    // right value
-                    // OK: the command was executed without exception
-                    response = Response.Status.OK;
-
-                    break;
+                    candidates.add(new Object[] { payload.getValue() });
                 }
                 catch (Exception e)
                 {
-                    // set the variable used to store the HTTP response by the
-                    // right value
-                    // EXPECTATION_FAILED: An exception occured so the command
-                    // was not executed as expected
-                    // it was the best response status available
-                    response = Response.Status.EXPECTATION_FAILED;
-                    // then proceed to the next trial
+                    // proceed to the next trial
                 }
             }
         }
         else
         {
-            // exec the command
+            // a command without parameters
+            candidates.add(new Object[] {});
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Send a command to a device, trying the candidate parameters in order
+     * until one is accepted by the device. The command is dispatched to the
+     * driver through the lane of the device technology, bounding the time
+     * spent waiting for a hanging driver.
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @param commandName
+     *            the command to execute
+     * @param candidates
+     *            the candidate parameter arrays
+     * @return OK if the command was executed, EXPECTATION_FAILED if no
+     *         candidate was accepted, SERVICE_UNAVAILABLE if the technology
+     *         circuit breaker is open or the command did not reach the driver
+     *         in time, GATEWAY_TIMEOUT if the driver did not answer in time
+     */
+    private Status sendCommand(final String deviceId, final String commandName,
+            final List<Object[]> candidates)
+    {
+        // a command leaving the device in its current state succeeds at once
+        RedundantCommandFilter redundantCommands = this.redundantCommands;
+        if ((redundantCommands != null) && (!candidates.isEmpty())
+                && (redundantCommands.isRedundant(deviceId, commandName,
+                        candidates.get(0))))
+        {
+            this.metrics.recordSuppressedCommand(commandName);
+            return Response.Status.OK;
+        }
+
+        long start = System.nanoTime();
+        FlightRecorderEventType.Event event = DeviceRESTEndpoint.COMMAND_EVENT
+                .begin();
+
+        // the device technology, selecting the dispatching lane
+        CatalogueEntry entry = this.getCatalogue().getEntry(deviceId);
+        String technology = (entry != null) ? entry.getTechnology() : null;
+
+        Status response;
+        Object[] sent = candidates.isEmpty() ? null : candidates.get(0);
+        Exception failure = null;
+
+        // no command to the device is redundant until this one completes
+        if (redundantCommands != null)
+            redundantCommands.commandStarted(deviceId);
+
+        try
+        {
+            CommandDispatcher dispatcher = this.commandDispatcher;
+            if (dispatcher == null)
+                throw new RejectedExecutionException("Deactivated");
+
+            sent = dispatcher.dispatch(technology, new Callable<Object[]>()
+            {
+                @Override
+                public Object[] call() throws Exception
+                {
+                    return DeviceRESTEndpoint.this.tryCommand(deviceId,
+                            commandName, candidates);
+                }
+            });
+
+            // OK: the command was executed without exception
+            response = Response.Status.OK;
+        }
+        catch (ExecutionException e)
+        {
+            // EXPECTATION_FAILED: an exception occurred so the command was
+            // not executed as expected; it was the best response status
+            // available
+            response = Response.Status.EXPECTATION_FAILED;
+            failure = (e.getCause() instanceof Exception)
+                    ? (Exception) e.getCause() : e;
+        }
+        catch (TimeoutException e)
+        {
+            // GATEWAY_TIMEOUT: the driver did not answer in time
+            response = Response.Status.GATEWAY_TIMEOUT;
+            failure = e;
+        }
+        catch (InterruptedException | RejectedExecutionException e)
+        {
+            // SERVICE_UNAVAILABLE: breaker open, technology saturated, or
+            // interrupted while waiting
+            response = Response.Status.SERVICE_UNAVAILABLE;
+            failure = e;
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            // whatever the outcome, the device state may have changed
+            this.statusCache.invalidate(deviceId);
+            if (redundantCommands != null)
+                redundantCommands.commandCompleted(deviceId);
+        }
+
+        this.metrics.recordOperation("sendCommand", start);
+
+        // account the command to the device and to its technology
+        this.commandStatistics.record(deviceId, technology,
+                System.nanoTime() - start, failure);
+
+        if (event.isRecorded())
+            event.commit(deviceId, commandName,
+                    DeviceRESTEndpoint.getPayloadType(sent),
+                    response.name());
+
+        return response;
+    }
+
+    /**
+     * Execute a command on a device, trying the candidate parameters in
+     * order until one is accepted by the device.
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @param commandName
+     *            the command to execute
+     * @param candidates
+     *            the candidate parameter arrays
+     * @return the accepted parameters
+     * @throws Exception
+     *             the failure of the last candidate, if none was accepted
+     */
+    private Object[] tryCommand(String deviceId, String commandName,
+            List<Object[]> candidates) throws Exception
+    {
+        // get the executor instance
+        Executor executor = Executor.getInstance();
+
+        Exception failure = new IllegalArgumentException(
+                "Unsupported command parameters");
+        for (Object[] parameters : candidates)
+        {
             try
             {
-                executor.execute(context, deviceId, commandName,
-                        new Object[] {});
-                // set the variable used to store the HTTP response by the right
-                // value
-                // OK: the command was executed without exception
-                response = Response.Status.OK;
+                // exec the command
+                executor.execute(this.context, deviceId, commandName,
+                        parameters);
+
+                return parameters;
             }
             catch (Exception e)
             {
-                // set the variable used to store the HTTP response by the right
-                // value
-                // EXPECTATION_FAILED: An exception occured so the command was
-                // not executed as expected
-                // it was the best response status available
-                response = Response.Status.EXPECTATION_FAILED;
+                // proceed to the next trial
+                failure = e;
             }
         }
 
-        if (response == Response.Status.EXPECTATION_FAILED)
+        throw failure;
+    }
+
+    /**
+     * Describe the type of the given command parameters
+     * 
+     * @param parameters
+     *            the command parameters, may be null
+     * @return the comma-separated simple names of the parameter classes,
+     *         "none" if there are no parameters
+     */
+    private static String getPayloadType(Object[] parameters)
+    {
+        if ((parameters == null) || (parameters.length == 0))
+            return "none";
+
+        StringBuilder payloadType = new StringBuilder();
+        for (Object parameter : parameters)
         {
-            // launch the exception responsible for sending the HTTP response
-            throw new WebApplicationException(response);
+            if (payloadType.length() > 0)
+                payloadType.append(',');
+            payloadType.append((parameter != null)
+                    ? parameter.getClass().getSimpleName() : "null");
         }
 
-        return Response.ok().header("Access-Control-Allow-Origin", "*").build();
+        return payloadType.toString();
+    }
+
+    /**
+     * Check whether the given device id is known to be missing, recording
+     * the lookup of the negative cache
+     * 
+     * @param deviceId
+     *            the device unique identifier
+     * @return true if no device with the given id exists
+     */
+    private boolean isMissing(String deviceId)
+    {
+        FlightRecorderEventType.Event lookup = DeviceRESTEndpoint.CACHE_EVENT
+                .begin();
+        boolean missing = this.negativeCache.isMissing(deviceId);
+        lookup.commit("negative", deviceId, missing);
+
+        return missing;
+    }
+
+    /**
+     * The body of an API method, run by
+     * {@link DeviceRESTEndpoint#measured(String, Bulkhead, RequestBody)}
+     * 
+     * @param <T>
+     *            the type of the response
+     */
+    private interface RequestBody<T>
+    {
+        /**
+         * Compose the response
+         * 
+         * @param request
+         *            the request being measured, to be described for the
+         *            slow request log and timed
+         * @return the response
+         */
+        T run(EndpointMetrics.Request request);
+    }
+
+    /**
+     * Serve a request of an API method: measure it, admit it in the bulkhead
+     * of its kind, if any, and record its failure, if any, always leaving the
+     * bulkhead and completing the measure
+     * 
+     * @param method
+     *            the name of the API method
+     * @param bulkhead
+     *            the {@link Bulkhead} of the request kind, null if none
+     * @param body
+     *            the {@link RequestBody} composing the response
+     * @return the response
+     */
+    private <T> T measured(String method, Bulkhead bulkhead,
+            RequestBody<T> body)
+    {
+        EndpointMetrics.Request request = this.metrics.start(method);
+        boolean admitted = false;
+        try
+        {
+            if (bulkhead != null)
+                admitted = this.enter(bulkhead);
+
+            return body.run(request);
+        }
+        catch (RuntimeException e)
+        {
+            throw request.failed(e);
+        }
+        finally
+        {
+            if (admitted)
+                bulkhead.exit();
+            request.end();
+        }
+    }
+
+    /**
+     * Enter the given bulkhead, failing the request if not admitted
+     * 
+     * @param bulkhead
+     *            the {@link Bulkhead} of the request kind
+     * @return true, once admitted
+     */
+    private boolean enter(Bulkhead bulkhead)
+    {
+        try
+        {
+            if (bulkhead.enter())
+                return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // SERVICE_UNAVAILABLE: too many requests of the same kind, or
+        // yielding to commands
+        throw new WebApplicationException(Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Run the computation of a GET response, sharing it with any identical
+     * request in flight, i.e., having the same representation, path and
+     * query, when request collapsing is enabled.
+     * 
+     * @param key
+     *            the key identifying the request
+     * @param computation
+     *            the computation of the serialized response
+     * @return the serialized response
+     */
+    private String collapse(String key, Callable<String> computation)
+    {
+        try
+        {
+            SingleFlight<String, String> flights = this.requestFlights;
+            return (flights != null) ? flights.execute(key, computation)
+                    : computation.call();
+        }
+        catch (WebApplicationException e)
+        {
+            // the HTTP response computed for all the requests
+            throw e;
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error while composing the response for " + key, e);
+            throw new WebApplicationException(
+                    Response.Status.INTERNAL_SERVER_ERROR);
+        }
     }
 
     /**
@@ -1123,6 +3845,8 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
      */
     private String generateXML(DogHomeConfiguration dhc)
     {
+        long start = System.nanoTime();
+
         String devicesXML = "";
 
         if (this.xmlMapper != null)
@@ -1151,9 +3875,96 @@ public class DeviceRESTEndpoint implements DeviceRESTApi
             }
         }
 
+        this.metrics.recordOperation("generateXML", start);
+
         return devicesXML;
     }
 
+    /**
+     * Create a {@link JsonGenerator} writing on the given {@link Writer},
+     * configured as the instance-level mapper.
+     * 
+     * @param writer
+     *            the {@link Writer} to write on
+     * @return the {@link JsonGenerator}
+     * @throws IOException
+     */
+    private JsonGenerator createJsonGenerator(Writer writer) throws IOException
+    {
+        // the mapper factory provides the mapper itself as codec
+        JsonGenerator generator = this.mapper.getFactory()
+                .createGenerator(writer);
+
+        // pretty printing, as the mapper
+        if (this.mapper.isEnabled(SerializationFeature.INDENT_OUTPUT))
+            generator.useDefaultPrettyPrinter();
+
+        return generator;
+    }
+
+    /**
+     * Create a {@link ThreadFactory} for daemon threads with the given name
+     * 
+     * @param name
+     *            the thread name prefix
+     * @return the {@link ThreadFactory}
+     */
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            // the number of created threads
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,
+                        name + "-" + this.count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Escape the characters having a special meaning in an OSGi (LDAP) filter
+     * value
+     * 
+     * @param value
+     *            the value to escape
+     * @return the escaped value
+     */
+    private static String escapeFilter(String value)
+    {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if ((c == '\\') || (c == '*') || (c == '(') || (c == ')'))
+                escaped.append('\\');
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Report the timing of the request phases in the Server-Timing header,
+     * readable by cross-origin clients too
+     * 
+     * @param response
+     *            the {@link HttpServletResponse} to set the header on
+     * @param serverTiming
+     *            the {@link ServerTiming} of the request phases
+     */
+    private void setServerTiming(HttpServletResponse response,
+            ServerTiming serverTiming)
+    {
+        response.setHeader("Server-Timing", serverTiming.toHeaderValue());
+        response.setHeader("Timing-Allow-Origin", "*");
+        response.setHeader("Access-Control-Expose-Headers", "Server-Timing");
+    }
+
     private void setCORSSupport(HttpServletResponse response)
     {
         response.addHeader("Access-Control-Allow-Origin", "*");
@@ -19,13 +19,16 @@ package it.polito.elite.dog.communication.rest.device.api;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -47,6 +50,26 @@ import javax.ws.rs.core.Response;
 @Path("/api/v1/devices/")
 public interface DeviceRESTApi
 {
+	/**
+	 * The value of the "measure" query parameter requiring measures to be
+	 * represented by a raw numeric value and a separate unit, e.g.,
+	 * <code>{"value": 21.5, "unit": "W"}</code> instead of
+	 * <code>{"value": "21.5 W"}</code>
+	 */
+	public static final String NUMERIC_MEASURES = "numeric";
+	
+	/**
+	 * The request header enabling, when set to true, the timing of the
+	 * request phases, reported in the Server-Timing response header
+	 */
+	public static final String SERVER_TIMING_HEADER = "X-Server-Timing";
+	
+	/**
+	 * The request header carrying the client-chosen key of a command, so that
+	 * retries of the same command are executed at most once
+	 */
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	
 	/**
 	 * Represents domotic devices handled by Dog and "controllable" applications
 	 * using this API.
@@ -69,7 +92,9 @@ public interface DeviceRESTApi
 	
 	/**
 	 * Represents a single domotic device handled by Dog, identified by a unique
-	 * device-id, and "controllable" by applications using this API.
+	 * device-id, and "controllable" by applications using this API. The
+	 * response carries an entity tag (ETag) of the device metadata, to be
+	 * used in the If-Match header of later updates.
 	 * 
 	 * @param deviceId
 	 *            the device unique identifier
@@ -82,7 +107,9 @@ public interface DeviceRESTApi
 	
 	/**
 	 * Represents a single domotic device handled by Dog, identified by a unique
-	 * device-id, and "controllable" by applications using this API.
+	 * device-id, and "controllable" by applications using this API. The
+	 * response carries an entity tag (ETag) of the device metadata, to be
+	 * used in the If-Match header of later updates.
 	 * 
 	 * @param deviceId
 	 *            the device unique identifier
@@ -97,51 +124,299 @@ public interface DeviceRESTApi
 	 * Update the location of a single domotic device handled by Dog, identified
 	 * by a unique device-id.
 	 * 
+	 * If the device updates are persisted in background, the response is 202
+	 * Accepted and the devices still to be persisted are listed by the status
+	 * cache statistics; 503 Service Unavailable reports that persisting the
+	 * device keeps failing, the update being retried later.
+	 * 
 	 * @param deviceId
 	 *            the device unique identifier
+	 * @param ifMatch
+	 *            the entity tag of the device, as last read, to reject the
+	 *            update if the device changed meanwhile; none to skip the check
 	 * @return 
 	 */
 	@PUT
 	@Path("/{device-id}/location")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response updateDeviceLocation(@PathParam("device-id") String deviceId, String location, @Context HttpServletResponse httpResponse);
+	public Response updateDeviceLocation(@PathParam("device-id") String deviceId, String location,
+			@HeaderParam("If-Match") String ifMatch, @Context HttpServletResponse httpResponse);
 	
 	/**
 	 * Update the description (i.e., the long name) of a single domotic device
 	 * handled by Dog, identified by a unique device-id.
 	 * 
+	 * If the device updates are persisted in background, the response is 202
+	 * Accepted and the devices still to be persisted are listed by the status
+	 * cache statistics; 503 Service Unavailable reports that persisting the
+	 * device keeps failing, the update being retried later.
+	 * 
 	 * @param deviceId
 	 *            the device unique identifier
+	 * @param ifMatch
+	 *            the entity tag of the device, as last read, to reject the
+	 *            update if the device changed meanwhile; none to skip the check
 	 * @return 
 	 */
 	@PUT
 	@Path("/{device-id}/description")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response updateDeviceDescription(@PathParam("device-id") String deviceId, String description, @Context HttpServletResponse httpResponse);
+	public Response updateDeviceDescription(@PathParam("device-id") String deviceId, String description,
+			@HeaderParam("If-Match") String ifMatch, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Update any subset of the metadata of a single domotic device handled by
+	 * Dog, identified by a unique device-id, i.e., its location (isIn) and its
+	 * description, with a single update of the device configuration.
+	 * 
+	 * If the device updates are persisted in background, the response is 202
+	 * Accepted and the devices still to be persisted are listed by the status
+	 * cache statistics; 503 Service Unavailable reports that persisting the
+	 * device keeps failing, the update being retried later.
+	 * 
+	 * @param deviceId
+	 *            the device unique identifier
+	 * @param metadata
+	 *            the JSON description of the device fields to update
+	 * @param ifMatch
+	 *            the entity tag of the device, as last read, to reject the
+	 *            update if the device changed meanwhile; none to skip the check
+	 * @return
+	 */
+	@PATCH
+	@Path("/{device-id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response updateDevice(@PathParam("device-id") String deviceId, String metadata,
+			@HeaderParam("If-Match") String ifMatch, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Update any subset of the metadata of many domotic devices handled by
+	 * Dog, given as a JSON array of devices, each identified by its id, with a
+	 * single update of the configuration of each device.
+	 * 
+	 * @param metadata
+	 *            the JSON array of the devices to update, e.g.,
+	 *            <code>[{"id": "Lamp1", "isIn": "Kitchen"}]</code>
+	 * @return the JSON summary of the per-device update results
+	 */
+	@PATCH
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public String updateDevices(String metadata, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the devices whose id, description or location contain words
+	 * starting with all the words of the given query, e.g., "kitch lamp",
+	 * ignoring the case. The path has two segments, so that it cannot shadow
+	 * the device whose id is "search".
+	 * 
+	 * @param query
+	 *            the words to search
+	 * @param limit
+	 *            the maximum number of devices to list
+	 * @return the JSON list of matching devices, with their description and
+	 *         location
+	 */
+	@GET
+	@Path("/catalogue/search")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String searchDevices(@QueryParam("q") String query, @QueryParam("limit") @DefaultValue("50") int limit,
+			@Context HttpServletResponse httpResponse);
 	
 	/**
 	 * Represents the status of the device identified by the given device-id and
 	 * registered in the Dog gateway runtime, i.e., defined in the Dog
 	 * configuration and successfully registered within the gateway runtime.
 	 * 
+	 * @param deviceId
+	 *            the device unique identifier
+	 * @param measureFormat
+	 *            the representation of measures, either
+	 *            {@link #NUMERIC_MEASURES} or none for the default string
+	 *            representation
+	 * @param timing
+	 *            true to time the request phases (service registry lookup,
+	 *            state read, serialization) and report them in the
+	 *            Server-Timing response header
 	 * @return the JSON description of the current device status
 	 */
 	@GET
 	@Path("/{device-id}/status")
 	@Produces(MediaType.APPLICATION_JSON)
-	public String getDeviceStatus(@PathParam("device-id") String deviceId, @Context HttpServletResponse httpResponse);
+	public String getDeviceStatus(@PathParam("device-id") String deviceId, @QueryParam("measure") String measureFormat,
+			@HeaderParam(SERVER_TIMING_HEADER) boolean timing, @Context HttpServletResponse httpResponse);
 	
 	/**
 	 * Represents the status of devices registered in the Dog gateway runtime,
 	 * i.e., defined in the Dog configuration and successfully registered within
 	 * the gateway runtime.
 	 * 
+	 * The devices can be restricted to the ones currently having all the
+	 * given state values, e.g., OnOffState:on; only the matching devices are
+	 * queried. Matching devices are found in an index of the device states,
+	 * built at start-up and kept up-to-date by the state change notifications
+	 * of the devices and by any status read.
+	 * 
+	 * @param measureFormat
+	 *            the representation of measures, either
+	 *            {@link #NUMERIC_MEASURES} or none for the default string
+	 *            representation
+	 * @param where
+	 *            the comma-separated state:value conditions the devices must
+	 *            satisfy, e.g., OnOffState:on, or none for all devices
+	 * @param timing
+	 *            true to time the request phases (service registry lookup,
+	 *            index lookup, state read, serialization) and report them in
+	 *            the Server-Timing response header
 	 * @return The JSON description of the current device status
 	 */
 	@GET
 	@Path("/status")
 	@Produces(MediaType.APPLICATION_JSON)
-	public String getAllDeviceStatus(@Context HttpServletResponse httpResponse);
+	public String getAllDeviceStatus(@QueryParam("measure") String measureFormat, @QueryParam("where") String where,
+			@HeaderParam(SERVER_TIMING_HEADER) boolean timing, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the statistics of the cache of device states, i.e., hits,
+	 * misses, loads collapsed on an in-flight load, failures and load times,
+	 * together with the lookups of unknown devices answered without querying
+	 * the registry and the identical concurrent requests sharing a single
+	 * computation. If the device updates are persisted in background, the
+	 * devices still to be persisted and the ones whose last persistence
+	 * failed are listed as well.
+	 * 
+	 * @return the JSON description of the status cache statistics
+	 */
+	@GET
+	@Path("/status/cache")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatusCacheStatistics(@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the metrics of the endpoint: for each method, the requests
+	 * served, in flight and failed, the status codes and the latency
+	 * distribution (mean, maximum and percentiles, in ms); the latency of the
+	 * main internal operations; the endpoint uptime and warm-up time. The
+	 * path has two segments, so that it cannot shadow the device whose id is
+	 * "metrics".
+	 * 
+	 * @return the JSON description of the endpoint metrics
+	 */
+	@GET
+	@Path("/requests/metrics")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getMetricsInJson(@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the metrics of the endpoint in the Prometheus text exposition
+	 * format, latencies being reported as cumulative histograms in seconds.
+	 * 
+	 * @return the endpoint metrics, in the Prometheus text format
+	 */
+	@GET
+	@Path("/requests/metrics")
+	@Produces(MediaType.TEXT_PLAIN + "; version=0.0.4; qs=0.9")
+	public String getMetricsInText(@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the recent history of a numeric state of the device
+	 * identified by the given device-id, as retained in memory by the gateway.
+	 * Samples are provided as two parallel arrays of timestamps (ms since
+	 * epoch) and values. If a bucket duration is given, samples are instead
+	 * aggregated over fixed time buckets and one array is provided for each
+	 * required aggregation function (min, max, avg and last).
+	 * 
+	 * @param deviceId
+	 *            the device unique identifier
+	 * @param stateName
+	 *            the state name, e.g., TemperatureState
+	 * @param from
+	 *            the start of the time range (ms since epoch, included)
+	 * @param to
+	 *            the end of the time range (ms since epoch, included)
+	 * @param bucket
+	 *            the bucket duration (ms), 0 for raw samples
+	 * @param aggregate
+	 *            the comma-separated aggregation functions to compute for
+	 *            each bucket, e.g., min,max
+	 * @return the JSON description of the state history
+	 */
+	@GET
+	@Path("/{device-id}/status/{state}/history")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getDeviceStateHistory(@PathParam("device-id") String deviceId, @PathParam("state") String stateName,
+			@QueryParam("from") @DefaultValue("0") long from,
+			@QueryParam("to") @DefaultValue("9223372036854775807") long to,
+			@QueryParam("bucket") @DefaultValue("0") long bucket,
+			@QueryParam("aggregate") @DefaultValue("avg") String aggregate, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the statistics of the commands sent to the device identified
+	 * by the given device-id: number of commands and failures, last failure
+	 * and latency distribution (mean, maximum and percentiles, in ms). The
+	 * path is kept out of the device command namespace, where it would
+	 * shadow any command named "stats".
+	 * 
+	 * @param deviceId
+	 *            the device unique identifier
+	 * @return the JSON description of the device command statistics
+	 */
+	@GET
+	@Path("/{device-id}/statistics/commands")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getDeviceCommandStatistics(@PathParam("device-id") String deviceId,
+			@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the statistics of the commands sent to all devices, overall,
+	 * per technology and per device, for the most recently commanded devices.
+	 * 
+	 * @return the JSON description of the command statistics
+	 */
+	@GET
+	@Path("/commands/stats")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getCommandStatistics(@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the state of the command dispatch to the drivers of each
+	 * technology: timeout, running and queued commands, timeouts, state of
+	 * the technology circuit breaker and adaptive concurrency limit.
+	 * 
+	 * @return the JSON description of the command dispatch state
+	 */
+	@GET
+	@Path("/commands/dispatch")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getCommandDispatchState(
+			@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the state of the bulkheads isolating catalogue reads, status
+	 * reads and commands: concurrency, requests in flight and waiting,
+	 * admitted, rejected and timed out requests, and waiting time (in ms).
+	 * The path has two segments, so that it cannot shadow the device whose id
+	 * is "bulkheads".
+	 * 
+	 * @return the JSON description of the bulkheads
+	 */
+	@GET
+	@Path("/requests/bulkheads")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getBulkheads(@Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents the most recent requests slower than the configured
+	 * thresholds, most recent first: endpoint method, status, duration,
+	 * serving thread, target device, command and payload type, if any, and
+	 * the time spent in each phase of status requests (in ms).
+	 * 
+	 * @return the JSON description of the slow requests
+	 */
+	@GET
+	@Path("/requests/slow")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getSlowRequests(@Context HttpServletResponse httpResponse);
 	
 	/**
 	 * TODO: For testing purpose only
@@ -156,12 +431,18 @@ public interface DeviceRESTApi
 	 *            The device unique identifier (URI)
 	 * @param commandName
 	 *            The command to be executed
+	 * @param idempotencyKey
+	 *            The key identifying the command across retries, if any: a
+	 *            retry carrying the same key returns the outcome of the first
+	 *            request without executing the command again, and a
+	 *            different request carrying the same key fails with 409
 	 * @return
 	 */
 	@GET
 	@Path("{device-id}/commands/{command-name}")
 	public Response executeCommandGet(@PathParam("device-id") String deviceId,
-			@PathParam("command-name") String commandName, @Context HttpServletResponse httpResponse);
+			@PathParam("command-name") String commandName,
+			@HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey, @Context HttpServletResponse httpResponse);
 	
 	/**
 	 * Represents a command, identified by a command-name, to be sent to the
@@ -176,13 +457,19 @@ public interface DeviceRESTApi
 	 *            The command to be executed
 	 * @param commandParameters
 	 *            Any possible command parameter (one in this version)
+	 * @param idempotencyKey
+	 *            The key identifying the command across retries, if any: a
+	 *            retry carrying the same key returns the outcome of the first
+	 *            request without executing the command again, and a
+	 *            different request carrying the same key fails with 409
 	 * @return 
 	 */
 	@POST
 	@Path("{device-id}/commands/{command-name}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	public Response executeCommandPost(@PathParam("device-id") String deviceId,
-			@PathParam("command-name") String commandName, String commandParameters, @Context HttpServletResponse httpResponse);
+			@PathParam("command-name") String commandName, String commandParameters,
+			@HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey, @Context HttpServletResponse httpResponse);
 	
 	/**
 	 * Represents a command, identified by a command-name, to be sent to the
@@ -197,13 +484,48 @@ public interface DeviceRESTApi
 	 *            The command to be executed
 	 * @param commandParameters
 	 *            Any possible command parameter (one in this version)
+	 * @param idempotencyKey
+	 *            The key identifying the command across retries, if any: a
+	 *            retry carrying the same key returns the outcome of the first
+	 *            request without executing the command again, and a
+	 *            different request carrying the same key fails with 409
 	 * @return 
 	 */
 	@PUT
 	@Path("{device-id}/commands/{command-name}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	public Response executeCommandPut(@PathParam("device-id") String deviceId,
-			@PathParam("command-name") String commandName, String commandParameters, @Context HttpServletResponse httpResponse);
+			@PathParam("command-name") String commandName, String commandParameters,
+			@HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey, @Context HttpServletResponse httpResponse);
+	
+	/**
+	 * Represents a command, identified by a command-name, to be sent to all
+	 * the devices matching the given selectors, e.g., to switch off all the
+	 * lamps in a room. At least one selector is required; all the given
+	 * selectors must match, ignoring the case. The command is sent to the
+	 * selected devices in parallel, and the result of each command is
+	 * reported in the response.
+	 * 
+	 * @param commandName
+	 *            The command to be executed
+	 * @param location
+	 *            The location of the devices, i.e., their isIn value
+	 * @param category
+	 *            The device category, e.g., Lamp
+	 * @param technology
+	 *            The device technology, e.g., ZWave
+	 * @param commandParameters
+	 *            Any possible command parameter (one in this version)
+	 * @return the JSON summary of the per-device command results
+	 */
+	@POST
+	@Path("/groups/commands/{command-name}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public String executeGroupCommand(@PathParam("command-name") String commandName,
+			@QueryParam("location") String location, @QueryParam("category") String category,
+			@QueryParam("technology") String technology, String commandParameters,
+			@Context HttpServletResponse httpResponse);
 	
 	@OPTIONS
 	@Path("{device-id}/commands/{command-name}")
@@ -1,8 +1,8 @@
 /*
  * Dog - Device Rest Endpoint
- * 
- * Copyright (c) 2013-2014 Dario Bonino and Luigi De Russis
- * 
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -15,40 +15,29 @@
  * See the License for the specific language governing permissions and
  * limitations under the License
  */
-package it.polito.elite.dog.communication.rest.device.status;
+package it.polito.elite.dog.communication.rest.device.api;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.ws.rs.HttpMethod;
 
 /**
- * 
+ * Indicates that the annotated method responds to HTTP PATCH requests, which
+ * JAX-RS 2.0 does not define.
+ *
  * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
  * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
  * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
- * 
+ *
  */
-public class AllDeviceStatesResponsePayload
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@HttpMethod("PATCH")
+@Documented
+public @interface PATCH
 {
-	private DeviceStateResponsePayload[] devicesStatus;
-
-	/**
-	 * 
-	 */
-	public AllDeviceStatesResponsePayload()
-	{
-		// TODO Auto-generated constructor stub
-	}
-
-	/**
-	 * @return the devices
-	 */
-	public DeviceStateResponsePayload[] getDevicesStatus()
-	{
-		return devicesStatus;
-	}
-
-	/**
-	 * @param devicesStatus the devices status to set
-	 */
-	public void setDevicesStatus(DeviceStateResponsePayload[] devicesStatus)
-	{
-		this.devicesStatus = devicesStatus;
-	}
 }
@@ -0,0 +1,255 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Keeps the outcome of the operations identified by a client-chosen
+ * idempotency key, so that a retried operation returns the stored outcome
+ * instead of being executed again. A retry arriving while the operation is
+ * still running waits for, and shares, its outcome. Each key is bound to the
+ * fingerprint of the request that first used it: reusing a key for a
+ * different request is a conflict.
+ *
+ * Outcomes are kept for a limited time, and for a bounded number of keys,
+ * the oldest being evicted first; running operations are never evicted, the
+ * store exceeding its capacity while they run. Failed operations are not
+ * kept: the failure is propagated to all the waiting requests and the next
+ * retry executes the operation again.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ * @param <V>
+ *            the outcome type
+ */
+public class IdempotencyStore<V>
+{
+    // the maximum number of keys
+    private final int capacity;
+
+    // the time an outcome is kept, in ns
+    private final long retention;
+
+    // the entries, oldest first
+    private final LinkedHashMap<String, Entry<V>> entries;
+
+    // the store statistics
+    private final AtomicLong executed;
+    private final AtomicLong replayed;
+    private final AtomicLong conflicts;
+
+    /**
+     * Creates a new, empty, store
+     *
+     * @param capacity
+     *            the maximum number of keys
+     * @param retention
+     *            the time an outcome is kept, in ms
+     */
+    public IdempotencyStore(int capacity, long retention)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.retention = TimeUnit.MILLISECONDS.toNanos(retention);
+        this.entries = new LinkedHashMap<String, Entry<V>>();
+        this.executed = new AtomicLong();
+        this.replayed = new AtomicLong();
+        this.conflicts = new AtomicLong();
+    }
+
+    /**
+     * Executes the operation identified by the given key, unless already
+     * executed or being executed, in which case its outcome is returned
+     *
+     * @param key
+     *            the idempotency key
+     * @param fingerprint
+     *            the fingerprint of the request, e.g., its method, path and
+     *            body
+     * @param operation
+     *            the operation to execute, on the calling thread
+     * @return the outcome of the operation
+     * @throws ConflictException
+     *             if the key was used for a request with a different
+     *             fingerprint
+     * @throws Exception
+     *             the exception thrown by the operation
+     */
+    public V execute(String key, String fingerprint, Callable<V> operation)
+            throws Exception
+    {
+        Entry<V> entry;
+        boolean owner = false;
+
+        synchronized (this.entries)
+        {
+            long now = System.nanoTime();
+            this.evict(now);
+
+            entry = this.entries.get(key);
+            if (entry == null)
+            {
+                entry = new Entry<V>(fingerprint, operation, now);
+                this.entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (!entry.fingerprint.equals(fingerprint))
+        {
+            this.conflicts.incrementAndGet();
+            throw new ConflictException(key);
+        }
+
+        if (owner)
+        {
+            this.executed.incrementAndGet();
+            entry.task.run();
+        }
+        else
+            this.replayed.incrementAndGet();
+
+        try
+        {
+            return entry.task.get();
+        }
+        catch (ExecutionException e)
+        {
+            // do not keep failed operations
+            synchronized (this.entries)
+            {
+                if (this.entries.get(key) == entry)
+                    this.entries.remove(key);
+            }
+
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the store statistics as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeStatistics(JsonGenerator generator) throws IOException
+    {
+        int size;
+        synchronized (this.entries)
+        {
+            size = this.entries.size();
+        }
+
+        generator.writeNumberField("size", size);
+        generator.writeNumberField("executed", this.executed.get());
+        generator.writeNumberField("replayed", this.replayed.get());
+        generator.writeNumberField("conflicts", this.conflicts.get());
+    }
+
+    /**
+     * Evicts the expired entries and, if full, the oldest completed entries;
+     * to be called while holding the entries lock
+     *
+     * @param now
+     *            the current time, as given by System.nanoTime()
+     */
+    private void evict(long now)
+    {
+        Iterator<Entry<V>> oldest = this.entries.values().iterator();
+        while (oldest.hasNext())
+        {
+            Entry<V> entry = oldest.next();
+            if ((this.entries.size() < this.capacity)
+                    && (now - entry.createdAt < this.retention))
+                break;
+
+            // a retry of a running operation must still find it
+            if (entry.task.isDone())
+                oldest.remove();
+        }
+    }
+
+    /**
+     * The exception raised when an idempotency key is reused for a different
+     * request
+     */
+    public static class ConflictException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Creates a new exception
+         *
+         * @param key
+         *            the reused idempotency key
+         */
+        public ConflictException(String key)
+        {
+            super("Idempotency key " + key + " used for a different request");
+        }
+    }
+
+    /**
+     * A store entry, wrapping the (possibly running) operation
+     *
+     * @param <V>
+     *            the outcome type
+     */
+    private static class Entry<V>
+    {
+        // the fingerprint of the request that first used the key
+        private final String fingerprint;
+
+        // the operation
+        private final FutureTask<V> task;
+
+        // the time at which the entry was created, in ns
+        private final long createdAt;
+
+        /**
+         * Creates an entry that will execute the given operation
+         *
+         * @param fingerprint
+         *            the fingerprint of the request
+         * @param operation
+         *            the operation
+         * @param createdAt
+         *            the creation time, in ns
+         */
+        Entry(String fingerprint, Callable<V> operation, long createdAt)
+        {
+            this.fingerprint = fingerprint;
+            this.task = new FutureTask<V>(operation);
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Answers whether a device id is known to be missing, without querying the
+ * service registry or the HouseModel. Two structures are combined:
+ * <ul>
+ * <li>a Bloom filter of all the known device ids, which definitely rules out
+ * ids never configured nor registered;</li>
+ * <li>a bounded set of the most recent ids whose lookup found nothing, which
+ * catches the Bloom filter false positives and the ids of devices known but
+ * no longer registered.</li>
+ * </ul>
+ * Ids are compared exactly, as the service registry does. Each registered
+ * device must be notified through {@link #add(String)}, which also drops it
+ * from the recent misses; the Bloom filter is periodically rebuilt from the
+ * full set of known ids, to forget removed devices, and each rebuild clears
+ * the recent misses.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class NegativeCache
+{
+    // the Bloom filter of known ids, null until first built
+    private volatile BloomFilter knownIds;
+
+    // the ids added while a rebuild is in progress, null otherwise
+    private Set<String> pendingIds;
+
+    // the recent misses, in insertion order
+    private final LinkedHashMap<String, Boolean> recentMisses;
+
+    // the negative answers given so far
+    private final AtomicLong hits;
+
+    /**
+     * Creates a new, empty, cache: no id is considered missing until either
+     * the Bloom filter is built or misses are recorded
+     *
+     * @param maxMisses
+     *            the maximum number of recent misses to retain
+     */
+    public NegativeCache(final int maxMisses)
+    {
+        this.recentMisses = new LinkedHashMap<String, Boolean>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Boolean> eldest)
+            {
+                return this.size() > maxMisses;
+            }
+        };
+        this.hits = new AtomicLong();
+    }
+
+    /**
+     * Checks whether the given device id is known to be missing
+     *
+     * @param deviceId
+     *            the device id
+     * @return true if the device is surely missing, false if it might exist
+     */
+    public boolean isMissing(String deviceId)
+    {
+        BloomFilter filter = this.knownIds;
+
+        boolean missing = ((filter != null)
+                && (!filter.mightContain(deviceId)));
+        if (!missing)
+        {
+            synchronized (this.recentMisses)
+            {
+                missing = this.recentMisses.containsKey(deviceId);
+            }
+        }
+
+        if (missing)
+            this.hits.incrementAndGet();
+
+        return missing;
+    }
+
+    /**
+     * Records a device id whose lookup found nothing
+     *
+     * @param deviceId
+     *            the device id
+     */
+    public void recordMiss(String deviceId)
+    {
+        synchronized (this.recentMisses)
+        {
+            this.recentMisses.put(deviceId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records a known device id, e.g., of a newly registered device
+     *
+     * @param deviceId
+     *            the device id
+     */
+    public void add(String deviceId)
+    {
+        synchronized (this)
+        {
+            BloomFilter filter = this.knownIds;
+            if (filter != null)
+                filter.add(deviceId);
+
+            // keep the id for the filter being rebuilt
+            if (this.pendingIds != null)
+                this.pendingIds.add(deviceId);
+        }
+
+        synchronized (this.recentMisses)
+        {
+            this.recentMisses.remove(deviceId);
+        }
+    }
+
+    /**
+     * Starts rebuilding the Bloom filter: to be called before collecting the
+     * known ids, so that ids added meanwhile are not lost
+     */
+    public synchronized void beginRebuild()
+    {
+        this.pendingIds = new HashSet<String>();
+    }
+
+    /**
+     * Completes the Bloom filter rebuild, replacing the current filter with
+     * one containing the given ids and those added since
+     * {@link #beginRebuild()}, and clears the recent misses
+     *
+     * @param deviceIds
+     *            all the known device ids
+     */
+    public synchronized void completeRebuild(Collection<String> deviceIds)
+    {
+        Set<String> keys = new HashSet<String>(deviceIds);
+        if (this.pendingIds != null)
+            keys.addAll(this.pendingIds);
+
+        // leave room for devices registered before the next rebuild
+        BloomFilter filter = new BloomFilter(Math.max(64, keys.size() * 2));
+        for (String key : keys)
+            filter.add(key);
+
+        this.knownIds = filter;
+        this.pendingIds = null;
+
+        // misses of devices registered without notification, if any, are
+        // forgotten
+        synchronized (this.recentMisses)
+        {
+            this.recentMisses.clear();
+        }
+    }
+
+    /**
+     * Writes the cache statistics as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeStatistics(JsonGenerator generator) throws IOException
+    {
+        int misses;
+        synchronized (this.recentMisses)
+        {
+            misses = this.recentMisses.size();
+        }
+
+        generator.writeNumberField("recentMisses", misses);
+        generator.writeNumberField("hits", this.hits.get());
+    }
+
+    /**
+     * A Bloom filter of strings, sized for a 1% false positive probability,
+     * supporting concurrent additions and lookups
+     */
+    private static class BloomFilter
+    {
+        // the number of hash functions, optimal for a 1% probability
+        private static final int HASHES = 7;
+
+        // the filter bits
+        private final AtomicLongArray bits;
+
+        // the number of filter bits
+        private final int size;
+
+        /**
+         * Creates an empty filter
+         *
+         * @param capacity
+         *            the expected number of elements
+         */
+        BloomFilter(int capacity)
+        {
+            // about 9.6 bits per element for a 1% probability
+            this.size = Math.max(64, (capacity * 96 / 10 + 63) & ~63);
+            this.bits = new AtomicLongArray(this.size / 64);
+        }
+
+        /**
+         * @param key
+         *            the key to add
+         */
+        void add(String key)
+        {
+            int h1 = key.hashCode();
+            int h2 = BloomFilter.mix(h1);
+
+            for (int i = 0; i < HASHES; i++)
+            {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.size;
+
+                // set the bit, if not already set
+                long word = this.bits.get(bit >>> 6);
+                while ((word & (1L << bit)) == 0)
+                {
+                    if (this.bits.compareAndSet(bit >>> 6, word,
+                            word | (1L << bit)))
+                        break;
+                    word = this.bits.get(bit >>> 6);
+                }
+            }
+        }
+
+        /**
+         * @param key
+         *            the key to look up
+         * @return false if the key was surely never added
+         */
+        boolean mightContain(String key)
+        {
+            int h1 = key.hashCode();
+            int h2 = BloomFilter.mix(h1);
+
+            for (int i = 0; i < HASHES; i++)
+            {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.size;
+                if ((this.bits.get(bit >>> 6) & (1L << bit)) == 0)
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Derives a second, independent, hash from the given one
+         *
+         * @param hash
+         *            a hash code
+         * @return the derived hash, always odd
+         */
+        private static int mix(int hash)
+        {
+            hash ^= hash >>> 16;
+            hash *= 0x85ebca6b;
+            hash ^= hash >>> 13;
+            hash *= 0xc2b2ae35;
+            hash ^= hash >>> 16;
+            return hash | 1;
+        }
+    }
+}
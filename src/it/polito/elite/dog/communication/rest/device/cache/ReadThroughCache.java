@@ -0,0 +1,301 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.cache;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A read-through cache with single-flight loading: concurrent requests for
+ * the same key while a value is being loaded wait for, and share, the result
+ * of a single load. Loaded values are then served until they are older than
+ * the time-to-live given by each request; a time-to-live of 0 disables
+ * retention while still collapsing concurrent loads.
+ *
+ * Failed loads are not cached: the failure is propagated to all the waiting
+ * requests and the next request triggers a new load.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class ReadThroughCache<K, V>
+{
+    // the cache entries, either loaded or being loaded
+    private final ConcurrentHashMap<K, Entry<V>> entries;
+
+    // the cache statistics
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong collapsed;
+    private final AtomicLong failures;
+    private final AtomicLong totalLoadTime;
+    private final AtomicLong maxLoadTime;
+
+    /**
+     * Creates a new, empty, cache
+     */
+    public ReadThroughCache()
+    {
+        this.entries = new ConcurrentHashMap<K, Entry<V>>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.collapsed = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.totalLoadTime = new AtomicLong();
+        this.maxLoadTime = new AtomicLong();
+    }
+
+    /**
+     * Gets the value associated to the given key, loading it if missing or
+     * older than the given time-to-live
+     *
+     * @param key
+     *            the key
+     * @param ttl
+     *            the time-to-live of the value, in ms
+     * @param loader
+     *            the loader to call on a miss
+     * @return the cached or loaded value
+     * @throws Exception
+     *             the exception thrown by the loader
+     */
+    public V get(K key, long ttl, Callable<V> loader) throws Exception
+    {
+        while (true)
+        {
+            Entry<V> entry = this.entries.get(key);
+
+            if (entry != null)
+            {
+                // a load is in progress: wait for it
+                if (!entry.isDone())
+                {
+                    this.collapsed.incrementAndGet();
+                    return entry.getValue();
+                }
+
+                // a fresh value is available
+                if (entry.isFresh(ttl))
+                {
+                    this.hits.incrementAndGet();
+                    return entry.getValue();
+                }
+            }
+
+            // try to become the loader for the key
+            Entry<V> newEntry = new Entry<V>(loader);
+            boolean installed = (entry == null)
+                    ? this.entries.putIfAbsent(key, newEntry) == null
+                    : this.entries.replace(key, entry, newEntry);
+
+            if (installed)
+            {
+                this.misses.incrementAndGet();
+
+                // load the value on the current thread
+                long start = System.nanoTime();
+                newEntry.load();
+                this.recordLoadTime(System.nanoTime() - start);
+
+                try
+                {
+                    return newEntry.getValue();
+                }
+                catch (Exception e)
+                {
+                    // do not keep failed loads
+                    this.entries.remove(key, newEntry);
+                    this.failures.incrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the value associated to the given key, if any
+     *
+     * @param key
+     *            the key
+     */
+    public void invalidate(K key)
+    {
+        this.entries.remove(key);
+    }
+
+    /**
+     * Removes the values associated to all the keys not in the given set
+     *
+     * @param keys
+     *            the keys to retain
+     */
+    public void retain(Set<K> keys)
+    {
+        this.entries.keySet().retainAll(keys);
+    }
+
+    /**
+     * Removes all the cached values
+     */
+    public void clear()
+    {
+        this.entries.clear();
+    }
+
+    /**
+     * Writes the cache statistics as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeStatistics(JsonGenerator generator) throws IOException
+    {
+        long loads = this.misses.get();
+
+        generator.writeNumberField("size", this.entries.size());
+        generator.writeNumberField("hits", this.hits.get());
+        generator.writeNumberField("misses", loads);
+        generator.writeNumberField("collapsed", this.collapsed.get());
+        generator.writeNumberField("failures", this.failures.get());
+        generator.writeNumberField("averageLoadTimeMs",
+                (loads > 0) ? (this.totalLoadTime.get() / loads) / 1e6 : 0.0);
+        generator.writeNumberField("maxLoadTimeMs",
+                this.maxLoadTime.get() / 1e6);
+    }
+
+    /**
+     * Records the duration of a load
+     *
+     * @param duration
+     *            the load duration, in ns
+     */
+    private void recordLoadTime(long duration)
+    {
+        this.totalLoadTime.addAndGet(duration);
+
+        long max = this.maxLoadTime.get();
+        while ((duration > max)
+                && (!this.maxLoadTime.compareAndSet(max, duration)))
+            max = this.maxLoadTime.get();
+    }
+
+    /**
+     * A cache entry, wrapping the (possibly running) load of a value
+     *
+     * @param <V>
+     *            the value type
+     */
+    private static class Entry<V>
+    {
+        // the load task
+        private final FutureTask<V> task;
+
+        // the time at which the load completed, in ns
+        private volatile long loadedAt;
+
+        // true if the load completed successfully
+        private volatile boolean loaded;
+
+        /**
+         * Creates an entry that will load its value with the given loader
+         *
+         * @param loader
+         *            the loader
+         */
+        Entry(final Callable<V> loader)
+        {
+            // the load time is set before the task completes
+            this.task = new FutureTask<V>(new Callable<V>()
+            {
+                @Override
+                public V call() throws Exception
+                {
+                    V value = loader.call();
+                    Entry.this.loadedAt = System.nanoTime();
+                    Entry.this.loaded = true;
+                    return value;
+                }
+            });
+        }
+
+        /**
+         * Runs the load, on the calling thread
+         */
+        void load()
+        {
+            this.task.run();
+        }
+
+        /**
+         * @return true if the load is complete, with either a value or a
+         *         failure
+         */
+        boolean isDone()
+        {
+            return this.task.isDone();
+        }
+
+        /**
+         * @param ttl
+         *            the time-to-live, in ms
+         * @return true if the loaded value is younger than the given
+         *         time-to-live
+         */
+        boolean isFresh(long ttl)
+        {
+            return (this.loaded) && (System.nanoTime()
+                    - this.loadedAt < TimeUnit.MILLISECONDS.toNanos(ttl));
+        }
+
+        /**
+         * Waits for the load and gets its value
+         *
+         * @return the loaded value
+         * @throws Exception
+         *             the exception thrown by the loader
+         */
+        V getValue() throws Exception
+        {
+            try
+            {
+                return this.task.get();
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+}
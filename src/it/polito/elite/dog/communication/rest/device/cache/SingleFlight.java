@@ -0,0 +1,137 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.cache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Collapses concurrent identical computations: while a computation for a
+ * given key is in flight, any other request for the same key waits for it
+ * and shares its result (or failure), instead of running its own. Nothing is
+ * retained once the computation completes, so that, unlike
+ * {@link ReadThroughCache}, later requests always get a fresh result and the
+ * memory used only depends on the number of computations in flight.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the result type
+ */
+public class SingleFlight<K, V>
+{
+    // the computations in flight
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight;
+
+    // the statistics
+    private final AtomicLong executions;
+    private final AtomicLong collapsed;
+
+    /**
+     * Creates a new instance, with no computation in flight
+     */
+    public SingleFlight()
+    {
+        this.inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+        this.executions = new AtomicLong();
+        this.collapsed = new AtomicLong();
+    }
+
+    /**
+     * Runs the given computation on the calling thread, unless an identical
+     * one is already in flight, in which case its result is awaited
+     *
+     * @param key
+     *            the key identifying the computation
+     * @param computation
+     *            the computation
+     * @return the computation result
+     * @throws Exception
+     *             the exception thrown by the computation
+     */
+    public V execute(K key, Callable<V> computation) throws Exception
+    {
+        FutureTask<V> task = new FutureTask<V>(computation);
+        FutureTask<V> running = this.inFlight.putIfAbsent(key, task);
+
+        // join the computation in flight
+        if (running != null)
+        {
+            this.collapsed.incrementAndGet();
+            return SingleFlight.getResult(running);
+        }
+
+        this.executions.incrementAndGet();
+        try
+        {
+            task.run();
+            return SingleFlight.getResult(task);
+        }
+        finally
+        {
+            this.inFlight.remove(key, task);
+        }
+    }
+
+    /**
+     * Writes the statistics as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeStatistics(JsonGenerator generator) throws IOException
+    {
+        generator.writeNumberField("inFlight", this.inFlight.size());
+        generator.writeNumberField("executions", this.executions.get());
+        generator.writeNumberField("collapsed", this.collapsed.get());
+    }
+
+    /**
+     * Waits for a computation and gets its result
+     *
+     * @param task
+     *            the computation
+     * @return the computation result
+     * @throws Exception
+     *             the exception thrown by the computation
+     */
+    private static <V> V getResult(FutureTask<V> task) throws Exception
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.catalogue;
+
+/**
+ * An immutable view of a single configured device, as captured when the
+ * owning {@link DeviceCatalogue} was built: the fields used for lookups and
+ * the ready-to-send JSON and XML representations of the device.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class CatalogueEntry
+{
+    private final String id;
+    private final String description;
+    private final String location;
+    private final String deviceClass;
+    private final String technology;
+    private final String json;
+    private final String xml;
+
+    /**
+     * Creates a new catalogue entry
+     *
+     * @param id
+     *            the device unique identifier
+     * @param description
+     *            the device description, may be null
+     * @param location
+     *            the device location, may be null
+     * @param deviceClass
+     *            the device class, e.g., Lamp, may be null
+     * @param technology
+     *            the device technology, e.g., ZWave, may be null
+     * @param json
+     *            the JSON representation of the device
+     * @param xml
+     *            the XML representation of the device
+     */
+    public CatalogueEntry(String id, String description, String location,
+            String deviceClass, String technology, String json, String xml)
+    {
+        this.id = id;
+        this.description = description;
+        this.location = location;
+        this.deviceClass = deviceClass;
+        this.technology = technology;
+        this.json = json;
+        this.xml = xml;
+    }
+
+    /**
+     * @return the device unique identifier
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the device description
+     */
+    public String getDescription()
+    {
+        return this.description;
+    }
+
+    /**
+     * @return the device location
+     */
+    public String getLocation()
+    {
+        return this.location;
+    }
+
+    /**
+     * @return the device class
+     */
+    public String getDeviceClass()
+    {
+        return this.deviceClass;
+    }
+
+    /**
+     * @return the device technology
+     */
+    public String getTechnology()
+    {
+        return this.technology;
+    }
+
+    /**
+     * @return the JSON representation of the device
+     */
+    public String getJson()
+    {
+        return this.json;
+    }
+
+    /**
+     * @return the XML representation of the device
+     */
+    public String getXml()
+    {
+        return this.xml;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.catalogue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable, pre-indexed and pre-serialized snapshot of the devices
+ * configured in the HouseModel, indexed by id, location, device class and
+ * technology. Snapshots are built off the request path and published by
+ * swapping a single atomic reference, so that readers never lock and always
+ * see a complete catalogue.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class DeviceCatalogue
+{
+    // the catalogue entries, in configuration order
+    private final List<CatalogueEntry> entries;
+
+    // the catalogue entries, indexed by lower-case device id
+    private final Map<String, CatalogueEntry> entriesById;
+
+    // the catalogue entries, indexed by lower-case location, device class
+    // and technology
+    private final Map<String, List<CatalogueEntry>> entriesByLocation;
+    private final Map<String, List<CatalogueEntry>> entriesByClass;
+    private final Map<String, List<CatalogueEntry>> entriesByTechnology;
+
+    // the JSON representation of the whole catalogue
+    private final String json;
+
+    // the XML representation of the whole catalogue
+    private final String xml;
+
+    // the snapshot creation time, in ms since epoch
+    private final long timestamp;
+
+    /**
+     * Creates a new catalogue snapshot
+     *
+     * @param entries
+     *            the catalogue entries, not modified afterwards
+     * @param json
+     *            the JSON representation of the whole catalogue
+     * @param xml
+     *            the XML representation of the whole catalogue
+     */
+    public DeviceCatalogue(List<CatalogueEntry> entries, String json,
+            String xml)
+    {
+        this.entries = Collections.unmodifiableList(entries);
+        this.json = json;
+        this.xml = xml;
+        this.timestamp = System.currentTimeMillis();
+
+        // index entries by id, ignoring the case as the HouseModel lookups
+        Map<String, CatalogueEntry> byId = new HashMap<String, CatalogueEntry>();
+        Map<String, List<CatalogueEntry>> byLocation = new HashMap<String, List<CatalogueEntry>>();
+        Map<String, List<CatalogueEntry>> byClass = new HashMap<String, List<CatalogueEntry>>();
+        Map<String, List<CatalogueEntry>> byTechnology = new HashMap<String, List<CatalogueEntry>>();
+        for (CatalogueEntry entry : entries)
+        {
+            byId.put(DeviceCatalogue.key(entry.getId()), entry);
+            DeviceCatalogue.index(byLocation, entry.getLocation(), entry);
+            DeviceCatalogue.index(byClass, entry.getDeviceClass(), entry);
+            DeviceCatalogue.index(byTechnology, entry.getTechnology(), entry);
+        }
+        this.entriesById = Collections.unmodifiableMap(byId);
+        this.entriesByLocation = byLocation;
+        this.entriesByClass = byClass;
+        this.entriesByTechnology = byTechnology;
+    }
+
+    /**
+     * @return the catalogue entries, in configuration order
+     */
+    public List<CatalogueEntry> getEntries()
+    {
+        return this.entries;
+    }
+
+    /**
+     * @param deviceId
+     *            the device unique identifier, in any case
+     * @return the corresponding entry, or null if the device is not
+     *         configured
+     */
+    public CatalogueEntry getEntry(String deviceId)
+    {
+        return (deviceId != null)
+                ? this.entriesById.get(DeviceCatalogue.key(deviceId)) : null;
+    }
+
+    /**
+     * Selects the devices matching all the given criteria, ignoring the case;
+     * null criteria are ignored. The selection starts from the smallest of
+     * the indexed groups matching the given criteria.
+     *
+     * @param location
+     *            the device location, i.e., the isIn value, may be null
+     * @param deviceClass
+     *            the device class, e.g., Lamp, may be null
+     * @param technology
+     *            the device technology, e.g., ZWave, may be null
+     * @return the matching entries, in configuration order
+     */
+    public List<CatalogueEntry> select(String location, String deviceClass,
+            String technology)
+    {
+        List<CatalogueEntry> candidates = this.entries;
+
+        // start from the smallest matching group
+        if (location != null)
+            candidates = DeviceCatalogue.smallest(candidates,
+                    this.entriesByLocation, location);
+        if (deviceClass != null)
+            candidates = DeviceCatalogue.smallest(candidates,
+                    this.entriesByClass, deviceClass);
+        if (technology != null)
+            candidates = DeviceCatalogue.smallest(candidates,
+                    this.entriesByTechnology, technology);
+
+        // check the remaining criteria
+        List<CatalogueEntry> selected = new ArrayList<CatalogueEntry>();
+        for (CatalogueEntry entry : candidates)
+        {
+            if (DeviceCatalogue.matches(entry.getLocation(), location)
+                    && DeviceCatalogue.matches(entry.getDeviceClass(),
+                            deviceClass)
+                    && DeviceCatalogue.matches(entry.getTechnology(),
+                            technology))
+                selected.add(entry);
+        }
+
+        return selected;
+    }
+
+    /**
+     * @return true if no device is configured
+     */
+    public boolean isEmpty()
+    {
+        return this.entries.isEmpty();
+    }
+
+    /**
+     * @return the JSON representation of the whole catalogue
+     */
+    public String getJson()
+    {
+        return this.json;
+    }
+
+    /**
+     * @return the XML representation of the whole catalogue
+     */
+    public String getXml()
+    {
+        return this.xml;
+    }
+
+    /**
+     * @return the snapshot creation time, in ms since epoch
+     */
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    /**
+     * Adds an entry to the group identified by the given value, if not null
+     *
+     * @param index
+     *            the index to update
+     * @param value
+     *            the indexed value
+     * @param entry
+     *            the entry to add
+     */
+    private static void index(Map<String, List<CatalogueEntry>> index,
+            String value, CatalogueEntry entry)
+    {
+        if (value != null)
+        {
+            String key = DeviceCatalogue.key(value);
+            List<CatalogueEntry> group = index.get(key);
+            if (group == null)
+            {
+                group = new ArrayList<CatalogueEntry>();
+                index.put(key, group);
+            }
+            group.add(entry);
+        }
+    }
+
+    /**
+     * @param candidates
+     *            the current candidates
+     * @param index
+     *            an index
+     * @param value
+     *            the indexed value to look up
+     * @return the smallest between the current candidates and the group
+     *         identified by the given value
+     */
+    private static List<CatalogueEntry> smallest(
+            List<CatalogueEntry> candidates,
+            Map<String, List<CatalogueEntry>> index, String value)
+    {
+        List<CatalogueEntry> group = index.get(DeviceCatalogue.key(value));
+
+        if (group == null)
+            return Collections.<CatalogueEntry> emptyList();
+
+        return (group.size() < candidates.size()) ? group : candidates;
+    }
+
+    /**
+     * @param value
+     *            an entry value, may be null
+     * @param criterion
+     *            the required value, null to accept any value
+     * @return true if the value satisfies the criterion
+     */
+    private static boolean matches(String value, String criterion)
+    {
+        return (criterion == null)
+                || ((value != null) && (value.equalsIgnoreCase(criterion)));
+    }
+
+    /**
+     * @param value
+     *            an indexed value, e.g., a device unique identifier
+     * @return the key indexing the given value
+     */
+    private static String key(String value)
+    {
+        return value.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.dispatch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * An adaptive limit of the calls in flight to a resource, following the
+ * additive-increase/multiplicative-decrease (AIMD) scheme: every call
+ * completing within the latency threshold while the limit is being used
+ * raises the limit by 1/limit, i.e., by 1 per limit calls; every call
+ * slower than the threshold, or dropped, cuts the limit by a constant
+ * factor. Calls beyond the limit wait for a permit, for a limited time and
+ * in a bounded number, the others being rejected.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class AdaptiveLimit
+{
+    // the factor cutting the limit on slow or dropped calls
+    private static final double BACKOFF = 0.9;
+
+    // the minimum limit
+    private static final int MIN_LIMIT = 1;
+
+    // the maximum limit
+    private final int maxLimit;
+
+    // the latency over which the limit is cut, in ns, 0 or less to only cut
+    // it on dropped calls
+    private final long latencyThreshold;
+
+    // the calls waiting for a permit, at most
+    private final int maxWaiting;
+
+    // the current limit
+    private double limit;
+
+    // the calls in flight
+    private int inFlight;
+
+    // the calls waiting for a permit
+    private int waiting;
+
+    // the calls rejected, either at once or after waiting
+    private long rejected;
+
+    // true once closed
+    private boolean closed;
+
+    /**
+     * Creates a new limit
+     *
+     * @param initialLimit
+     *            the initial limit
+     * @param maxLimit
+     *            the maximum limit
+     * @param latencyThreshold
+     *            the latency over which the limit is cut, in ns, 0 or less to
+     *            only cut it on dropped calls
+     * @param maxWaiting
+     *            the calls waiting for a permit, at most
+     */
+    public AdaptiveLimit(int initialLimit, int maxLimit, long latencyThreshold,
+            int maxWaiting)
+    {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.latencyThreshold = latencyThreshold;
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Asks the permission to call the resource, waiting for it if the limit
+     * is reached; a granted permission must be followed by either
+     * {@link #release()} or {@link #release(long, boolean)}
+     *
+     * @param maxWait
+     *            the maximum waiting time, in ns
+     * @return true if the call can proceed, false if it shall be rejected,
+     *         i.e., too many calls are waiting, no permit was released in
+     *         time or the limit is closed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public synchronized boolean acquire(long maxWait)
+            throws InterruptedException
+    {
+        if ((!this.closed) && (this.inFlight < (int) this.limit))
+        {
+            this.inFlight++;
+            return true;
+        }
+
+        if ((this.closed) || (this.waiting >= this.maxWaiting))
+        {
+            this.rejected++;
+            return false;
+        }
+
+        this.waiting++;
+        try
+        {
+            long deadline = System.nanoTime() + maxWait;
+            long remaining = maxWait;
+            while ((!this.closed) && (this.inFlight >= (int) this.limit))
+            {
+                if (remaining <= 0)
+                    break;
+
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+
+            if ((this.closed) || (this.inFlight >= (int) this.limit))
+            {
+                this.rejected++;
+                return false;
+            }
+
+            this.inFlight++;
+            return true;
+        }
+        finally
+        {
+            this.waiting--;
+        }
+    }
+
+    /**
+     * Releases the permission of a call that did not reach the resource,
+     * leaving the limit unchanged
+     */
+    public synchronized void release()
+    {
+        this.inFlight--;
+        this.notifyAll();
+    }
+
+    /**
+     * Rejects the waiting calls, and any call from now on
+     */
+    public synchronized void close()
+    {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Releases the permission of a completed call, adapting the limit to its
+     * outcome
+     *
+     * @param latency
+     *            the call latency, in ns
+     * @param dropped
+     *            true if the call timed out or was otherwise dropped
+     */
+    public synchronized void release(long latency, boolean dropped)
+    {
+        // the limit is only raised if actually used, i.e., at least half of
+        // it was in flight
+        boolean used = this.inFlight * 2 >= this.limit;
+        this.inFlight--;
+
+        if ((dropped) || ((this.latencyThreshold > 0)
+                && (latency > this.latencyThreshold)))
+            this.limit = Math.max(MIN_LIMIT, this.limit * BACKOFF);
+        else if (used)
+            this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+
+        this.notifyAll();
+    }
+
+    /**
+     * Writes the limit state as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        int currentLimit;
+        int currentInFlight;
+        int currentWaiting;
+        long currentRejected;
+        synchronized (this)
+        {
+            currentLimit = (int) this.limit;
+            currentInFlight = this.inFlight;
+            currentWaiting = this.waiting;
+            currentRejected = this.rejected;
+        }
+
+        generator.writeNumberField("limit", currentLimit);
+        generator.writeNumberField("maxLimit", this.maxLimit);
+        generator.writeNumberField("inFlight", currentInFlight);
+        generator.writeNumberField("waiting", currentWaiting);
+        generator.writeNumberField("maxWaiting", this.maxWaiting);
+        generator.writeNumberField("rejected", currentRejected);
+    }
+}
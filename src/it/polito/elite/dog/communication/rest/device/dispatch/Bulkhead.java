@@ -0,0 +1,202 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.dispatch;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import it.polito.elite.dog.communication.rest.device.metrics.LatencyHistogram;
+
+/**
+ * A bulkhead, bounding the requests of a kind (e.g., status reads) served at
+ * the same time, so that a burst of them cannot take all the threads of the
+ * HTTP service from the other kinds of requests. Requests beyond the bound
+ * wait in a bounded queue, in arrival order, for a limited time; the ones
+ * not admitted are rejected.
+ *
+ * A bulkhead may yield to a priority one: while requests are waiting to
+ * enter the priority bulkhead, the requests entering this one are rejected
+ * at once, releasing the HTTP threads to the priority requests.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class Bulkhead
+{
+    // the requests served at the same time
+    private final int concurrency;
+
+    // the requests waiting to be admitted, at most
+    private final int queueSize;
+
+    // the maximum waiting time, in ns
+    private final long maxWait;
+
+    // the bulkhead this one yields to, null if none
+    private final Bulkhead priority;
+
+    // the permits of the requests being served, handed out in arrival order
+    private final Semaphore permits;
+
+    // the requests waiting to be admitted, and their peak
+    private final AtomicInteger waiting;
+    private final AtomicInteger peakWaiting;
+
+    // the requests admitted, rejected while full or yielding, and timed out
+    // while waiting
+    private final AtomicLong admitted;
+    private final AtomicLong rejected;
+    private final AtomicLong timedOut;
+
+    // the time waited by the admitted requests
+    private final LatencyHistogram waitTime;
+
+    /**
+     * Creates a new bulkhead
+     *
+     * @param concurrency
+     *            the requests served at the same time
+     * @param queueSize
+     *            the requests waiting to be admitted, at most
+     * @param maxWait
+     *            the maximum waiting time, in ms
+     * @param priority
+     *            the bulkhead this one yields to, null if none
+     */
+    public Bulkhead(int concurrency, int queueSize, long maxWait,
+            Bulkhead priority)
+    {
+        this.concurrency = Math.max(1, concurrency);
+        this.queueSize = Math.max(0, queueSize);
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+        this.priority = priority;
+        this.permits = new Semaphore(this.concurrency, true);
+        this.waiting = new AtomicInteger();
+        this.peakWaiting = new AtomicInteger();
+        this.admitted = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.timedOut = new AtomicLong();
+        this.waitTime = new LatencyHistogram(this.maxWait);
+    }
+
+    /**
+     * Enters the bulkhead, waiting if needed; an admitted request must exit
+     * through {@link #exit()}
+     *
+     * @return true if the request was admitted, false if rejected
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean enter() throws InterruptedException
+    {
+        // yield to the priority requests
+        if ((this.priority != null) && (this.priority.isContended()))
+        {
+            this.rejected.incrementAndGet();
+            return false;
+        }
+
+        // a permit immediately available, unless already promised to a
+        // waiting request
+        if (this.permits.tryAcquire(0, TimeUnit.NANOSECONDS))
+        {
+            this.admitted.incrementAndGet();
+            this.waitTime.record(0);
+            return true;
+        }
+
+        // queue full
+        int queued = this.waiting.incrementAndGet();
+        if (queued > this.queueSize)
+        {
+            this.waiting.decrementAndGet();
+            this.rejected.incrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            int peak = this.peakWaiting.get();
+            while ((queued > peak)
+                    && (!this.peakWaiting.compareAndSet(peak, queued)))
+                peak = this.peakWaiting.get();
+
+            long start = System.nanoTime();
+            if (this.permits.tryAcquire(this.maxWait, TimeUnit.NANOSECONDS))
+            {
+                this.admitted.incrementAndGet();
+                this.waitTime.record(System.nanoTime() - start);
+                return true;
+            }
+
+            this.timedOut.incrementAndGet();
+            return false;
+        }
+        finally
+        {
+            this.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Exits the bulkhead, admitting the first waiting request, if any
+     */
+    public void exit()
+    {
+        this.permits.release();
+    }
+
+    /**
+     * @return true if requests are waiting to enter the bulkhead
+     */
+    public boolean isContended()
+    {
+        return this.waiting.get() > 0;
+    }
+
+    /**
+     * Writes the bulkhead state as fields of the current JSON object, times
+     * being in ms
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        generator.writeNumberField("concurrency", this.concurrency);
+        generator.writeNumberField("queueSize", this.queueSize);
+        generator.writeNumberField("inFlight",
+                this.concurrency - this.permits.availablePermits());
+        generator.writeNumberField("waiting", this.waiting.get());
+        generator.writeNumberField("peakWaiting", this.peakWaiting.get());
+        generator.writeNumberField("admitted", this.admitted.get());
+        generator.writeNumberField("rejected", this.rejected.get());
+        generator.writeNumberField("timedOut", this.timedOut.get());
+        generator.writeObjectFieldStart("waitTime");
+        this.waitTime.writeSummary(generator);
+        generator.writeEndObject();
+    }
+}
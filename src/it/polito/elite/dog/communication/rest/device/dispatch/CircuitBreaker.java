@@ -0,0 +1,179 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.dispatch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A circuit breaker, guarding the calls to a resource that may hang, e.g.,
+ * the driver of a technology whose gateway stopped answering. After a given
+ * number of consecutive failures the breaker opens, and calls are rejected
+ * without reaching the resource; once the open time elapsed, a single probe
+ * call is let through (half-open state), closing the breaker if it
+ * succeeds, or opening it again otherwise.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class CircuitBreaker
+{
+    /**
+     * The breaker states
+     */
+    public enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // the consecutive failures opening the breaker
+    private final int failureThreshold;
+
+    // the time the breaker stays open before letting a probe through, in ns
+    private final long openTime;
+
+    // the current state
+    private State state;
+
+    // the consecutive failures
+    private int failures;
+
+    // the last opening, as given by System.nanoTime()
+    private long openedAt;
+
+    // the times the breaker opened
+    private long trips;
+
+    // the calls rejected while open or half-open
+    private long rejected;
+
+    /**
+     * Creates a new, closed, circuit breaker
+     *
+     * @param failureThreshold
+     *            the consecutive failures opening the breaker
+     * @param openTime
+     *            the time the breaker stays open before letting a probe
+     *            through, in ms
+     */
+    public CircuitBreaker(int failureThreshold, long openTime)
+    {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Asks the permission to call the resource; a granted permission must be
+     * followed by either {@link #onSuccess()} or {@link #onFailure()}
+     *
+     * @return true if the call can proceed, false if it shall be rejected
+     */
+    public synchronized boolean tryAcquire()
+    {
+        switch (this.state)
+        {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - this.openedAt >= this.openTime)
+                {
+                    // let a single probe through
+                    this.state = State.HALF_OPEN;
+                    return true;
+                }
+                break;
+            default:
+                // a probe is already in progress
+                break;
+        }
+
+        this.rejected++;
+        return false;
+    }
+
+    /**
+     * Records a successful call, closing the breaker
+     */
+    public synchronized void onSuccess()
+    {
+        this.failures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed call, opening the breaker if the probe failed or if
+     * too many consecutive calls failed
+     */
+    public synchronized void onFailure()
+    {
+        this.failures++;
+
+        if ((this.state == State.HALF_OPEN) || ((this.state == State.CLOSED)
+                && (this.failures >= this.failureThreshold)))
+        {
+            this.state = State.OPEN;
+            this.openedAt = System.nanoTime();
+            this.trips++;
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * Writes the breaker state as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        State currentState;
+        int currentFailures;
+        long currentTrips;
+        long currentRejected;
+        long retryIn;
+        synchronized (this)
+        {
+            currentState = this.state;
+            currentFailures = this.failures;
+            currentTrips = this.trips;
+            currentRejected = this.rejected;
+            retryIn = this.openTime - (System.nanoTime() - this.openedAt);
+        }
+
+        generator.writeStringField("state", currentState.name());
+        generator.writeNumberField("consecutiveFailures", currentFailures);
+        generator.writeNumberField("trips", currentTrips);
+        generator.writeNumberField("rejected", currentRejected);
+        if (currentState == State.OPEN)
+            generator.writeNumberField("retryIn",
+                    TimeUnit.NANOSECONDS.toMillis(Math.max(0, retryIn)));
+    }
+}
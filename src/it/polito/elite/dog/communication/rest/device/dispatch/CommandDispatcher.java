@@ -0,0 +1,415 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.dispatch;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Dispatches the commands to the drivers of each technology on a dedicated,
+ * bounded, set of threads, waiting for their completion up to the timeout
+ * of the technology, behind the technology circuit breaker. A hanging
+ * driver thus blocks its own threads only: the calling threads are released
+ * on timeout, and, once the breaker opened, the commands to the same
+ * technology fail fast without being queued.
+ *
+ * Only timeouts and saturated technologies count as breaker failures: a
+ * command failing with an exception proves that the driver is answering.
+ *
+ * The commands in flight for each technology are bounded by an
+ * {@link AdaptiveLimit}, up to the technology threads, cut whenever commands
+ * take more than half the technology timeout: a slowing driver gets less
+ * concurrent commands, the excess ones waiting, in a bounded number and up
+ * to the technology timeout, for a command to complete.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class CommandDispatcher
+{
+    // the lane of the commands to devices of unknown technology
+    private static final String UNKNOWN_TECHNOLOGY = "unknown";
+
+    // the threads of each technology, i.e., the maximum concurrency limit
+    private final int concurrency;
+
+    // the initial concurrency limit of each technology
+    private final int initialLimit;
+
+    // the commands waiting for the concurrency limit of each technology, at
+    // most
+    private final int queueSize;
+
+    // the default timeout, in ns
+    private final long defaultTimeout;
+
+    // the timeout of each technology, in ns
+    private final Map<String, Long> timeouts;
+
+    // the consecutive failures opening a breaker
+    private final int failureThreshold;
+
+    // the time a breaker stays open, in ms
+    private final long openTime;
+
+    // the factory of the dispatching threads
+    private final ThreadFactory threadFactory;
+
+    // the lane of each technology
+    private final ConcurrentMap<String, Lane> lanes;
+
+    // true once shut down
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a new dispatcher, without lanes
+     *
+     * @param concurrency
+     *            the threads of each technology, i.e., the maximum
+     *            concurrency limit
+     * @param initialLimit
+     *            the initial concurrency limit of each technology
+     * @param queueSize
+     *            the commands waiting for the concurrency limit of each
+     *            technology, at most
+     * @param defaultTimeout
+     *            the timeout of the technologies without a specific one, in
+     *            ms, 0 or less to wait without limits
+     * @param timeouts
+     *            the specific timeout of some technologies, in ms, by
+     *            technology name
+     * @param failureThreshold
+     *            the consecutive failures opening a breaker
+     * @param openTime
+     *            the time a breaker stays open, in ms
+     * @param threadFactory
+     *            the factory of the dispatching threads
+     */
+    public CommandDispatcher(int concurrency, int initialLimit,
+            int queueSize, long defaultTimeout, Map<String, Long> timeouts,
+            int failureThreshold, long openTime, ThreadFactory threadFactory)
+    {
+        this.concurrency = Math.max(1, concurrency);
+        this.initialLimit = initialLimit;
+        this.queueSize = Math.max(0, queueSize);
+        this.defaultTimeout = TimeUnit.MILLISECONDS.toNanos(defaultTimeout);
+        this.timeouts = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> timeout : timeouts.entrySet())
+            this.timeouts.put(timeout.getKey(),
+                    TimeUnit.MILLISECONDS.toNanos(timeout.getValue()));
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.threadFactory = threadFactory;
+        this.lanes = new ConcurrentHashMap<String, Lane>();
+    }
+
+    /**
+     * Executes a command on the lane of the given technology, waiting for
+     * its completion up to the technology timeout, which also includes the
+     * time spent waiting for the technology concurrency limit
+     *
+     * @param technology
+     *            the technology of the commanded device, may be null
+     * @param command
+     *            the command to execute
+     * @return the command result
+     * @throws RejectedExecutionException
+     *             if the technology breaker is open, the technology
+     *             concurrency limit is not available in time, the technology
+     *             threads are all busy with timed out commands or the
+     *             dispatcher is shut down, even while the command was
+     *             waiting, or the command did not start in time, i.e., it
+     *             never reached the driver
+     * @throws TimeoutException
+     *             if the command started but did not complete in time, and
+     *             was cancelled
+     * @throws ExecutionException
+     *             if the command failed
+     * @throws InterruptedException
+     *             if interrupted while waiting, the command being cancelled
+     */
+    public <T> T dispatch(String technology, final Callable<T> command)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        Lane lane = this.getLane(technology);
+
+        if (this.shutdown)
+            throw new RejectedExecutionException("Dispatcher shut down");
+
+        // a single deadline bounds both the wait for the limit and the wait
+        // for the command
+        long deadline = System.nanoTime() + lane.timeout;
+        if (!lane.limit
+                .acquire((lane.timeout > 0) ? lane.timeout : Long.MAX_VALUE))
+            throw new RejectedExecutionException(
+                    "Concurrency limit reached for " + lane.technology);
+        long remaining = deadline - System.nanoTime();
+        if ((lane.timeout > 0) && (remaining <= 0))
+        {
+            lane.limit.release();
+            throw new RejectedExecutionException(
+                    "Concurrency limit reached for " + lane.technology);
+        }
+        if (!lane.breaker.tryAcquire())
+        {
+            lane.limit.release();
+            throw new RejectedExecutionException(
+                    "Circuit breaker open for " + lane.technology);
+        }
+
+        // either the command starts or, on timeout, it is abandoned before
+        // starting, never both
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        long start = System.nanoTime();
+        Future<T> future;
+        try
+        {
+            future = lane.executor.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    if (!claimed.compareAndSet(false, true))
+                        throw new CancellationException("Abandoned");
+
+                    return command.call();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // all the threads busy, though within the limit: timed out
+            // commands are still running, the driver is likely hanging
+            lane.saturated.incrementAndGet();
+            lane.breaker.onFailure();
+            lane.limit.release(System.nanoTime() - start, true);
+            throw e;
+        }
+
+        try
+        {
+            T result = (lane.timeout > 0)
+                    ? future.get(remaining, TimeUnit.NANOSECONDS)
+                    : future.get();
+            lane.breaker.onSuccess();
+            lane.limit.release(System.nanoTime() - start, false);
+
+            return result;
+        }
+        catch (ExecutionException e)
+        {
+            // the driver answered, with a failure
+            lane.breaker.onSuccess();
+            lane.limit.release(System.nanoTime() - start, false);
+            throw e;
+        }
+        catch (TimeoutException e)
+        {
+            lane.timeouts.incrementAndGet();
+            lane.breaker.onFailure();
+            lane.limit.release(System.nanoTime() - start, true);
+            future.cancel(true);
+
+            // a command that never started surely had no effect
+            if (claimed.compareAndSet(false, true))
+                throw new RejectedExecutionException(
+                        "Command not started in time for " + lane.technology,
+                        e);
+            throw e;
+        }
+        catch (CancellationException e)
+        {
+            // dropped from the queue on shutdown, before running
+            lane.limit.release();
+            throw new RejectedExecutionException("Dispatcher shut down", e);
+        }
+        catch (InterruptedException e)
+        {
+            // the outcome is unknown: conservatively, a failure
+            lane.breaker.onFailure();
+            lane.limit.release(System.nanoTime() - start, true);
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the state of each technology lane as fields of the current JSON
+     * object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        for (Lane lane : new TreeMap<String, Lane>(this.lanes).values())
+        {
+            generator.writeObjectFieldStart(lane.technology);
+            lane.write(generator);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Stops all the lanes, interrupting the running commands and rejecting
+     * the waiting ones, so that no caller waits for a command that will never
+     * run
+     */
+    public void shutdown()
+    {
+        this.shutdown = true;
+
+        for (Lane lane : this.lanes.values())
+        {
+            lane.limit.close();
+            for (Runnable queued : lane.executor.shutdownNow())
+            {
+                if (queued instanceof Future<?>)
+                    ((Future<?>) queued).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Gets the lane of the given technology, creating it if needed
+     *
+     * @param technology
+     *            the technology, may be null
+     * @return the corresponding lane
+     */
+    private Lane getLane(String technology)
+    {
+        String key = (technology != null) ? technology : UNKNOWN_TECHNOLOGY;
+
+        Lane lane = this.lanes.get(key);
+        if (lane == null)
+        {
+            Long timeout = this.timeouts.get(key);
+            Lane created = new Lane(key,
+                    (timeout != null) ? timeout : this.defaultTimeout);
+            lane = this.lanes.putIfAbsent(key, created);
+            if (lane == null)
+                lane = created;
+            else
+                created.executor.shutdown();
+        }
+
+        return lane;
+    }
+
+    /**
+     * The threads, timeout and breaker of a technology
+     */
+    private class Lane
+    {
+        // the technology
+        private final String technology;
+
+        // the timeout, in ns, 0 or less to wait without limits
+        private final long timeout;
+
+        // the dispatching threads, idle ones being released
+        private final ThreadPoolExecutor executor;
+
+        // the breaker
+        private final CircuitBreaker breaker;
+
+        // the limit of the commands in flight
+        private final AdaptiveLimit limit;
+
+        // the commands timed out
+        private final AtomicLong timeouts;
+
+        // the commands rejected because of a saturated lane
+        private final AtomicLong saturated;
+
+        /**
+         * Creates a new lane
+         *
+         * @param technology
+         *            the technology
+         * @param timeout
+         *            the timeout, in ns, 0 or less to wait without limits
+         */
+        Lane(String technology, long timeout)
+        {
+            CommandDispatcher dispatcher = CommandDispatcher.this;
+
+            this.technology = technology;
+            this.timeout = timeout;
+            // commands wait for the limit, never for a thread
+            this.executor = new ThreadPoolExecutor(dispatcher.concurrency,
+                    dispatcher.concurrency, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    dispatcher.threadFactory);
+            this.executor.allowCoreThreadTimeOut(true);
+            this.breaker = new CircuitBreaker(dispatcher.failureThreshold,
+                    dispatcher.openTime);
+            this.limit = new AdaptiveLimit(dispatcher.initialLimit,
+                    dispatcher.concurrency, timeout / 2,
+                    dispatcher.queueSize);
+            this.timeouts = new AtomicLong();
+            this.saturated = new AtomicLong();
+        }
+
+        /**
+         * Writes the lane state as fields of the current JSON object
+         *
+         * @param generator
+         *            the {@link JsonGenerator} to write on
+         * @throws IOException
+         */
+        void write(JsonGenerator generator) throws IOException
+        {
+            generator.writeNumberField("timeout",
+                    TimeUnit.NANOSECONDS.toMillis(Math.max(0, this.timeout)));
+            generator.writeNumberField("running",
+                    this.executor.getActiveCount());
+            generator.writeNumberField("timeouts", this.timeouts.get());
+            generator.writeNumberField("saturated", this.saturated.get());
+            generator.writeObjectFieldStart("breaker");
+            this.breaker.write(generator);
+            generator.writeEndObject();
+            generator.writeObjectFieldStart("concurrency");
+            this.limit.write(generator);
+            generator.writeEndObject();
+        }
+    }
+}
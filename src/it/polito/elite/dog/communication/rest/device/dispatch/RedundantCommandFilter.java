@@ -0,0 +1,381 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.dispatch;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.measure.Measure;
+
+import it.polito.elite.dog.communication.rest.device.history.StateHistoryStore;
+import it.polito.elite.dog.communication.rest.device.index.StateIndex;
+import it.polito.elite.dog.core.library.model.state.State;
+
+/**
+ * Detects the commands that would leave a device in the state it is already
+ * in, e.g., "on" sent to a lamp already on, so that they can be answered
+ * without reaching the device. Each command is mapped to the state it sets
+ * through a comma-separated list of <code>command:StateName=value</code>
+ * entries, e.g., <code>on:OnOffState=on</code>; an entry without value,
+ * e.g., <code>setTemperatureAt:TemperatureState</code>, compares the numeric
+ * parameter of the command with the numeric value of the state.
+ *
+ * The device states are those observed by the last status reads, used only
+ * while younger than the configured maximum age. No command is deemed
+ * redundant while another command to the same device is being executed, as
+ * it may change the device state; once completed, the observed states of
+ * the device are dropped, as they no longer describe the device, and so are
+ * the states read while the command was being executed. When in doubt,
+ * e.g., missing or stale states, or measures in different units, commands
+ * are not deemed redundant.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class RedundantCommandFilter
+{
+    // the relative tolerance of numeric comparisons, absorbing the rounding
+    // of float values
+    private static final double TOLERANCE = 1e-6;
+
+    // the state set by each command, indexed by lower-case command name
+    private final Map<String, Target> targets;
+
+    // the maximum age of the observed states, in ns
+    private final long maxAge;
+
+    // the last observed states of each device
+    private final ConcurrentHashMap<String, Observation> observations;
+
+    // the commands being executed, by device
+    private final Map<String, Integer> commandsInFlight;
+
+    /**
+     * Creates a new filter
+     *
+     * @param mapping
+     *            the comma-separated command:StateName[=value] entries,
+     *            malformed entries being ignored
+     * @param maxAge
+     *            the maximum age of the observed states, in ms
+     */
+    public RedundantCommandFilter(String mapping, long maxAge)
+    {
+        this.targets = new HashMap<String, Target>();
+        for (String item : mapping.split(","))
+        {
+            String entry = item.trim();
+            int colon = entry.indexOf(':');
+            if ((colon > 0) && (colon < entry.length() - 1))
+            {
+                String command = entry.substring(0, colon).trim();
+                String state = entry.substring(colon + 1).trim();
+                int equals = state.indexOf('=');
+
+                this.targets.put(command.toLowerCase(Locale.ENGLISH),
+                        (equals > 0)
+                                ? new Target(state.substring(0, equals).trim(),
+                                        state.substring(equals + 1).trim())
+                                : new Target(state, null));
+            }
+        }
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        this.observations = new ConcurrentHashMap<String, Observation>();
+        this.commandsInFlight = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Records the states of a device, unless a more recent read or command
+     * was already recorded
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param allStates
+     *            the device states, null if not available
+     * @param readStart
+     *            the start of the read, as given by System.nanoTime()
+     */
+    public void observe(String deviceId, Map<String, State> allStates,
+            long readStart)
+    {
+        Observation observation = new Observation(allStates, readStart);
+
+        while (true)
+        {
+            Observation current = this.observations.get(deviceId);
+            if ((current != null) && (current.time - readStart > 0))
+                return;
+
+            if ((current == null)
+                    ? this.observations.putIfAbsent(deviceId,
+                            observation) == null
+                    : this.observations.replace(deviceId, current,
+                            observation))
+                return;
+        }
+    }
+
+    /**
+     * Records the start of a command to a device: until completed, no
+     * command to the device is deemed redundant
+     *
+     * @param deviceId
+     *            the device unique identifier
+     */
+    public void commandStarted(String deviceId)
+    {
+        synchronized (this.commandsInFlight)
+        {
+            Integer count = this.commandsInFlight.get(deviceId);
+            this.commandsInFlight.put(deviceId,
+                    (count != null) ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Records the completion of a command to a device, whatever its outcome,
+     * dropping the observed states of the device and ignoring the ones of
+     * reads started so far
+     *
+     * @param deviceId
+     *            the device unique identifier
+     */
+    public void commandCompleted(String deviceId)
+    {
+        this.observations.put(deviceId,
+                new Observation(null, System.nanoTime()));
+
+        synchronized (this.commandsInFlight)
+        {
+            Integer count = this.commandsInFlight.get(deviceId);
+            if ((count == null) || (count <= 1))
+                this.commandsInFlight.remove(deviceId);
+            else
+                this.commandsInFlight.put(deviceId, count - 1);
+        }
+    }
+
+    /**
+     * Drops the observed states of all the devices not in the given set
+     *
+     * @param deviceIds
+     *            the currently registered devices
+     */
+    public void retain(Set<String> deviceIds)
+    {
+        this.observations.keySet().retainAll(deviceIds);
+    }
+
+    /**
+     * Checks whether a command would leave the device in its current state
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param commandName
+     *            the command
+     * @param parameters
+     *            the command parameters
+     * @return true if the device is known to be already in the state set by
+     *         the command
+     */
+    public boolean isRedundant(String deviceId, String commandName,
+            Object[] parameters)
+    {
+        Target target = this.targets
+                .get(commandName.toLowerCase(Locale.ENGLISH));
+        if (target == null)
+            return false;
+
+        // another command may be changing the device state
+        synchronized (this.commandsInFlight)
+        {
+            if (this.commandsInFlight.containsKey(deviceId))
+                return false;
+        }
+
+        Observation observation = this.observations.get(deviceId);
+        if ((observation == null) || (observation.states == null)
+                || (System.nanoTime() - observation.time > this.maxAge))
+            return false;
+
+        State state = observation.getState(target.stateName);
+        if (state == null)
+            return false;
+
+        // a discrete value set by the command itself
+        if (target.value != null)
+            return target.value.equalsIgnoreCase(
+                    StateIndex.discreteValue(state));
+
+        // a numeric value given as the only parameter
+        return (parameters.length == 1)
+                && (RedundantCommandFilter.equal(parameters[0], state));
+    }
+
+    /**
+     * @return true if no command is mapped to a state, i.e., no command can
+     *         ever be found redundant
+     */
+    public boolean isEmpty()
+    {
+        return this.targets.isEmpty();
+    }
+
+    /**
+     * Compares a numeric command parameter with the numeric value of a state
+     *
+     * @param parameter
+     *            the parameter, a {@link Number} or a {@link Measure}
+     * @param state
+     *            the state
+     * @return true if the values are equal, in the same unit
+     */
+    private static boolean equal(Object parameter, State state)
+    {
+        double stateValue = StateHistoryStore.numericValue(state);
+        if (Double.isNaN(stateValue))
+            return false;
+
+        double value;
+        if (parameter instanceof Measure<?, ?>)
+        {
+            // measures are only compared in the same unit
+            Measure<?, ?> measure = (Measure<?, ?>) parameter;
+            Object stateUnit = RedundantCommandFilter.getUnit(state);
+            if ((stateUnit == null) || (!stateUnit.equals(measure.getUnit()))
+                    || (!(measure.getValue() instanceof Number)))
+                return false;
+            value = ((Number) measure.getValue()).doubleValue();
+        }
+        else if (parameter instanceof Number)
+        {
+            if (RedundantCommandFilter.getUnit(state) != null)
+                return false;
+            value = ((Number) parameter).doubleValue();
+        }
+        else
+            return false;
+
+        return Math.abs(value - stateValue) <= TOLERANCE
+                * Math.max(1.0, Math.abs(value));
+    }
+
+    /**
+     * Gets the unit of the first measure value of a state
+     *
+     * @param state
+     *            the state
+     * @return the unit, null if the state value is not a measure
+     */
+    private static Object getUnit(State state)
+    {
+        if ((state.getCurrentStateValue() != null)
+                && (state.getCurrentStateValue().length > 0)
+                && (state.getCurrentStateValue()[0] != null))
+        {
+            for (Map.Entry<String, Object> feature : state
+                    .getCurrentStateValue()[0].getFeatures().entrySet())
+            {
+                if ((feature.getKey().contains("Value"))
+                        && (feature.getValue() instanceof Measure<?, ?>))
+                    return ((Measure<?, ?>) feature.getValue()).getUnit();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The state set by a command
+     */
+    private static class Target
+    {
+        // the state name, i.e., the simple name of the state class
+        private final String stateName;
+
+        // the discrete value, null if given by the command parameter
+        private final String value;
+
+        /**
+         * Creates a new target
+         *
+         * @param stateName
+         *            the state name
+         * @param value
+         *            the discrete value, null if given by the command
+         *            parameter
+         */
+        Target(String stateName, String value)
+        {
+            this.stateName = stateName;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The states of a device, as observed at a given time
+     */
+    private static class Observation
+    {
+        // the observed states, null if unknown
+        private final Map<String, State> states;
+
+        // the observation time, as given by System.nanoTime()
+        private final long time;
+
+        /**
+         * Creates a new observation
+         *
+         * @param states
+         *            the observed states, null if unknown
+         * @param time
+         *            the observation time, as given by System.nanoTime()
+         */
+        Observation(Map<String, State> states, long time)
+        {
+            this.states = states;
+            this.time = time;
+        }
+
+        /**
+         * Gets the observed state with the given name
+         *
+         * @param stateName
+         *            the state name, i.e., the simple name of the state
+         *            class, ignoring the case
+         * @return the state, null if not observed
+         */
+        State getState(String stateName)
+        {
+            for (State state : this.states.values())
+            {
+                if (state.getClass().getSimpleName()
+                        .equalsIgnoreCase(stateName))
+                    return state;
+            }
+
+            return null;
+        }
+    }
+}
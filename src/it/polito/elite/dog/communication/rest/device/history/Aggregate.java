@@ -0,0 +1,67 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.history;
+
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * The aggregation functions that can be computed over fixed time buckets of
+ * a {@link StateHistory}.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public enum Aggregate
+{
+    MIN, MAX, AVG, LAST;
+
+    /**
+     * @return the name of the function, as used in requests and responses
+     */
+    public String getName()
+    {
+        return this.name().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Parses a comma-separated list of aggregation functions, e.g.,
+     * "min,max,avg"
+     *
+     * @param functions
+     *            the list of functions
+     * @return the corresponding set of {@link Aggregate}s
+     * @throws IllegalArgumentException
+     *             if an unknown function is given
+     */
+    public static EnumSet<Aggregate> parse(String functions)
+    {
+        EnumSet<Aggregate> aggregates = EnumSet.noneOf(Aggregate.class);
+
+        for (String function : functions.split(","))
+        {
+            if (!function.trim().isEmpty())
+                aggregates.add(Aggregate.valueOf(
+                        function.trim().toUpperCase(Locale.ENGLISH)));
+        }
+
+        return aggregates;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.history;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The fixed-duration output buckets of an aggregation query over a
+ * {@link StateHistory}, filled either with raw samples or with the
+ * pre-aggregated buckets of a {@link HistoryRollup}.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class HistoryBuckets
+{
+    // the start time of the first bucket
+    private final long from;
+
+    // the bucket duration, in ms
+    private final long duration;
+
+    // the bucket aggregates
+    private final double[] min;
+    private final double[] max;
+    private final double[] sum;
+    private final double[] last;
+    private final long[] count;
+
+    /**
+     * Creates the empty output buckets covering the given time range
+     *
+     * @param from
+     *            the range start, aligned to the bucket duration
+     * @param duration
+     *            the bucket duration, in ms
+     * @param size
+     *            the number of buckets
+     */
+    public HistoryBuckets(long from, long duration, int size)
+    {
+        this.from = from;
+        this.duration = duration;
+        this.min = new double[size];
+        this.max = new double[size];
+        this.sum = new double[size];
+        this.last = new double[size];
+        this.count = new long[size];
+    }
+
+    /**
+     * Merges a (partial) aggregate into the bucket containing the given
+     * timestamp; aggregates are expected in non-decreasing time order.
+     *
+     * @param timestamp
+     *            the aggregate timestamp
+     * @param min
+     *            the aggregate minimum
+     * @param max
+     *            the aggregate maximum
+     * @param sum
+     *            the aggregate sum
+     * @param count
+     *            the number of aggregated samples
+     * @param last
+     *            the latest aggregated value
+     */
+    public void merge(long timestamp, double min, double max, double sum,
+            long count, double last)
+    {
+        long index = (timestamp - this.from) / this.duration;
+
+        if ((timestamp < this.from) || (index >= this.count.length))
+            return;
+
+        int i = (int) index;
+
+        if (this.count[i] == 0)
+        {
+            this.min[i] = min;
+            this.max[i] = max;
+        }
+        else
+        {
+            this.min[i] = Math.min(this.min[i], min);
+            this.max[i] = Math.max(this.max[i], max);
+        }
+
+        this.sum[i] += sum;
+        this.count[i] += count;
+        this.last[i] = last;
+    }
+
+    /**
+     * Writes the non-empty buckets as a "timestamps" array of bucket start
+     * times followed by one array for each of the required aggregation
+     * functions.
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param aggregates
+     *            the aggregation functions to write
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator, EnumSet<Aggregate> aggregates)
+            throws IOException
+    {
+        generator.writeArrayFieldStart("timestamps");
+        for (int i = 0; i < this.count.length; i++)
+        {
+            if (this.count[i] > 0)
+                generator.writeNumber(this.from + i * this.duration);
+        }
+        generator.writeEndArray();
+
+        for (Aggregate aggregate : aggregates)
+        {
+            generator.writeArrayFieldStart(aggregate.getName());
+            for (int i = 0; i < this.count.length; i++)
+            {
+                if (this.count[i] > 0)
+                {
+                    switch (aggregate)
+                    {
+                        case MIN:
+                            generator.writeNumber(this.min[i]);
+                            break;
+                        case MAX:
+                            generator.writeNumber(this.max[i]);
+                            break;
+                        case AVG:
+                            generator.writeNumber(this.sum[i] / this.count[i]);
+                            break;
+                        case LAST:
+                            generator.writeNumber(this.last[i]);
+                            break;
+                    }
+                }
+            }
+            generator.writeEndArray();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.history;
+
+/**
+ * Incrementally pre-aggregated buckets of fixed resolution (e.g., 1 minute)
+ * for a {@link StateHistory}. Buckets are contiguous in time and stored in a
+ * ring of primitive arrays: the slot of a bucket is derived from its index,
+ * i.e., its start time divided by the resolution, so that no timestamp needs
+ * to be stored. Min, max and last values are kept as floats, sums as
+ * doubles, for a footprint of 24 bytes per bucket.
+ *
+ * Instances are not thread-safe: they are guarded by the owning
+ * {@link StateHistory}.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class HistoryRollup
+{
+    // the bucket duration, in ms
+    private final long resolution;
+
+    // the bucket aggregates
+    private final float[] min;
+    private final float[] max;
+    private final float[] last;
+    private final double[] sum;
+    private final int[] count;
+
+    // the index of the newest bucket, -1 if none
+    private long newest;
+
+    /**
+     * Creates a new, empty, rollup
+     *
+     * @param resolution
+     *            the bucket duration, in ms
+     * @param capacity
+     *            the number of retained buckets
+     */
+    public HistoryRollup(long resolution, int capacity)
+    {
+        this.resolution = resolution;
+        this.min = new float[capacity];
+        this.max = new float[capacity];
+        this.last = new float[capacity];
+        this.sum = new double[capacity];
+        this.count = new int[capacity];
+        this.newest = -1;
+    }
+
+    /**
+     * @return the bucket duration, in ms
+     */
+    public long getResolution()
+    {
+        return this.resolution;
+    }
+
+    /**
+     * @return the start time of the oldest retained bucket, or
+     *         {@link Long#MAX_VALUE} if the rollup is empty
+     */
+    public long getOldest()
+    {
+        if (this.newest < 0)
+            return Long.MAX_VALUE;
+
+        return Math.max(0, this.newest - this.count.length + 1)
+                * this.resolution;
+    }
+
+    /**
+     * Adds a sample; samples are expected in non-decreasing time order.
+     *
+     * @param timestamp
+     *            the sample timestamp
+     * @param value
+     *            the sample value
+     */
+    public void add(long timestamp, double value)
+    {
+        long bucket = timestamp / this.resolution;
+
+        // too old to be retained
+        if ((this.newest >= 0) && (bucket <= this.newest - this.count.length))
+            return;
+
+        // move forward, emptying the buckets left behind
+        if (bucket > this.newest)
+        {
+            long first = Math.max(this.newest + 1,
+                    bucket - this.count.length + 1);
+            for (long i = first; i <= bucket; i++)
+                this.count[this.slot(i)] = 0;
+            this.newest = bucket;
+        }
+
+        int slot = this.slot(bucket);
+        float floatValue = (float) value;
+
+        if (this.count[slot] == 0)
+        {
+            this.min[slot] = floatValue;
+            this.max[slot] = floatValue;
+            this.sum[slot] = 0;
+        }
+        else
+        {
+            this.min[slot] = Math.min(this.min[slot], floatValue);
+            this.max[slot] = Math.max(this.max[slot], floatValue);
+        }
+
+        this.sum[slot] += value;
+        this.last[slot] = floatValue;
+        this.count[slot]++;
+    }
+
+    /**
+     * Merges the retained buckets overlapping the given time range into the
+     * given output buckets, whose duration must be a multiple of the rollup
+     * resolution.
+     *
+     * @param from
+     *            the range start (ms since epoch), aligned to the output
+     *            bucket duration
+     * @param to
+     *            the range end (ms since epoch, included)
+     * @param buckets
+     *            the output buckets
+     */
+    public void mergeInto(long from, long to, HistoryBuckets buckets)
+    {
+        if (this.newest < 0)
+            return;
+
+        long first = Math.max(from / this.resolution,
+                this.newest - this.count.length + 1);
+        long lastBucket = Math.min(to / this.resolution, this.newest);
+
+        for (long i = first; i <= lastBucket; i++)
+        {
+            int slot = this.slot(i);
+
+            if (this.count[slot] > 0)
+                buckets.merge(i * this.resolution, this.min[slot],
+                        this.max[slot], this.sum[slot], this.count[slot],
+                        this.last[slot]);
+        }
+    }
+
+    /**
+     * @param bucket
+     *            a bucket index
+     * @return the ring slot of the given bucket
+     */
+    private int slot(long bucket)
+    {
+        return (int) (bucket % this.count.length);
+    }
+}
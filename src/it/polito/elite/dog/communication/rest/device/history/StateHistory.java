@@ -0,0 +1,327 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.history;
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A fixed-size ring buffer of numeric samples for a single (device, state)
+ * pair. Values and timestamps are stored in two parallel primitive arrays
+ * allocated once, so that neither boxing nor per-sample objects are needed
+ * and the memory footprint only depends on the buffer capacity.
+ *
+ * Each sample also feeds a set of {@link HistoryRollup}s of increasing
+ * resolution, so that aggregations over large time ranges are computed from
+ * pre-aggregated buckets, in a time proportional to the number of output
+ * buckets rather than to the number of samples.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class StateHistory
+{
+    // the state class this history refers to
+    private final Class<?> stateClass;
+
+    // the sample timestamps (ms since epoch)
+    private final long[] timestamps;
+
+    // the sample values
+    private final double[] values;
+
+    // the minimum interval between two samples having the same value
+    private final long minInterval;
+
+    // the pre-aggregated rollups, by increasing resolution
+    private final HistoryRollup[] rollups;
+
+    // the position of the next sample to write
+    private int next;
+
+    // the number of samples currently stored
+    private int size;
+
+    /**
+     * Creates a new, empty, history
+     *
+     * @param stateClass
+     *            the class of the state whose values are stored
+     * @param capacity
+     *            the maximum number of retained samples, at least 1
+     * @param minInterval
+     *            the minimum interval, in ms, between two consecutive
+     *            samples carrying the same value
+     * @param resolutions
+     *            the bucket durations of the rollups, in increasing order
+     * @param rollupCapacities
+     *            the number of buckets retained by each rollup
+     */
+    public StateHistory(Class<?> stateClass, int capacity, long minInterval,
+            long[] resolutions, int[] rollupCapacities)
+    {
+        this.stateClass = stateClass;
+        this.timestamps = new long[Math.max(1, capacity)];
+        this.values = new double[this.timestamps.length];
+        this.minInterval = minInterval;
+        this.rollups = new HistoryRollup[resolutions.length];
+        for (int i = 0; i < resolutions.length; i++)
+            this.rollups[i] = new HistoryRollup(resolutions[i],
+                    rollupCapacities[i]);
+        this.next = 0;
+        this.size = 0;
+    }
+
+    /**
+     * @return the class of the state whose values are stored
+     */
+    public Class<?> getStateClass()
+    {
+        return this.stateClass;
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest one when the buffer is full.
+     * Samples older than the last stored one are discarded, as well as
+     * samples repeating the last value within the minimum interval.
+     *
+     * @param timestamp
+     *            the sample timestamp
+     * @param value
+     *            the sample value
+     * @return true if the sample has been stored
+     */
+    public synchronized boolean add(long timestamp, double value)
+    {
+        if (this.size > 0)
+        {
+            int last = this.previous(this.next);
+
+            // keep samples ordered and skip unchanged values
+            if ((timestamp < this.timestamps[last])
+                    || ((this.values[last] == value) && (timestamp
+                            - this.timestamps[last] < this.minInterval)))
+                return false;
+        }
+
+        this.timestamps[this.next] = timestamp;
+        this.values[this.next] = value;
+        this.next = (this.next + 1) % this.timestamps.length;
+
+        if (this.size < this.timestamps.length)
+            this.size++;
+
+        // update the pre-aggregated buckets
+        for (HistoryRollup rollup : this.rollups)
+            rollup.add(timestamp, value);
+
+        return true;
+    }
+
+    /**
+     * Writes the aggregation of the samples falling in the given time range
+     * over fixed time buckets aligned to the bucket duration. Aggregates are
+     * computed from the coarsest rollup whose resolution divides the bucket
+     * duration or, if none, from the raw samples.
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param from
+     *            the range start (ms since epoch)
+     * @param to
+     *            the range end (ms since epoch)
+     * @param duration
+     *            the bucket duration, in ms
+     * @param aggregates
+     *            the aggregation functions to compute
+     * @param maxBuckets
+     *            the maximum number of buckets that can be computed
+     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if the range spans more than the maximum number of buckets
+     */
+    public void writeAggregate(JsonGenerator generator, long from, long to,
+            long duration, EnumSet<Aggregate> aggregates, int maxBuckets)
+            throws IOException
+    {
+        HistoryBuckets buckets = null;
+
+        // aggregate under lock, write outside
+        synchronized (this)
+        {
+            // select the coarsest compatible rollup
+            HistoryRollup source = null;
+            for (HistoryRollup rollup : this.rollups)
+            {
+                if ((rollup.getResolution() <= duration)
+                        && (duration % rollup.getResolution() == 0))
+                    source = rollup;
+            }
+
+            // restrict the range to the available data
+            if (this.size > 0)
+            {
+                long oldest = (source != null) ? source.getOldest()
+                        : this.timestamps[this.physical(0)];
+                from = Math.max(from, oldest);
+                to = Math.min(to, this.timestamps[this.previous(this.next)]);
+            }
+
+            if ((this.size > 0) && (from <= to))
+            {
+                // align the range start to the bucket duration
+                from = from - (from % duration);
+
+                long size = (to - from) / duration + 1;
+                if (size > maxBuckets)
+                    throw new IllegalArgumentException("The time range spans "
+                            + size + " buckets, more than " + maxBuckets);
+
+                buckets = new HistoryBuckets(from, duration, (int) size);
+
+                if (source != null)
+                {
+                    source.mergeInto(from, to, buckets);
+                }
+                else
+                {
+                    for (int i = this.indexOfFirst(from); i < this.size; i++)
+                    {
+                        int position = this.physical(i);
+                        if (this.timestamps[position] > to)
+                            break;
+
+                        double value = this.values[position];
+                        buckets.merge(this.timestamps[position], value,
+                                value, value, 1, value);
+                    }
+                }
+            }
+            else
+                buckets = new HistoryBuckets(0, duration, 0);
+        }
+
+        generator.writeNumberField("bucket", duration);
+        buckets.write(generator, aggregates);
+    }
+
+    /**
+     * Writes the samples falling in the given time range (bounds included) as
+     * a JSON object with two parallel arrays: "timestamps" and "values".
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param from
+     *            the range start (ms since epoch)
+     * @param to
+     *            the range end (ms since epoch)
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator, long from, long to)
+            throws IOException
+    {
+        long[] rangeTimestamps;
+        double[] rangeValues;
+
+        // copy the range under lock, write it outside
+        synchronized (this)
+        {
+            int first = this.indexOfFirst(from);
+            int count = 0;
+
+            while ((count < this.size - first) && (this.timestamps[this
+                    .physical(first + count)] <= to))
+                count++;
+
+            rangeTimestamps = new long[count];
+            rangeValues = new double[count];
+
+            for (int i = 0; i < count; i++)
+            {
+                rangeTimestamps[i] = this.timestamps[this.physical(first + i)];
+                rangeValues[i] = this.values[this.physical(first + i)];
+            }
+        }
+
+        generator.writeArrayFieldStart("timestamps");
+        for (int i = 0; i < rangeTimestamps.length; i++)
+            generator.writeNumber(rangeTimestamps[i]);
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("values");
+        for (int i = 0; i < rangeValues.length; i++)
+            generator.writeNumber(rangeValues[i]);
+        generator.writeEndArray();
+    }
+
+    /**
+     * Finds, by binary search, the logical index of the first sample whose
+     * timestamp is greater than or equal to the given one. To be called while
+     * holding the instance lock.
+     *
+     * @param timestamp
+     *            the timestamp to search
+     * @return the logical index of the first matching sample, or the current
+     *         size if no sample matches
+     */
+    private int indexOfFirst(long timestamp)
+    {
+        int low = 0;
+        int high = this.size;
+
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if (this.timestamps[this.physical(middle)] < timestamp)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    /**
+     * Converts a logical index (0 being the oldest sample) into a position in
+     * the backing arrays
+     *
+     * @param logical
+     *            the logical index
+     * @return the corresponding array position
+     */
+    private int physical(int logical)
+    {
+        int oldest = (this.size < this.timestamps.length) ? 0 : this.next;
+        return (oldest + logical) % this.timestamps.length;
+    }
+
+    /**
+     * @param position
+     *            an array position
+     * @return the array position preceding the given one
+     */
+    private int previous(int position)
+    {
+        return (position == 0) ? this.timestamps.length - 1 : position - 1;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.history;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.measure.Measure;
+
+import it.polito.elite.dog.core.library.model.state.State;
+import it.polito.elite.dog.core.library.model.statevalue.StateValue;
+
+/**
+ * Keeps a {@link StateHistory} for each (device, state) pair whose value is
+ * numeric, i.e., either a {@link Number} or a {@link Measure} with a numeric
+ * value. The overall number of histories is capped, so that the memory used
+ * is bounded by <code>maxSeries * (capacity * 16 + rollupBuckets * 24)</code>
+ * bytes, <code>rollupBuckets</code> being the overall number of buckets
+ * retained by the rollups of each history.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class StateHistoryStore
+{
+    // the histories of each device, indexed by device id
+    private final ConcurrentHashMap<String, StateHistory[]> devices;
+
+    // the number of allocated histories
+    private final AtomicInteger series;
+
+    // the number of samples retained by each history
+    private final int capacity;
+
+    // the maximum number of histories
+    private final int maxSeries;
+
+    // the minimum interval between two samples having the same value
+    private final long minInterval;
+
+    // the rollup resolutions and capacities
+    private final long[] resolutions;
+    private final int[] rollupCapacities;
+
+    /**
+     * Creates a new, empty, store
+     *
+     * @param capacity
+     *            the number of samples retained for each (device, state)
+     *            pair, at least 1
+     * @param maxSeries
+     *            the maximum number of (device, state) pairs to track
+     * @param minInterval
+     *            the minimum interval, in ms, between two consecutive
+     *            samples carrying the same value
+     * @param rollups
+     *            the rollups to keep for each history, as a comma-separated
+     *            list of resolution:capacity pairs, e.g., "60000:60" for one
+     *            hour of 1-minute buckets; resolutions must be increasing
+     * @throws IllegalArgumentException
+     *             if the rollup specification is malformed
+     */
+    public StateHistoryStore(int capacity, int maxSeries, long minInterval,
+            String rollups)
+    {
+        this.devices = new ConcurrentHashMap<String, StateHistory[]>();
+        this.series = new AtomicInteger();
+        this.capacity = Math.max(1, capacity);
+        this.maxSeries = maxSeries;
+        this.minInterval = minInterval;
+
+        // parse the rollup specification
+        String[] specs = rollups.trim().isEmpty() ? new String[0]
+                : rollups.split(",");
+        this.resolutions = new long[specs.length];
+        this.rollupCapacities = new int[specs.length];
+        for (int i = 0; i < specs.length; i++)
+        {
+            String[] spec = specs[i].split(":");
+            if (spec.length != 2)
+                throw new IllegalArgumentException(
+                        "Malformed rollup specification: " + specs[i]);
+
+            this.resolutions[i] = Long.parseLong(spec[0].trim());
+            this.rollupCapacities[i] = Integer.parseInt(spec[1].trim());
+
+            if ((this.resolutions[i] <= 0) || (this.rollupCapacities[i] <= 0)
+                    || ((i > 0)
+                            && (this.resolutions[i] <= this.resolutions[i - 1])))
+                throw new IllegalArgumentException(
+                        "Invalid rollup specification: " + specs[i]);
+        }
+    }
+
+    /**
+     * Records the numeric values of the given device states
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param allStates
+     *            the current device states
+     * @param timestamp
+     *            the time at which the states have been observed
+     */
+    public void record(String deviceId, Map<String, State> allStates,
+            long timestamp)
+    {
+        if ((deviceId == null) || (allStates == null))
+            return;
+
+        for (State currentState : allStates.values())
+            this.record(deviceId, currentState, timestamp);
+    }
+
+    /**
+     * Records the numeric value of a single device state, e.g., just changed
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param state
+     *            the current device state
+     * @param timestamp
+     *            the time at which the state has been observed
+     */
+    public void record(String deviceId, State state, long timestamp)
+    {
+        if ((deviceId == null) || (state == null))
+            return;
+
+        double value = StateHistoryStore.numericValue(state);
+
+        if (!Double.isNaN(value))
+        {
+            StateHistory history = this.getOrCreate(deviceId,
+                    state.getClass());
+
+            if (history != null)
+                history.add(timestamp, value);
+        }
+    }
+
+    /**
+     * Drops the histories of all the devices not in the given set, releasing
+     * their share of the maximum number of histories
+     *
+     * @param deviceIds
+     *            the ids of the devices to keep
+     */
+    public synchronized void retain(Set<String> deviceIds)
+    {
+        Iterator<Entry<String, StateHistory[]>> iterator = this.devices
+                .entrySet().iterator();
+
+        while (iterator.hasNext())
+        {
+            Entry<String, StateHistory[]> device = iterator.next();
+
+            if (!deviceIds.contains(device.getKey()))
+            {
+                iterator.remove();
+                this.series.addAndGet(-device.getValue().length);
+            }
+        }
+    }
+
+    /**
+     * Gets the history of the given device state
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param stateName
+     *            the state name, i.e., the simple name of the state class
+     * @return the {@link StateHistory}, or null if the state has never been
+     *         recorded
+     */
+    public StateHistory getHistory(String deviceId, String stateName)
+    {
+        StateHistory[] histories = this.devices.get(deviceId);
+
+        if (histories != null)
+        {
+            for (StateHistory history : histories)
+            {
+                if (history.getStateClass().getSimpleName()
+                        .equalsIgnoreCase(stateName))
+                    return history;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the history of the given device and state class, allocating it if
+     * needed and allowed by the maximum number of histories
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param stateClass
+     *            the state class
+     * @return the {@link StateHistory}, or null if the limit has been reached
+     */
+    private StateHistory getOrCreate(String deviceId, Class<?> stateClass)
+    {
+        StateHistory[] histories = this.devices.get(deviceId);
+
+        StateHistory history = StateHistoryStore.find(histories, stateClass);
+
+        if (history == null)
+        {
+            // histories of a device are only added, copy-on-write
+            synchronized (this)
+            {
+                histories = this.devices.get(deviceId);
+                history = StateHistoryStore.find(histories, stateClass);
+
+                if ((history == null)
+                        && (this.series.get() < this.maxSeries))
+                {
+                    history = new StateHistory(stateClass, this.capacity,
+                            this.minInterval, this.resolutions,
+                            this.rollupCapacities);
+
+                    int length = (histories != null) ? histories.length : 0;
+                    StateHistory[] newHistories = new StateHistory[length + 1];
+                    if (histories != null)
+                        System.arraycopy(histories, 0, newHistories, 0, length);
+                    newHistories[length] = history;
+
+                    this.devices.put(deviceId, newHistories);
+                    this.series.incrementAndGet();
+                }
+            }
+        }
+
+        return history;
+    }
+
+    /**
+     * Finds the history of the given state class
+     *
+     * @param histories
+     *            the device histories, may be null
+     * @param stateClass
+     *            the state class
+     * @return the matching {@link StateHistory} or null
+     */
+    private static StateHistory find(StateHistory[] histories,
+            Class<?> stateClass)
+    {
+        if (histories != null)
+        {
+            for (StateHistory history : histories)
+            {
+                if (history.getStateClass() == stateClass)
+                    return history;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Extracts the numeric value of the first state value of the given state,
+     * i.e., the first feature whose key contains "Value" and holding a
+     * {@link Number} or a {@link Measure} with a numeric value.
+     *
+     * @param state
+     *            the state
+     * @return the numeric value, or {@link Double#NaN} if none
+     */
+    public static double numericValue(State state)
+    {
+        StateValue[] stateValues = state.getCurrentStateValue();
+
+        if ((stateValues != null) && (stateValues.length > 0)
+                && (stateValues[0] != null))
+        {
+            for (Entry<String, Object> feature : stateValues[0].getFeatures()
+                    .entrySet())
+            {
+                if (feature.getKey().contains("Value"))
+                {
+                    Object value = feature.getValue();
+
+                    if (value instanceof Measure<?, ?>)
+                        value = ((Measure<?, ?>) value).getValue();
+
+                    if (value instanceof Number)
+                        return ((Number) value).doubleValue();
+                }
+            }
+        }
+
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory token index over the id, description and location of the
+ * configured devices, answering prefix queries, e.g., "kitch" matching a
+ * device located in the "Kitchen", without scanning the devices.
+ *
+ * Texts are split into lower-case tokens at any non alphanumeric character;
+ * camel-case words are additionally split into their parts, so that
+ * "LivingRoomLamp" is also found by "room", "lamp" and "roomlamp".
+ * Tokens are kept in a sorted map, so that all the tokens starting with a
+ * given prefix form a contiguous range. The index is updated incrementally,
+ * one device at a time; lookups never lock.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class SearchIndex
+{
+    // the devices containing each token, sorted by token
+    private final ConcurrentSkipListMap<String, Set<String>> devicesByToken;
+
+    // the indexed documents, by device id
+    private final ConcurrentHashMap<String, Document> documents;
+
+    /**
+     * Creates a new, empty, index
+     */
+    public SearchIndex()
+    {
+        this.devicesByToken = new ConcurrentSkipListMap<String, Set<String>>();
+        this.documents = new ConcurrentHashMap<String, Document>();
+    }
+
+    /**
+     * Indexes a device, replacing its previous description and location; the
+     * index is not modified if neither changed
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param description
+     *            the device description, may be null
+     * @param location
+     *            the device location, may be null
+     */
+    public synchronized void update(String deviceId, String description,
+            String location)
+    {
+        Document previous = this.documents.get(deviceId);
+
+        // nothing changed
+        if ((previous != null)
+                && (SearchIndex.equal(previous.getDescription(), description))
+                && (SearchIndex.equal(previous.getLocation(), location)))
+            return;
+
+        Document document = new Document(deviceId, description, location);
+        Set<String> previousTokens = (previous != null) ? previous.tokens
+                : Collections.<String> emptySet();
+
+        // drop the tokens no longer in the document
+        for (String token : previousTokens)
+        {
+            if (!document.tokens.contains(token))
+                this.removeToken(token, deviceId);
+        }
+
+        // add the new tokens
+        for (String token : document.tokens)
+        {
+            if (!previousTokens.contains(token))
+            {
+                Set<String> devices = this.devicesByToken.get(token);
+                if (devices == null)
+                {
+                    devices = Collections.newSetFromMap(
+                            new ConcurrentHashMap<String, Boolean>());
+                    this.devicesByToken.put(token, devices);
+                }
+                devices.add(deviceId);
+            }
+        }
+
+        this.documents.put(deviceId, document);
+    }
+
+    /**
+     * Removes all the devices not belonging to the given set, e.g., no longer
+     * configured
+     *
+     * @param deviceIds
+     *            the device unique identifiers to retain
+     */
+    public synchronized void retain(Set<String> deviceIds)
+    {
+        Iterator<Document> documents = this.documents.values().iterator();
+        while (documents.hasNext())
+        {
+            Document document = documents.next();
+            if (!deviceIds.contains(document.getId()))
+            {
+                for (String token : document.tokens)
+                    this.removeToken(token, document.getId());
+                documents.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the devices matching all the tokens of the given query, each
+     * query token being matched as a prefix of the indexed tokens
+     *
+     * @param query
+     *            the query text, e.g., "kitchen lamp"
+     * @return the matching documents, sorted by device id
+     */
+    public List<Document> search(String query)
+    {
+        Set<String> matching = null;
+
+        for (String queryToken : SearchIndex.words(query))
+        {
+            // collect the devices having a token starting with the query
+            // token
+            Set<String> devices = new HashSet<String>();
+            for (Set<String> tokenDevices : this.devicesByToken
+                    .subMap(queryToken, true, queryToken + Character.MAX_VALUE,
+                            true)
+                    .values())
+                devices.addAll(tokenDevices);
+
+            // intersect with the devices matching the previous query tokens
+            if (matching == null)
+                matching = devices;
+            else
+                matching.retainAll(devices);
+
+            if (matching.isEmpty())
+                break;
+        }
+
+        List<Document> results = new ArrayList<Document>();
+        if (matching != null)
+        {
+            for (String deviceId : matching)
+            {
+                Document document = this.documents.get(deviceId);
+                if (document != null)
+                    results.add(document);
+            }
+
+            Collections.sort(results, new Comparator<Document>()
+            {
+                @Override
+                public int compare(Document first, Document second)
+                {
+                    return first.getId().compareToIgnoreCase(second.getId());
+                }
+            });
+        }
+
+        return results;
+    }
+
+    /**
+     * Removes a device from the set of devices containing a token
+     *
+     * @param token
+     *            the token
+     * @param deviceId
+     *            the device unique identifier
+     */
+    private void removeToken(String token, String deviceId)
+    {
+        Set<String> devices = this.devicesByToken.get(token);
+        if (devices != null)
+        {
+            devices.remove(deviceId);
+            if (devices.isEmpty())
+                this.devicesByToken.remove(token);
+        }
+    }
+
+    /**
+     * Splits a text into lower-case words, at any non alphanumeric character
+     *
+     * @param text
+     *            the text, may be null
+     * @return the words, in order of appearance
+     */
+    private static List<String> words(String text)
+    {
+        List<String> words = new ArrayList<String>();
+
+        if (text != null)
+        {
+            for (String word : text.split("[^\\p{L}\\p{N}]+"))
+            {
+                if (!word.isEmpty())
+                    words.add(word.toLowerCase(Locale.ENGLISH));
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Tokenizes a text, adding each word and, for camel-case words, each of
+     * their parts
+     *
+     * @param text
+     *            the text, may be null
+     * @param tokens
+     *            the set of tokens to add to
+     */
+    private static void tokenize(String text, Set<String> tokens)
+    {
+        if (text == null)
+            return;
+
+        for (String word : text.split("[^\\p{L}\\p{N}]+"))
+        {
+            if (word.isEmpty())
+                continue;
+
+            tokens.add(word.toLowerCase(Locale.ENGLISH));
+
+            // split camel-case words and letter/digit boundaries, adding
+            // each part joined with the following ones, e.g., "roomlamp"
+            String[] parts = word.split(
+                    "(?<=\\p{Ll})(?=\\p{Lu})|(?<=\\p{L})(?=\\p{N})|(?<=\\p{N})(?=\\p{L})");
+            String suffix = "";
+            for (int i = parts.length - 1; i > 0; i--)
+            {
+                suffix = parts[i].toLowerCase(Locale.ENGLISH) + suffix;
+                tokens.add(suffix);
+            }
+        }
+    }
+
+    /**
+     * @param first
+     *            a string, may be null
+     * @param second
+     *            a string, may be null
+     * @return true if both strings are null or equal
+     */
+    private static boolean equal(String first, String second)
+    {
+        return (first == null) ? second == null : first.equals(second);
+    }
+
+    /**
+     * An indexed device: its id, description and location, and the tokens
+     * they contain
+     */
+    public static class Document
+    {
+        private final String id;
+        private final String description;
+        private final String location;
+
+        // the tokens of the document
+        private final Set<String> tokens;
+
+        /**
+         * Creates a new document, tokenizing its fields
+         *
+         * @param id
+         *            the device unique identifier
+         * @param description
+         *            the device description, may be null
+         * @param location
+         *            the device location, may be null
+         */
+        Document(String id, String description, String location)
+        {
+            this.id = id;
+            this.description = description;
+            this.location = location;
+            this.tokens = new HashSet<String>();
+            SearchIndex.tokenize(id, this.tokens);
+            SearchIndex.tokenize(description, this.tokens);
+            SearchIndex.tokenize(location, this.tokens);
+        }
+
+        /**
+         * @return the device unique identifier
+         */
+        public String getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the device description
+         */
+        public String getDescription()
+        {
+            return this.description;
+        }
+
+        /**
+         * @return the device location
+         */
+        public String getLocation()
+        {
+            return this.location;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.index;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.measure.Measure;
+
+import it.polito.elite.dog.core.library.model.state.State;
+import it.polito.elite.dog.core.library.model.statevalue.StateValue;
+
+/**
+ * An inverted index from the discrete value of a device state, e.g.,
+ * OnOffState:on, to the set of devices currently having that value. Numeric
+ * and measure-valued states are not indexed.
+ *
+ * Keys are the lower-case simple name of the state class and the state
+ * value, separated by a colon. The index is updated each time the states of
+ * a device are read, replacing the keys previously recorded for the same
+ * device, and each time a single state of a device changes, replacing the
+ * key previously recorded for that state only; lookups never lock.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class StateIndex
+{
+    // the devices having each (state, value) pair, indexed by key
+    private final ConcurrentHashMap<String, Set<String>> devicesByKey;
+
+    // the keys currently recorded for each device, indexed by device id
+    private final ConcurrentHashMap<String, Set<String>> keysByDevice;
+
+    /**
+     * Creates a new, empty, index
+     */
+    public StateIndex()
+    {
+        this.devicesByKey = new ConcurrentHashMap<String, Set<String>>();
+        this.keysByDevice = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    /**
+     * Records the current states of a device, replacing the previous ones
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param allStates
+     *            the current device states, null if not available
+     */
+    public synchronized void update(String deviceId,
+            Map<String, State> allStates)
+    {
+        this.replace(deviceId, StateIndex.keys(allStates));
+    }
+
+    /**
+     * Records the new value of a single state of a device, e.g., notified by
+     * a state change, leaving the other states of the device unchanged
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param state
+     *            the changed state
+     */
+    public synchronized void updateState(String deviceId, State state)
+    {
+        // the prefix shared by all the keys of the state
+        String prefix = StateIndex.key(state.getClass().getSimpleName(), "");
+
+        Set<String> keys = new HashSet<String>();
+        Set<String> previousKeys = this.keysByDevice.get(deviceId);
+        if (previousKeys != null)
+        {
+            for (String key : previousKeys)
+            {
+                if (!key.startsWith(prefix))
+                    keys.add(key);
+            }
+        }
+
+        String value = StateIndex.discreteValue(state);
+        if (value != null)
+            keys.add(StateIndex.key(state.getClass().getSimpleName(), value));
+
+        this.replace(deviceId, keys);
+    }
+
+    /**
+     * Replaces the keys recorded for a device; to be called while holding
+     * the index lock
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @param keys
+     *            the new keys of the device, possibly empty
+     */
+    private void replace(String deviceId, Set<String> keys)
+    {
+        Set<String> previousKeys = (keys.isEmpty())
+                ? this.keysByDevice.remove(deviceId)
+                : this.keysByDevice.put(deviceId, keys);
+
+        if (previousKeys == null)
+            previousKeys = Collections.emptySet();
+
+        // drop the values the device no longer has
+        for (String key : previousKeys)
+        {
+            if (!keys.contains(key))
+            {
+                Set<String> devices = this.devicesByKey.get(key);
+                if (devices != null)
+                {
+                    devices.remove(deviceId);
+                    if (devices.isEmpty())
+                        this.devicesByKey.remove(key);
+                }
+            }
+        }
+
+        // add the new values
+        for (String key : keys)
+        {
+            if (!previousKeys.contains(key))
+            {
+                Set<String> devices = this.devicesByKey.get(key);
+                if (devices == null)
+                {
+                    devices = Collections.newSetFromMap(
+                            new ConcurrentHashMap<String, Boolean>());
+                    this.devicesByKey.put(key, devices);
+                }
+                devices.add(deviceId);
+            }
+        }
+    }
+
+    /**
+     * Removes all the devices not belonging to the given set, e.g., no longer
+     * registered in the framework
+     *
+     * @param deviceIds
+     *            the device unique identifiers to retain
+     */
+    public synchronized void retain(Set<String> deviceIds)
+    {
+        Iterator<String> devices = this.keysByDevice.keySet().iterator();
+        while (devices.hasNext())
+        {
+            String deviceId = devices.next();
+            if (!deviceIds.contains(deviceId))
+                this.update(deviceId, null);
+        }
+    }
+
+    /**
+     * Gets the devices currently satisfying all the given keys
+     *
+     * @param keys
+     *            the keys to look up, as returned by
+     *            {@link StateIndex#key(String, String)}
+     * @return the set of matching device ids, possibly empty
+     */
+    public Set<String> lookup(Collection<String> keys)
+    {
+        Set<String> matching = null;
+
+        for (String key : keys)
+        {
+            Set<String> devices = this.devicesByKey.get(key);
+
+            // no device has the required value
+            if (devices == null)
+                return Collections.emptySet();
+
+            // intersect with the devices satisfying the previous keys
+            if (matching == null)
+                matching = new HashSet<String>(devices);
+            else
+                matching.retainAll(devices);
+        }
+
+        return (matching != null) ? matching
+                : Collections.<String> emptySet();
+    }
+
+    /**
+     * Checks whether the given states satisfy all the given keys, e.g., to
+     * confirm an index lookup against the states actually read
+     *
+     * @param allStates
+     *            the device states, may be null
+     * @param keys
+     *            the keys to check
+     * @return true if all keys are satisfied
+     */
+    public static boolean matches(Map<String, State> allStates,
+            Collection<String> keys)
+    {
+        return StateIndex.keys(allStates).containsAll(keys);
+    }
+
+    /**
+     * Builds the key of a (state, value) pair
+     *
+     * @param stateName
+     *            the state name, i.e., the simple name of the state class
+     * @param value
+     *            the state value
+     * @return the corresponding key
+     */
+    public static String key(String stateName, String value)
+    {
+        return (stateName + ":" + value).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Computes the keys of all the discrete states in the given map
+     *
+     * @param allStates
+     *            the device states, may be null
+     * @return the keys, possibly empty
+     */
+    private static Set<String> keys(Map<String, State> allStates)
+    {
+        if (allStates == null)
+            return Collections.emptySet();
+
+        Set<String> keys = new HashSet<String>();
+        for (State currentState : allStates.values())
+        {
+            String value = StateIndex.discreteValue(currentState);
+            if (value != null)
+                keys.add(StateIndex.key(
+                        currentState.getClass().getSimpleName(), value));
+        }
+
+        return keys;
+    }
+
+    /**
+     * Extracts the discrete value of the first state value of the given
+     * state, i.e., the first feature whose key contains "Value" and holding
+     * neither a {@link Number} nor a {@link Measure}.
+     *
+     * @param state
+     *            the state
+     * @return the discrete value, or null if none
+     */
+    public static String discreteValue(State state)
+    {
+        StateValue[] stateValues = state.getCurrentStateValue();
+
+        if ((stateValues != null) && (stateValues.length > 0)
+                && (stateValues[0] != null))
+        {
+            HashMap<String, Object> features = stateValues[0].getFeatures();
+            for (Entry<String, Object> feature : features.entrySet())
+            {
+                Object value = feature.getValue();
+
+                if ((feature.getKey().contains("Value")) && (value != null)
+                        && (!(value instanceof Number))
+                        && (!(value instanceof Measure<?, ?>)))
+                {
+                    String text = value.toString();
+                    return (text.isEmpty()) ? null : text;
+                }
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Collects the outcome and latency of the commands sent to devices, per
+ * device, per technology and overall, to spot slow or flaky drivers. The
+ * memory used is bounded: only the most recently commanded devices are
+ * tracked, as well as a bounded number of technologies, the others being
+ * accounted as "other".
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class CommandStatistics
+{
+    // the maximum number of technologies tracked separately
+    private static final int MAX_TECHNOLOGIES = 64;
+
+    // the technology accounting for the ones not tracked separately
+    private static final String OTHER_TECHNOLOGY = "other";
+
+    // the maximum command duration tracked with full precision
+    private static final long MAX_DURATION = TimeUnit.MINUTES.toNanos(5);
+
+    // the statistics of the most recently commanded devices, in access order
+    private final LinkedHashMap<String, Statistics> devices;
+
+    // the statistics of each technology
+    private final ConcurrentMap<String, Statistics> technologies;
+
+    // the overall statistics
+    private final Statistics total;
+
+    /**
+     * Creates a new, empty, set of statistics
+     *
+     * @param maxDevices
+     *            the maximum number of devices tracked
+     */
+    public CommandStatistics(final int maxDevices)
+    {
+        this.devices = new LinkedHashMap<String, Statistics>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Statistics> eldest)
+            {
+                return this.size() > maxDevices;
+            }
+        };
+        this.technologies = new ConcurrentHashMap<String, Statistics>();
+        this.total = new Statistics(null);
+    }
+
+    /**
+     * Records the outcome of a command
+     *
+     * @param deviceId
+     *            the commanded device
+     * @param technology
+     *            the device technology
+     * @param duration
+     *            the command duration, in ns
+     * @param failure
+     *            the exception making the command fail, null if it succeeded
+     */
+    public void record(String deviceId, String technology, long duration,
+            Exception failure)
+    {
+        Statistics deviceStatistics;
+        synchronized (this.devices)
+        {
+            deviceStatistics = this.devices.get(deviceId);
+            if (deviceStatistics == null)
+            {
+                deviceStatistics = new Statistics(technology);
+                this.devices.put(deviceId, deviceStatistics);
+            }
+        }
+
+        deviceStatistics.record(duration, failure);
+        this.getTechnologyStatistics(technology).record(duration, failure);
+        this.total.record(duration, failure);
+    }
+
+    /**
+     * Writes the statistics of the given device as fields of the current
+     * JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param deviceId
+     *            the device unique identifier
+     * @return false if the device is not tracked, and nothing was written
+     * @throws IOException
+     */
+    public boolean writeDevice(JsonGenerator generator, String deviceId)
+            throws IOException
+    {
+        Statistics deviceStatistics;
+        synchronized (this.devices)
+        {
+            deviceStatistics = this.devices.get(deviceId);
+        }
+
+        if (deviceStatistics == null)
+            return false;
+
+        generator.writeStringField("id", deviceId);
+        deviceStatistics.write(generator);
+
+        return true;
+    }
+
+    /**
+     * Writes the overall statistics, together with the statistics of each
+     * technology and of each tracked device, as fields of the current JSON
+     * object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeAll(JsonGenerator generator) throws IOException
+    {
+        Map<String, Statistics> currentDevices;
+        synchronized (this.devices)
+        {
+            currentDevices = new TreeMap<String, Statistics>(this.devices);
+        }
+
+        generator.writeObjectFieldStart("total");
+        this.total.write(generator);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("technologies");
+        for (Map.Entry<String, Statistics> technology : new TreeMap<String, Statistics>(
+                this.technologies).entrySet())
+        {
+            generator.writeObjectFieldStart(technology.getKey());
+            technology.getValue().write(generator);
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+
+        generator.writeArrayFieldStart("devices");
+        for (Map.Entry<String, Statistics> device : currentDevices.entrySet())
+        {
+            generator.writeStartObject();
+            generator.writeStringField("id", device.getKey());
+            device.getValue().write(generator);
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Gets the statistics of the given technology, creating them if needed
+     *
+     * @param technology
+     *            the technology, may be null
+     * @return the corresponding statistics
+     */
+    private Statistics getTechnologyStatistics(String technology)
+    {
+        String key = (technology != null) ? technology : OTHER_TECHNOLOGY;
+
+        Statistics technologyStatistics = this.technologies.get(key);
+        if (technologyStatistics == null)
+        {
+            // too many technologies: account the new ones together
+            if (this.technologies.size() >= MAX_TECHNOLOGIES)
+                key = OTHER_TECHNOLOGY;
+
+            Statistics created = new Statistics(null);
+            technologyStatistics = this.technologies.putIfAbsent(key, created);
+            if (technologyStatistics == null)
+                technologyStatistics = created;
+        }
+
+        return technologyStatistics;
+    }
+
+    /**
+     * The command statistics of a device, of a technology or overall
+     */
+    private static class Statistics
+    {
+        // the device technology, null for aggregated statistics
+        private final String technology;
+
+        // the command latency, failed commands included
+        private final LatencyHistogram latency;
+
+        // the failed commands
+        private final AtomicLong failures;
+
+        // the last failure and its time (ms since epoch)
+        private volatile String lastFailure;
+        private volatile long lastFailureTime;
+
+        /**
+         * Creates new, empty, statistics
+         *
+         * @param technology
+         *            the device technology, null for aggregated statistics
+         */
+        Statistics(String technology)
+        {
+            this.technology = technology;
+            this.latency = new LatencyHistogram(MAX_DURATION);
+            this.failures = new AtomicLong();
+        }
+
+        /**
+         * Records the outcome of a command
+         *
+         * @param duration
+         *            the command duration, in ns
+         * @param failure
+         *            the exception making the command fail, null if it
+         *            succeeded
+         */
+        void record(long duration, Exception failure)
+        {
+            this.latency.record(duration);
+
+            if (failure != null)
+            {
+                this.failures.incrementAndGet();
+                this.lastFailure = (failure.getMessage() != null)
+                        ? failure.getClass().getSimpleName() + ": "
+                                + failure.getMessage()
+                        : failure.getClass().getSimpleName();
+                this.lastFailureTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Writes the statistics as fields of the current JSON object
+         *
+         * @param generator
+         *            the {@link JsonGenerator} to write on
+         * @throws IOException
+         */
+        void write(JsonGenerator generator) throws IOException
+        {
+            long commands = this.latency.getCount();
+            long failed = this.failures.get();
+
+            if (this.technology != null)
+                generator.writeStringField("technology", this.technology);
+            generator.writeNumberField("commands", commands);
+            generator.writeNumberField("failures", failed);
+            generator.writeNumberField("failureRate",
+                    (commands > 0) ? (double) failed / commands : 0.0);
+            generator.writeObjectFieldStart("latency");
+            this.latency.writeSummary(generator);
+            generator.writeEndObject();
+
+            String failure = this.lastFailure;
+            if (failure != null)
+            {
+                generator.writeObjectFieldStart("lastFailure");
+                generator.writeNumberField("time", this.lastFailureTime);
+                generator.writeStringField("error", failure);
+                generator.writeEndObject();
+            }
+        }
+    }
+}
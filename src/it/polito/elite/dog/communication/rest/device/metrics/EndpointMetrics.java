@@ -0,0 +1,525 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Collects the request metrics of the endpoint methods (count, requests in
+ * flight, failures, status codes and latency) and the latency of the
+ * internal operations worth watching, e.g., the XML serialization of the
+ * configuration. All the recordings are lock-free; the metrics are reported
+ * as JSON or in the Prometheus text exposition format.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class EndpointMetrics
+{
+    // the prefix of the Prometheus metric names
+    private static final String PREFIX = "dog_devices_";
+
+    // the Prometheus histogram bounds, in microseconds
+    private static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000,
+            10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000,
+            5000000, 10000000 };
+
+    // the Prometheus histogram bounds, in seconds, as labels
+    private static final String[] BOUND_LABELS = new String[BOUNDS.length];
+    static
+    {
+        for (int i = 0; i < BOUNDS.length; i++)
+            BOUND_LABELS[i] = BigDecimal.valueOf(BOUNDS[i], 6)
+                    .stripTrailingZeros().toPlainString();
+    }
+
+    // the metrics of each endpoint method, by name
+    private final ConcurrentMap<String, MethodMetrics> methods;
+
+    // the latency of each internal operation, by name
+    private final ConcurrentMap<String, LatencyHistogram> operations;
+
+    // the commands not sent as redundant, by command name
+    private final ConcurrentMap<String, AtomicLong> suppressedCommands;
+
+    // the creation time, in ms since epoch
+    private final long startTime;
+
+    // the log of the slow requests, null if not detected
+    private volatile SlowRequestLog slowRequests;
+
+    /**
+     * Creates a new, empty, set of metrics
+     */
+    public EndpointMetrics()
+    {
+        this.methods = new ConcurrentHashMap<String, MethodMetrics>();
+        this.operations = new ConcurrentHashMap<String, LatencyHistogram>();
+        this.suppressedCommands = new ConcurrentHashMap<String, AtomicLong>();
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets the log of the slow requests
+     *
+     * @param slowRequests
+     *            the {@link SlowRequestLog} recording the slow requests, null
+     *            to stop detecting them
+     */
+    public void setSlowRequestLog(SlowRequestLog slowRequests)
+    {
+        this.slowRequests = slowRequests;
+    }
+
+    /**
+     * @return the log of the slow requests, null if not detected
+     */
+    public SlowRequestLog getSlowRequestLog()
+    {
+        return this.slowRequests;
+    }
+
+    /**
+     * Starts measuring a request, to be ended by {@link Request#end()}
+     *
+     * @param method
+     *            the name of the endpoint method serving the request
+     * @return the {@link Request} being measured
+     */
+    public Request start(String method)
+    {
+        MethodMetrics metrics = this.methods.get(method);
+        if (metrics == null)
+        {
+            MethodMetrics created = new MethodMetrics();
+            metrics = this.methods.putIfAbsent(method, created);
+            if (metrics == null)
+                metrics = created;
+        }
+
+        metrics.inFlight.incrementAndGet();
+
+        return new Request(method, metrics, this.slowRequests);
+    }
+
+    /**
+     * Records the duration of an internal operation
+     *
+     * @param operation
+     *            the operation name
+     * @param start
+     *            the operation start, as given by {@link System#nanoTime()}
+     */
+    public void recordOperation(String operation, long start)
+    {
+        long duration = System.nanoTime() - start;
+
+        LatencyHistogram histogram = this.operations.get(operation);
+        if (histogram == null)
+        {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = this.operations.putIfAbsent(operation, created);
+            if (histogram == null)
+                histogram = created;
+        }
+
+        histogram.record(duration);
+    }
+
+    /**
+     * Records a command not sent because the device was already in the state
+     * set by the command
+     *
+     * @param command
+     *            the command name
+     */
+    public void recordSuppressedCommand(String command)
+    {
+        AtomicLong counter = this.suppressedCommands.get(command);
+        if (counter == null)
+        {
+            AtomicLong created = new AtomicLong();
+            counter = this.suppressedCommands.putIfAbsent(command, created);
+            if (counter == null)
+                counter = created;
+        }
+
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Writes all the metrics as fields of the current JSON object, latencies
+     * being in ms
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param warmUpTime
+     *            the duration of the endpoint warm-up, in ns (0 if not
+     *            completed)
+     * @throws IOException
+     */
+    public void writeJson(JsonGenerator generator, long warmUpTime)
+            throws IOException
+    {
+        generator.writeNumberField("uptime",
+                System.currentTimeMillis() - this.startTime);
+        generator.writeNumberField("warmUpTime", warmUpTime / 1000000.0);
+
+        generator.writeObjectFieldStart("methods");
+        for (Map.Entry<String, MethodMetrics> method : new TreeMap<String, MethodMetrics>(
+                this.methods).entrySet())
+        {
+            MethodMetrics metrics = method.getValue();
+
+            generator.writeObjectFieldStart(method.getKey());
+            generator.writeNumberField("requests",
+                    metrics.latency.getCount());
+            generator.writeNumberField("inFlight", metrics.inFlight.get());
+            generator.writeNumberField("errors", metrics.errors.get());
+            generator.writeObjectFieldStart("status");
+            for (Map.Entry<Integer, AtomicLong> status : new TreeMap<Integer, AtomicLong>(
+                    metrics.statusCodes).entrySet())
+                generator.writeNumberField(status.getKey().toString(),
+                        status.getValue().get());
+            generator.writeEndObject();
+            generator.writeObjectFieldStart("latency");
+            metrics.latency.writeSummary(generator);
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("operations");
+        for (Map.Entry<String, LatencyHistogram> operation : new TreeMap<String, LatencyHistogram>(
+                this.operations).entrySet())
+        {
+            generator.writeObjectFieldStart(operation.getKey());
+            generator.writeNumberField("count",
+                    operation.getValue().getCount());
+            generator.writeObjectFieldStart("latency");
+            operation.getValue().writeSummary(generator);
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("suppressedCommands");
+        for (Map.Entry<String, AtomicLong> command : new TreeMap<String, AtomicLong>(
+                this.suppressedCommands).entrySet())
+            generator.writeNumberField(command.getKey(),
+                    command.getValue().get());
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format,
+     * latencies being in seconds
+     *
+     * @param writer
+     *            the {@link StringBuilder} to write on
+     * @param warmUpTime
+     *            the duration of the endpoint warm-up, in ns (0 if not
+     *            completed)
+     */
+    public void writePrometheus(StringBuilder writer, long warmUpTime)
+    {
+        EndpointMetrics.writeHeader(writer, "uptime_seconds", "gauge",
+                "Time since the endpoint activation");
+        writer.append(PREFIX).append("uptime_seconds ")
+                .append((System.currentTimeMillis() - this.startTime) / 1000.0)
+                .append('\n');
+        EndpointMetrics.writeHeader(writer, "warm_up_seconds", "gauge",
+                "Duration of the endpoint warm-up, 0 if not completed");
+        writer.append(PREFIX).append("warm_up_seconds ")
+                .append(warmUpTime / 1000000000.0).append('\n');
+
+        Map<String, MethodMetrics> methods = new TreeMap<String, MethodMetrics>(
+                this.methods);
+
+        EndpointMetrics.writeHeader(writer, "requests_total", "counter",
+                "Requests served, by method and status code");
+        for (Map.Entry<String, MethodMetrics> method : methods.entrySet())
+        {
+            for (Map.Entry<Integer, AtomicLong> status : new TreeMap<Integer, AtomicLong>(
+                    method.getValue().statusCodes).entrySet())
+                writer.append(PREFIX).append("requests_total{method=\"")
+                        .append(method.getKey()).append("\",status=\"")
+                        .append(status.getKey()).append("\"} ")
+                        .append(status.getValue().get()).append('\n');
+        }
+
+        EndpointMetrics.writeHeader(writer, "request_errors_total", "counter",
+                "Requests failed with a 4xx or 5xx status code, by method");
+        for (Map.Entry<String, MethodMetrics> method : methods.entrySet())
+            writer.append(PREFIX).append("request_errors_total{method=\"")
+                    .append(method.getKey()).append("\"} ")
+                    .append(method.getValue().errors.get()).append('\n');
+
+        EndpointMetrics.writeHeader(writer, "requests_in_flight", "gauge",
+                "Requests being served, by method");
+        for (Map.Entry<String, MethodMetrics> method : methods.entrySet())
+            writer.append(PREFIX).append("requests_in_flight{method=\"")
+                    .append(method.getKey()).append("\"} ")
+                    .append(method.getValue().inFlight.get()).append('\n');
+
+        EndpointMetrics.writeHeader(writer, "request_duration_seconds",
+                "histogram", "Request latency, by method");
+        for (Map.Entry<String, MethodMetrics> method : methods.entrySet())
+            EndpointMetrics.writeHistogram(writer, "request_duration_seconds",
+                    "method=\"" + method.getKey() + "\"",
+                    method.getValue().latency);
+
+        EndpointMetrics.writeHeader(writer, "operation_duration_seconds",
+                "histogram", "Internal operation latency, by operation");
+        for (Map.Entry<String, LatencyHistogram> operation : new TreeMap<String, LatencyHistogram>(
+                this.operations).entrySet())
+            EndpointMetrics.writeHistogram(writer,
+                    "operation_duration_seconds",
+                    "operation=\"" + operation.getKey() + "\"",
+                    operation.getValue());
+
+        EndpointMetrics.writeHeader(writer, "commands_suppressed_total",
+                "counter",
+                "Commands not sent because the device was already in the "
+                        + "target state, by command");
+        for (Map.Entry<String, AtomicLong> command : new TreeMap<String, AtomicLong>(
+                this.suppressedCommands).entrySet())
+            writer.append(PREFIX)
+                    .append("commands_suppressed_total{command=\"")
+                    .append(command.getKey()).append("\"} ")
+                    .append(command.getValue().get()).append('\n');
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a Prometheus metric
+     *
+     * @param writer
+     *            the {@link StringBuilder} to write on
+     * @param name
+     *            the metric name, without prefix
+     * @param type
+     *            the metric type
+     * @param help
+     *            the metric description
+     */
+    private static void writeHeader(StringBuilder writer, String name,
+            String type, String help)
+    {
+        writer.append("# HELP ").append(PREFIX).append(name).append(' ')
+                .append(help).append('\n');
+        writer.append("# TYPE ").append(PREFIX).append(name).append(' ')
+                .append(type).append('\n');
+    }
+
+    /**
+     * Writes the buckets, sum and count of a Prometheus histogram
+     *
+     * @param writer
+     *            the {@link StringBuilder} to write on
+     * @param name
+     *            the metric name, without prefix
+     * @param labels
+     *            the metric labels
+     * @param histogram
+     *            the {@link LatencyHistogram} to write
+     */
+    private static void writeHistogram(StringBuilder writer, String name,
+            String labels, LatencyHistogram histogram)
+    {
+        long count = histogram.getCount();
+        long[] counts = histogram.countAtMost(BOUNDS);
+
+        for (int i = 0; i < BOUNDS.length; i++)
+            writer.append(PREFIX).append(name).append("_bucket{")
+                    .append(labels).append(",le=\"").append(BOUND_LABELS[i])
+                    .append("\"} ")
+                    .append(Math.min(counts[i], count)).append('\n');
+        writer.append(PREFIX).append(name).append("_bucket{").append(labels)
+                .append(",le=\"+Inf\"} ").append(count).append('\n');
+        writer.append(PREFIX).append(name).append("_sum{").append(labels)
+                .append("} ").append(histogram.getSum() / 1000000.0)
+                .append('\n');
+        writer.append(PREFIX).append(name).append("_count{").append(labels)
+                .append("} ").append(count).append('\n');
+    }
+
+    /**
+     * A request being measured
+     */
+    public static class Request
+    {
+        // the name of the serving method
+        private final String method;
+
+        // the metrics of the serving method
+        private final MethodMetrics metrics;
+
+        // the log of the slow requests, null if not detected
+        private final SlowRequestLog slowRequests;
+
+        // the request start, as given by System.nanoTime()
+        private final long start;
+
+        // the response status code
+        private int status;
+
+        // the target device, command and payload type, if any, for the
+        // slow request log
+        private String deviceId;
+        private String command;
+        private String payloadType;
+
+        // the request phases, for the slow request log
+        private ServerTiming serverTiming;
+
+        /**
+         * Starts measuring a request
+         *
+         * @param method
+         *            the name of the serving method
+         * @param metrics
+         *            the metrics of the serving method
+         * @param slowRequests
+         *            the log of the slow requests, null if not detected
+         */
+        private Request(String method, MethodMetrics metrics,
+                SlowRequestLog slowRequests)
+        {
+            this.method = method;
+            this.metrics = metrics;
+            this.slowRequests = slowRequests;
+            this.start = System.nanoTime();
+            this.status = 200;
+        }
+
+        /**
+         * Describes the request target, reported if the request is slow
+         *
+         * @param deviceId
+         *            the target device, null if none
+         * @param command
+         *            the command, null if none
+         * @param payloadType
+         *            the command payload type, null if none
+         */
+        public void describe(String deviceId, String command,
+                String payloadType)
+        {
+            this.deviceId = deviceId;
+            this.command = command;
+            this.payloadType = payloadType;
+        }
+
+        /**
+         * Starts timing the request phases, if required by the caller or
+         * needed to report the request if slow
+         *
+         * @param required
+         *            true if the caller requires the phases to be timed
+         * @return the {@link ServerTiming} of the request
+         */
+        public ServerTiming startTiming(boolean required)
+        {
+            this.serverTiming = ServerTiming
+                    .start(required || (this.slowRequests != null));
+
+            return this.serverTiming;
+        }
+
+        /**
+         * Records the failure of the request, with the status code carried
+         * by the given exception, if any, or 500 (Internal server error)
+         *
+         * @param e
+         *            the exception ending the request
+         * @return the given exception, to be re-thrown
+         */
+        public RuntimeException failed(RuntimeException e)
+        {
+            this.status = (e instanceof WebApplicationException)
+                    ? ((WebApplicationException) e).getResponse().getStatus()
+                    : 500;
+
+            return e;
+        }
+
+        /**
+         * Ends measuring the request
+         */
+        public void end()
+        {
+            long duration = System.nanoTime() - this.start;
+            this.metrics.latency.record(duration);
+            this.metrics.inFlight.decrementAndGet();
+
+            if (this.status >= 400)
+                this.metrics.errors.incrementAndGet();
+
+            AtomicLong counter = this.metrics.statusCodes.get(this.status);
+            if (counter == null)
+            {
+                AtomicLong created = new AtomicLong();
+                counter = this.metrics.statusCodes.putIfAbsent(this.status,
+                        created);
+                if (counter == null)
+                    counter = created;
+            }
+            counter.incrementAndGet();
+
+            if ((this.slowRequests != null)
+                    && (this.slowRequests.isSlow(this.method, duration)))
+                this.slowRequests.record(new SlowRequestLog.SlowRequest(
+                        this.method, this.status, duration, this.deviceId,
+                        this.command, this.payloadType,
+                        (this.serverTiming != null)
+                                ? this.serverTiming.getPhases()
+                                : Collections.<String, Long> emptyMap()));
+        }
+    }
+
+    /**
+     * The metrics of an endpoint method
+     */
+    private static class MethodMetrics
+    {
+        // the request latency
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        // the requests being served
+        private final AtomicLong inFlight = new AtomicLong();
+
+        // the requests failed with a 4xx or 5xx status code
+        private final AtomicLong errors = new AtomicLong();
+
+        // the requests served, by status code
+        private final ConcurrentMap<Integer, AtomicLong> statusCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A custom Java Flight Recorder event type, defined at runtime through the
+ * jdk.jfr.EventFactory API (Java 11 or later), accessed by reflection so
+ * that the bundle still runs, without events, on older Java versions.
+ *
+ * Events are only created while a recording enabling their type is running:
+ * otherwise, {@link #begin()} returns a shared event ignoring its commit, and
+ * the overall cost is a single check of the event type state.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class FlightRecorderEventType
+{
+    // the category of all the event types
+    private static final String[] CATEGORY = { "Dog", "Device REST Endpoint" };
+
+    // the event ignoring its commit
+    private static final Event DISABLED = new Event(null);
+
+    // the Flight Recorder API, null if not available
+    private static final Jfr JFR = Jfr.load();
+
+    // the event factory, null if the type could not be defined
+    private final Object factory;
+
+    // the event type, null if the type could not be defined
+    private final Object eventType;
+
+    /**
+     * Defines a new event type, having the given fields in addition to the
+     * standard ones (e.g., start time, duration and thread)
+     *
+     * @param name
+     *            the event type name, e.g., it.polito.elite.dog.DeviceCommand
+     * @param label
+     *            the human-readable name of the event type
+     * @param description
+     *            the description of the event type
+     * @param fieldNames
+     *            the field names, valid Java identifiers
+     * @param fieldTypes
+     *            the field types, either primitive types or String
+     */
+    public FlightRecorderEventType(String name, String label,
+            String description, String[] fieldNames, Class<?>[] fieldTypes)
+    {
+        Object newFactory = null;
+        Object newEventType = null;
+
+        if (FlightRecorderEventType.JFR != null)
+        {
+            try
+            {
+                List<Object> annotations = new ArrayList<Object>();
+                annotations.add(JFR.annotation("jdk.jfr.Name", name));
+                annotations.add(JFR.annotation("jdk.jfr.Label", label));
+                annotations.add(
+                        JFR.annotation("jdk.jfr.Description", description));
+                annotations.add(JFR.annotation("jdk.jfr.Category", CATEGORY));
+
+                List<Object> fields = new ArrayList<Object>();
+                for (int i = 0; i < fieldNames.length; i++)
+                    fields.add(JFR.valueDescriptor.newInstance(fieldTypes[i],
+                            fieldNames[i]));
+
+                newFactory = JFR.create.invoke(null, annotations, fields);
+                JFR.register.invoke(newFactory);
+                newEventType = JFR.getEventType.invoke(newFactory);
+            }
+            catch (Exception e)
+            {
+                // events of this type will not be recorded
+                newFactory = null;
+                newEventType = null;
+            }
+        }
+
+        this.factory = newFactory;
+        this.eventType = newEventType;
+    }
+
+    /**
+     * @return true if events of this type are being recorded
+     */
+    public boolean isEnabled()
+    {
+        try
+        {
+            return (this.eventType != null) && ((Boolean) JFR.isEnabled
+                    .invoke(this.eventType)).booleanValue();
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Starts timing a new event of this type
+     *
+     * @return the started {@link Event}, ignoring its commit if events of
+     *         this type are not being recorded
+     */
+    public Event begin()
+    {
+        if (!this.isEnabled())
+            return FlightRecorderEventType.DISABLED;
+
+        try
+        {
+            Object event = JFR.newEvent.invoke(this.factory);
+            JFR.begin.invoke(event);
+            return new Event(event);
+        }
+        catch (Exception e)
+        {
+            return FlightRecorderEventType.DISABLED;
+        }
+    }
+
+    /**
+     * An event being timed
+     */
+    public static class Event
+    {
+        // the underlying jdk.jfr.Event, null if not recorded
+        private final Object event;
+
+        /**
+         * Wraps a started event
+         *
+         * @param event
+         *            the underlying jdk.jfr.Event, null if not recorded
+         */
+        private Event(Object event)
+        {
+            this.event = event;
+        }
+
+        /**
+         * @return true if the event is being recorded, i.e., its field values
+         *         are worth computing
+         */
+        public boolean isRecorded()
+        {
+            return this.event != null;
+        }
+
+        /**
+         * Ends timing the event and commits it with the given field values
+         *
+         * @param values
+         *            the field values, in the order of the event type fields
+         */
+        public void commit(Object... values)
+        {
+            if (this.event == null)
+                return;
+
+            try
+            {
+                for (int i = 0; i < values.length; i++)
+                    JFR.set.invoke(this.event, i, values[i]);
+                JFR.end.invoke(this.event);
+                JFR.commit.invoke(this.event);
+            }
+            catch (Exception e)
+            {
+                // recording is best effort
+            }
+        }
+    }
+
+    /**
+     * The reflective handles to the Flight Recorder API
+     */
+    private static class Jfr
+    {
+        private Constructor<?> annotationElement;
+        private Constructor<?> valueDescriptor;
+        private Method create;
+        private Method register;
+        private Method getEventType;
+        private Method newEvent;
+        private Method isEnabled;
+        private Method begin;
+        private Method end;
+        private Method set;
+        private Method commit;
+
+        /**
+         * Looks up the Flight Recorder API, through the system class loader
+         * since bundle class loaders may not delegate jdk.* packages
+         *
+         * @return the API handles, null if not available
+         */
+        static Jfr load()
+        {
+            try
+            {
+                ClassLoader loader = ClassLoader.getSystemClassLoader();
+                Class<?> factoryClass = loader
+                        .loadClass("jdk.jfr.EventFactory");
+                Class<?> eventClass = loader.loadClass("jdk.jfr.Event");
+
+                Jfr jfr = new Jfr();
+                jfr.annotationElement = loader
+                        .loadClass("jdk.jfr.AnnotationElement")
+                        .getConstructor(Class.class, Object.class);
+                jfr.valueDescriptor = loader
+                        .loadClass("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class.class, String.class);
+                jfr.create = factoryClass.getMethod("create", List.class,
+                        List.class);
+                jfr.register = factoryClass.getMethod("register");
+                jfr.getEventType = factoryClass.getMethod("getEventType");
+                jfr.newEvent = factoryClass.getMethod("newEvent");
+                jfr.isEnabled = loader.loadClass("jdk.jfr.EventType")
+                        .getMethod("isEnabled");
+                jfr.begin = eventClass.getMethod("begin");
+                jfr.end = eventClass.getMethod("end");
+                jfr.set = eventClass.getMethod("set", int.class,
+                        Object.class);
+                jfr.commit = eventClass.getMethod("commit");
+
+                return jfr;
+            }
+            catch (Exception | LinkageError e)
+            {
+                // Java 10 or earlier, or a runtime without jdk.jfr
+                return null;
+            }
+        }
+
+        /**
+         * Creates a jdk.jfr.AnnotationElement
+         *
+         * @param annotation
+         *            the annotation class name, e.g., jdk.jfr.Label
+         * @param value
+         *            the annotation value
+         * @return the annotation element
+         * @throws Exception
+         */
+        Object annotation(String annotation, Object value) throws Exception
+        {
+            return this.annotationElement.newInstance(
+                    ClassLoader.getSystemClassLoader().loadClass(annotation),
+                    value);
+        }
+    }
+}
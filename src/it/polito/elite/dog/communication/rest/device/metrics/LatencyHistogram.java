@@ -0,0 +1,229 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A lock-free histogram of durations, with log-linear buckets: each power of
+ * two is split into 8 linear sub-buckets, so that any recorded value is
+ * known with a relative error below 12.5%, over the whole range from 1
+ * microsecond to days, in a fixed amount of memory (about 4 KB). Recording
+ * a value costs a few atomic increments. Histograms with a smaller range
+ * use less memory, values beyond the range being counted in the last
+ * bucket.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class LatencyHistogram
+{
+    // the number of bits of linear precision in each power of two
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // the quantiles reported
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99",
+            "p999" };
+
+    // the bucket counts, the values being in microseconds
+    private final AtomicLongArray counts;
+
+    // the overall count, sum and maximum of the recorded values
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    /**
+     * Creates a new, empty, histogram covering all the durations
+     */
+    public LatencyHistogram()
+    {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new, empty, histogram covering the durations up to the given
+     * maximum
+     *
+     * @param maxDuration
+     *            the maximum duration tracked with full precision, in ns
+     */
+    public LatencyHistogram(long maxDuration)
+    {
+        this.counts = new AtomicLongArray(
+                LatencyHistogram.indexOf(Math.max(0, maxDuration / 1000)) + 1);
+        this.count = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a duration
+     *
+     * @param duration
+     *            the duration, in ns
+     */
+    public void record(long duration)
+    {
+        long value = Math.max(0, duration / 1000);
+
+        this.counts.incrementAndGet(Math.min(LatencyHistogram.indexOf(value),
+                this.counts.length() - 1));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long current = this.max.get();
+        while ((value > current) && (!this.max.compareAndSet(current, value)))
+            current = this.max.get();
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    /**
+     * @return the sum of the recorded durations, in microseconds
+     */
+    public long getSum()
+    {
+        return this.sum.get();
+    }
+
+    /**
+     * Counts the recorded durations not greater than each of the given
+     * bounds, as needed by cumulative (Prometheus-like) histograms; durations
+     * are approximated by the upper bound of their bucket
+     *
+     * @param bounds
+     *            the bounds, in microseconds, in ascending order
+     * @return the number of recorded durations not greater than each bound
+     */
+    public long[] countAtMost(long[] bounds)
+    {
+        long[] totals = new long[bounds.length];
+        long total = 0;
+        int bound = 0;
+
+        for (int i = 0; (i < this.counts.length())
+                && (bound < bounds.length); i++)
+        {
+            // close the bounds lower than this bucket
+            while ((bound < bounds.length)
+                    && (LatencyHistogram.upperBound(i) > bounds[bound]))
+                totals[bound++] = total;
+
+            total += this.counts.get(i);
+        }
+
+        // the remaining bounds hold all the values
+        for (; bound < bounds.length; bound++)
+            totals[bound] = total;
+
+        return totals;
+    }
+
+    /**
+     * Writes the latency summary (mean, maximum and quantiles, in ms) as
+     * fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void writeSummary(JsonGenerator generator) throws IOException
+    {
+        // take a snapshot of the buckets, not atomic with respect to the
+        // concurrent recordings, but consistent with itself
+        long[] snapshot = new long[this.counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+
+        generator.writeNumberField("mean",
+                (total > 0) ? this.sum.get() / (total * 1000.0) : 0.0);
+        generator.writeNumberField("max", this.max.get() / 1000.0);
+
+        // find the quantiles in a single pass
+        long seen = 0;
+        int quantile = 0;
+        for (int i = 0; (i < snapshot.length)
+                && (quantile < QUANTILES.length); i++)
+        {
+            seen += snapshot[i];
+            while ((quantile < QUANTILES.length) && (total > 0)
+                    && (seen >= Math.ceil(QUANTILES[quantile] * total)))
+            {
+                generator.writeNumberField(QUANTILE_NAMES[quantile],
+                        LatencyHistogram.upperBound(i) / 1000.0);
+                quantile++;
+            }
+        }
+
+        // no values recorded
+        for (; quantile < QUANTILES.length; quantile++)
+            generator.writeNumberField(QUANTILE_NAMES[quantile], 0.0);
+    }
+
+    /**
+     * @param value
+     *            a non-negative value
+     * @return the index of the bucket holding the given value
+     */
+    private static int indexOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index
+     *            a bucket index
+     * @return the largest value held by the given bucket
+     */
+    private static long upperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width - 1;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Accumulates the time spent by a single request in each of its phases
+ * (e.g., service registry lookups, state reads, serialization), to be
+ * reported in a Server-Timing response header. Phases may be entered many
+ * times, e.g., once per device, their durations being summed up.
+ *
+ * Instances are confined to the thread serving the request; the disabled
+ * instance, shared by all the requests not being traced, records nothing.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class ServerTiming
+{
+    // the shared instance for requests not being traced
+    private static final ServerTiming DISABLED = new ServerTiming(false);
+
+    // true if the phases shall be timed
+    private final boolean enabled;
+
+    // the request start, as given by System.nanoTime()
+    private final long start;
+
+    // the overall duration of each phase, in ns, in first-entry order
+    private final Map<String, Long> phases;
+
+    /**
+     * Creates a new instance
+     *
+     * @param enabled
+     *            true if the phases shall be timed
+     */
+    private ServerTiming(boolean enabled)
+    {
+        this.enabled = enabled;
+        this.start = enabled ? System.nanoTime() : 0;
+        this.phases = enabled ? new LinkedHashMap<String, Long>() : null;
+    }
+
+    /**
+     * Starts timing a request, if required
+     *
+     * @param enabled
+     *            true if the request phases shall be timed
+     * @return the {@link ServerTiming} of the request
+     */
+    public static ServerTiming start(boolean enabled)
+    {
+        return enabled ? new ServerTiming(true) : ServerTiming.DISABLED;
+    }
+
+    /**
+     * @return true if the request phases are being timed
+     */
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    /**
+     * Marks the beginning of a phase
+     *
+     * @return the phase start, to be given to {@link #end(String, long)}
+     */
+    public long begin()
+    {
+        return this.enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Marks the end of a phase, adding its duration to the phase total
+     *
+     * @param phase
+     *            the phase name, a valid header token
+     * @param begin
+     *            the phase start, as given by {@link #begin()}
+     */
+    public void end(String phase, long begin)
+    {
+        if (this.enabled)
+        {
+            long duration = System.nanoTime() - begin;
+            Long total = this.phases.get(phase);
+            this.phases.put(phase,
+                    (total != null) ? total + duration : duration);
+        }
+    }
+
+    /**
+     * Gets the overall duration of each phase entered so far
+     *
+     * @return the duration of each phase, in ns, in first-entry order; empty
+     *         if the phases are not being timed
+     */
+    public Map<String, Long> getPhases()
+    {
+        return this.enabled ? new LinkedHashMap<String, Long>(this.phases)
+                : Collections.<String, Long> emptyMap();
+    }
+
+    /**
+     * Gets the value of the Server-Timing header, listing the duration of
+     * each phase and the overall request duration, in ms
+     *
+     * @return the header value, e.g., "registry;dur=0.215, state;dur=12.940,
+     *         total;dur=13.502"
+     */
+    public String toHeaderValue()
+    {
+        StringBuilder value = new StringBuilder();
+
+        if (this.enabled)
+        {
+            for (Map.Entry<String, Long> phase : this.phases.entrySet())
+                ServerTiming.append(value, phase.getKey(), phase.getValue());
+            ServerTiming.append(value, "total",
+                    System.nanoTime() - this.start);
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Appends a metric to a Server-Timing header value
+     *
+     * @param value
+     *            the header value being built
+     * @param name
+     *            the metric name
+     * @param duration
+     *            the metric duration, in ns
+     */
+    private static void append(StringBuilder value, String name,
+            long duration)
+    {
+        if (value.length() > 0)
+            value.append(", ");
+        value.append(name).append(";dur=").append(
+                String.format(Locale.ENGLISH, "%.3f", duration / 1000000.0));
+    }
+}
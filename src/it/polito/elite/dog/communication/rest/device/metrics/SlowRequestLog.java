@@ -0,0 +1,341 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.metrics;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+/**
+ * Keeps the details of the most recent requests slower than the threshold
+ * of their endpoint method, in a ring of fixed capacity: device, command,
+ * payload type, serving thread and time spent in each phase. Slow requests
+ * are also logged, at most once per configured interval, so that a burst of
+ * slow requests cannot make logging a bottleneck itself; the requests not
+ * logged are counted and reported by the next log entry.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class SlowRequestLog
+{
+    // the default threshold, in ns
+    private final long defaultThreshold;
+
+    // the threshold of each endpoint method, in ns
+    private final Map<String, Long> thresholds;
+
+    // the most recent slow requests, oldest first
+    private final ArrayDeque<SlowRequest> requests;
+
+    // the maximum number of slow requests kept
+    private final int capacity;
+
+    // the number of slow requests detected
+    private final AtomicLong detected;
+
+    // the minimum time between two log entries, in ns
+    private final long logInterval;
+
+    // the earliest time of the next log entry, as given by System.nanoTime()
+    private final AtomicLong nextLogTime;
+
+    // the slow requests not logged since the last log entry
+    private final AtomicLong suppressed;
+
+    // the logger
+    private final LogHelper logger;
+
+    /**
+     * Creates a new, empty, slow request log
+     *
+     * @param defaultThreshold
+     *            the threshold of the endpoint methods without a specific
+     *            one, in ms; 0 or less to only detect the methods with a
+     *            specific threshold
+     * @param thresholds
+     *            the specific threshold of some endpoint methods, in ms, by
+     *            method name; 0 or less to ignore a method
+     * @param capacity
+     *            the maximum number of slow requests kept
+     * @param logInterval
+     *            the minimum time between two log entries, in ms
+     * @param logger
+     *            the logger
+     */
+    public SlowRequestLog(long defaultThreshold, Map<String, Long> thresholds,
+            int capacity, long logInterval, LogHelper logger)
+    {
+        this.defaultThreshold = SlowRequestLog.toNanos(defaultThreshold);
+        this.thresholds = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> threshold : thresholds.entrySet())
+            this.thresholds.put(threshold.getKey(),
+                    SlowRequestLog.toNanos(threshold.getValue()));
+        this.capacity = Math.max(1, capacity);
+        this.requests = new ArrayDeque<SlowRequest>(this.capacity);
+        this.detected = new AtomicLong();
+        this.logInterval = TimeUnit.MILLISECONDS.toNanos(logInterval);
+        this.nextLogTime = new AtomicLong(System.nanoTime());
+        this.suppressed = new AtomicLong();
+        this.logger = logger;
+    }
+
+    /**
+     * Checks whether a request is slow
+     *
+     * @param method
+     *            the name of the endpoint method serving the request
+     * @param duration
+     *            the request duration, in ns
+     * @return true if the request is slower than the method threshold
+     */
+    public boolean isSlow(String method, long duration)
+    {
+        Long threshold = this.thresholds.get(method);
+        return duration >= ((threshold != null) ? threshold
+                : this.defaultThreshold);
+    }
+
+    /**
+     * Records a slow request
+     *
+     * @param request
+     *            the {@link SlowRequest} to record
+     */
+    public void record(SlowRequest request)
+    {
+        this.detected.incrementAndGet();
+
+        synchronized (this.requests)
+        {
+            if (this.requests.size() >= this.capacity)
+                this.requests.removeFirst();
+            this.requests.addLast(request);
+        }
+
+        // log, unless already done in the current interval
+        long now = System.nanoTime();
+        long next = this.nextLogTime.get();
+        if ((now - next >= 0) && (this.nextLogTime.compareAndSet(next,
+                now + this.logInterval)))
+        {
+            long notLogged = this.suppressed.getAndSet(0);
+            this.logger.log(LogService.LOG_WARNING,
+                    "Slow request: " + request
+                            + ((notLogged > 0) ? " (" + notLogged
+                                    + " more slow requests not logged)" : ""));
+        }
+        else
+            this.suppressed.incrementAndGet();
+    }
+
+    /**
+     * Writes the thresholds and the recorded slow requests, most recent
+     * first, as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator) throws IOException
+    {
+        List<SlowRequest> recent;
+        synchronized (this.requests)
+        {
+            recent = new ArrayList<SlowRequest>(this.requests);
+        }
+        Collections.reverse(recent);
+
+        generator.writeObjectFieldStart("thresholds");
+        generator.writeNumberField("default",
+                SlowRequestLog.toMillis(this.defaultThreshold));
+        for (Map.Entry<String, Long> threshold : new TreeMap<String, Long>(
+                this.thresholds).entrySet())
+            generator.writeNumberField(threshold.getKey(),
+                    SlowRequestLog.toMillis(threshold.getValue()));
+        generator.writeEndObject();
+        generator.writeNumberField("detected", this.detected.get());
+        generator.writeArrayFieldStart("requests");
+        for (SlowRequest request : recent)
+            request.write(generator);
+        generator.writeEndArray();
+    }
+
+    /**
+     * Converts a threshold into ns
+     *
+     * @param threshold
+     *            the threshold, in ms, 0 or less to disable detection
+     * @return the threshold, in ns
+     */
+    private static long toNanos(long threshold)
+    {
+        return (threshold > 0) ? TimeUnit.MILLISECONDS.toNanos(threshold)
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * Converts a threshold into ms
+     *
+     * @param threshold
+     *            the threshold, in ns
+     * @return the threshold, in ms, 0 if detection is disabled
+     */
+    private static long toMillis(long threshold)
+    {
+        return (threshold != Long.MAX_VALUE)
+                ? TimeUnit.NANOSECONDS.toMillis(threshold) : 0;
+    }
+
+    /**
+     * The details of a slow request
+     */
+    public static class SlowRequest
+    {
+        // the request end, in ms since epoch
+        private final long time;
+
+        // the endpoint method
+        private final String method;
+
+        // the response status code
+        private final int status;
+
+        // the request duration, in ns
+        private final long duration;
+
+        // the serving thread
+        private final String thread;
+
+        // the device, command and payload type, if any
+        private final String deviceId;
+        private final String command;
+        private final String payloadType;
+
+        // the duration of each phase, in ns, if timed
+        private final Map<String, Long> phases;
+
+        /**
+         * Describes a slow request, served by the calling thread
+         *
+         * @param method
+         *            the endpoint method
+         * @param status
+         *            the response status code
+         * @param duration
+         *            the request duration, in ns
+         * @param deviceId
+         *            the device, null if none
+         * @param command
+         *            the command, null if none
+         * @param payloadType
+         *            the command payload type, null if none
+         * @param phases
+         *            the duration of each phase, in ns
+         */
+        public SlowRequest(String method, int status, long duration,
+                String deviceId, String command, String payloadType,
+                Map<String, Long> phases)
+        {
+            this.time = System.currentTimeMillis();
+            this.method = method;
+            this.status = status;
+            this.duration = duration;
+            this.thread = Thread.currentThread().getName();
+            this.deviceId = deviceId;
+            this.command = command;
+            this.payloadType = payloadType;
+            this.phases = phases;
+        }
+
+        /**
+         * Writes the request details as a JSON object
+         *
+         * @param generator
+         *            the {@link JsonGenerator} to write on
+         * @throws IOException
+         */
+        void write(JsonGenerator generator) throws IOException
+        {
+            generator.writeStartObject();
+            generator.writeNumberField("time", this.time);
+            generator.writeStringField("method", this.method);
+            generator.writeNumberField("status", this.status);
+            generator.writeNumberField("duration", this.duration / 1000000.0);
+            generator.writeStringField("thread", this.thread);
+            if (this.deviceId != null)
+                generator.writeStringField("deviceId", this.deviceId);
+            if (this.command != null)
+                generator.writeStringField("command", this.command);
+            if (this.payloadType != null)
+                generator.writeStringField("payloadType", this.payloadType);
+            if (!this.phases.isEmpty())
+            {
+                generator.writeObjectFieldStart("phases");
+                for (Map.Entry<String, Long> phase : this.phases.entrySet())
+                    generator.writeNumberField(phase.getKey(),
+                            phase.getValue() / 1000000.0);
+                generator.writeEndObject();
+            }
+            generator.writeEndObject();
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString()
+        {
+            StringBuilder description = new StringBuilder();
+            description.append(this.method).append(" took ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(this.duration))
+                    .append(" ms (status ").append(this.status)
+                    .append(", thread ").append(this.thread);
+            if (this.deviceId != null)
+                description.append(", device ").append(this.deviceId);
+            if (this.command != null)
+                description.append(", command ").append(this.command);
+            if (this.payloadType != null)
+                description.append(", payload ").append(this.payloadType);
+            for (Map.Entry<String, Long> phase : this.phases.entrySet())
+                description.append(", ").append(phase.getKey()).append(' ')
+                        .append(TimeUnit.NANOSECONDS.toMillis(phase.getValue()))
+                        .append(" ms");
+            description.append(')');
+
+            return description.toString();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.service.log.LogService;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import it.polito.elite.dog.core.devicefactory.api.DeviceFactory;
+import it.polito.elite.dog.core.library.model.DeviceDescriptor;
+import it.polito.elite.dog.core.library.util.LogHelper;
+
+/**
+ * Defers the persistence of device descriptor changes: changed descriptors
+ * are queued, at most once per device however many times they change, and
+ * periodically flushed to the {@link DeviceFactory}, so that a burst of
+ * metadata updates costs one configuration update per device instead of one
+ * per request.
+ *
+ * Descriptors whose update fails are kept queued and retried at the next
+ * flush; the failure is remembered until a flush of the device succeeds, so
+ * that it can be reported to the clients reading the queue status and to the
+ * next client updating the device.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class DescriptorWriteBehind
+{
+    // the descriptors waiting to be persisted, by device id, in change order
+    private final LinkedHashMap<String, DeviceDescriptor> pending;
+
+    // the devices whose last flush failed
+    private final Set<String> failed;
+
+    // the device factory persisting the descriptors
+    private final AtomicReference<DeviceFactory> deviceFactory;
+
+    // the logger
+    private final LogHelper logger;
+
+    // serializes the flushes
+    private final Object flushLock;
+
+    /**
+     * Creates a new, empty, write-behind queue
+     *
+     * @param deviceFactory
+     *            the reference to the {@link DeviceFactory} to flush to
+     * @param logger
+     *            the logger for flush failures
+     */
+    public DescriptorWriteBehind(AtomicReference<DeviceFactory> deviceFactory,
+            LogHelper logger)
+    {
+        this.pending = new LinkedHashMap<String, DeviceDescriptor>();
+        this.failed = new HashSet<String>();
+        this.deviceFactory = deviceFactory;
+        this.logger = logger;
+        this.flushLock = new Object();
+    }
+
+    /**
+     * Queues a changed descriptor, to be persisted at the next flush
+     *
+     * @param descriptor
+     *            the changed {@link DeviceDescriptor}
+     */
+    public synchronized void enqueue(DeviceDescriptor descriptor)
+    {
+        this.pending.put(descriptor.getDeviceURI(), descriptor);
+    }
+
+    /**
+     * @param deviceId
+     *            the device unique identifier
+     * @return true if the last flush of the given device failed
+     */
+    public synchronized boolean hasFailed(String deviceId)
+    {
+        return this.failed.contains(deviceId);
+    }
+
+    /**
+     * @return the number of descriptors waiting to be persisted
+     */
+    public synchronized int size()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * @return the ids of the devices whose descriptor is waiting to be
+     *         persisted, in change order
+     */
+    public synchronized List<String> getPendingIds()
+    {
+        return new ArrayList<String>(this.pending.keySet());
+    }
+
+    /**
+     * Writes the devices waiting to be persisted and the ones whose last
+     * flush failed, as fields of the current JSON object
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write to
+     * @throws IOException
+     *             if the status cannot be written
+     */
+    public void writeStatus(JsonGenerator generator) throws IOException
+    {
+        List<String> pendingIds;
+        List<String> failedIds;
+        synchronized (this)
+        {
+            pendingIds = new ArrayList<String>(this.pending.keySet());
+            failedIds = new ArrayList<String>(this.failed);
+        }
+
+        generator.writeArrayFieldStart("pending");
+        for (String deviceId : pendingIds)
+            generator.writeString(deviceId);
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("failed");
+        for (String deviceId : failedIds)
+            generator.writeString(deviceId);
+        generator.writeEndArray();
+    }
+
+    /**
+     * Persists all the queued descriptors; the ones that could not be
+     * persisted are queued again
+     *
+     * @return the number of descriptors persisted
+     */
+    public int flush()
+    {
+        synchronized (this.flushLock)
+        {
+            List<DeviceDescriptor> descriptors;
+            synchronized (this)
+            {
+                descriptors = new ArrayList<DeviceDescriptor>(
+                        this.pending.values());
+                this.pending.clear();
+            }
+
+            int persisted = 0;
+            for (DeviceDescriptor descriptor : descriptors)
+            {
+                if (this.persist(descriptor))
+                    persisted++;
+            }
+
+            return persisted;
+        }
+    }
+
+    /**
+     * Persists the queued descriptor of the given device, if any, on the
+     * calling thread
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @return true if the descriptor was persisted, or nothing was queued
+     */
+    public boolean flush(String deviceId)
+    {
+        synchronized (this.flushLock)
+        {
+            DeviceDescriptor descriptor;
+            synchronized (this)
+            {
+                descriptor = this.pending.remove(deviceId);
+            }
+
+            return (descriptor == null) || (this.persist(descriptor));
+        }
+    }
+
+    /**
+     * Persists a descriptor, queueing it again on failure
+     *
+     * @param descriptor
+     *            the {@link DeviceDescriptor} to persist
+     * @return true if the descriptor was persisted
+     */
+    private boolean persist(DeviceDescriptor descriptor)
+    {
+        String deviceId = descriptor.getDeviceURI();
+
+        try
+        {
+            DeviceFactory currentDeviceFactory = this.deviceFactory.get();
+            if (currentDeviceFactory == null)
+                throw new IllegalStateException(
+                        "The Device Factory is not available");
+
+            currentDeviceFactory.updateDevice(descriptor);
+
+            synchronized (this)
+            {
+                this.failed.remove(deviceId);
+            }
+
+            return true;
+        }
+        catch (Exception e)
+        {
+            this.logger.log(LogService.LOG_ERROR,
+                    "Error in persisting the update of device " + deviceId,
+                    e);
+
+            // retry at the next flush, unless changed again meanwhile
+            synchronized (this)
+            {
+                if (!this.pending.containsKey(deviceId))
+                    this.pending.put(deviceId, descriptor);
+                this.failed.add(deviceId);
+            }
+
+            return false;
+        }
+    }
+}
@@ -1,95 +0,0 @@
-/*
- * Dog - Device Rest Endpoint
- * 
- * Copyright (c) 2013-2014 Dario Bonino and Luigi De Russis
- * 
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License
- */
-package it.polito.elite.dog.communication.rest.device.status;
-
-import java.util.HashMap;
-import java.util.Map;
-
-/**
- * 
- * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
- * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
- * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
- * 
- */
-public class DeviceStateResponsePayload
-{
-	private String id;
-	private boolean active;
-	private Map<String,Object> status;
-
-	/**
-	 * 
-	 */
-	public DeviceStateResponsePayload()
-	{
-		//create the status map
-		this.status = new HashMap<String, Object>();
-	}
-
-	/**
-	 * @return the id
-	 */
-	public String getId()
-	{
-		return id;
-	}
-
-	/**
-	 * @param id
-	 *            the id to set
-	 */
-	public void setId(String id)
-	{
-		this.id = id;
-	}
-
-	/**
-	 * @return the active
-	 */
-	public boolean isActive()
-	{
-		return active;
-	}
-
-	/**
-	 * @param active
-	 *            the active to set
-	 */
-	public void setActive(boolean active)
-	{
-		this.active = active;
-	}
-
-	/**
-	 * @return the status
-	 */
-	public Map<String, Object> getStatus()
-	{
-		return status;
-	}
-
-	/**
-	 * @param status
-	 *            the status to set
-	 */
-	public void setStatus(Map<String, Object> status)
-	{
-		this.status = status;
-	}
-}
@@ -0,0 +1,389 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.status;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.measure.Measure;
+import javax.measure.unit.Unit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import it.polito.elite.dog.core.library.model.state.State;
+import it.polito.elite.dog.core.library.model.statevalue.StateValue;
+
+/**
+ * Streams the status of a device directly on a Jackson {@link JsonGenerator},
+ * producing the same JSON structure previously obtained by serializing the
+ * device states collected in maps, null features included, without building
+ * any intermediate map or array.
+ *
+ * Feature keys are classified once per {@link StateValue} class and stored,
+ * pre-encoded, in a shared cache; state names are cached per {@link State}
+ * class. Measure-valued features can either be rendered as strings, e.g.,
+ * "21.5 W", or as a raw numeric value followed by a separate unit field,
+ * whose text is formatted once per {@link Unit} instance. The instance is
+ * thread-safe and meant to be shared by all requests.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class DeviceStatusWriter
+{
+    // the pre-encoded field names of the device status
+    public static final SerializedString DEVICES_STATUS = new SerializedString(
+            "devicesStatus");
+    private static final SerializedString ID = new SerializedString("id");
+    private static final SerializedString ACTIVE = new SerializedString(
+            "active");
+    private static final SerializedString STATUS = new SerializedString(
+            "status");
+    private static final SerializedString VALUE = new SerializedString(
+            "value");
+    private static final SerializedString UNIT = new SerializedString("unit");
+
+    // the feature key classification, per state value class
+    private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, SerializedString>> featureNames;
+
+    // the state names, per state class
+    private final ConcurrentHashMap<Class<?>, SerializedString> stateNames;
+
+    // the formatted (and interned) unit names, per unit instance
+    private final ConcurrentHashMap<Unit<?>, SerializedString> unitNames;
+
+    /**
+     * Creates a new writer with empty classification caches
+     */
+    public DeviceStatusWriter()
+    {
+        this.featureNames = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, SerializedString>>();
+        this.stateNames = new ConcurrentHashMap<Class<?>, SerializedString>();
+        this.unitNames = new ConcurrentHashMap<Unit<?>, SerializedString>();
+    }
+
+    /**
+     * Writes the JSON object representing the status of a single device.
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param deviceId
+     *            the device unique identifier
+     * @param active
+     *            the device activation status
+     * @param allStates
+     *            the current device states, may be null
+     * @param numericMeasures
+     *            true to write measures as a numeric value and a separate
+     *            unit, false to write them as strings
+     * @throws IOException
+     */
+    public void writeDeviceStatus(JsonGenerator generator, String deviceId,
+            boolean active, Map<String, State> allStates,
+            boolean numericMeasures) throws IOException
+    {
+        generator.writeStartObject();
+
+        // the id is omitted when not available, as for non-null inclusion
+        if (deviceId != null)
+        {
+            generator.writeFieldName(ID);
+            generator.writeString(deviceId);
+        }
+
+        generator.writeFieldName(ACTIVE);
+        generator.writeBoolean(active);
+
+        generator.writeFieldName(STATUS);
+        generator.writeStartObject();
+
+        // check if the device state is available, i.e., not null
+        if (allStates != null)
+        {
+            // iterate over all states
+            for (State currentState : allStates.values())
+            {
+                generator.writeFieldName(this.getStateName(currentState));
+                this.writeStateValues(generator,
+                        currentState.getCurrentStateValue(), numericMeasures);
+            }
+        }
+
+        // close the status and the device objects
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes the JSON array representing the values of a single state.
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param currentStateValues
+     *            the state values to write
+     * @param numericMeasures
+     *            true to write measures as a numeric value and a separate
+     *            unit
+     * @throws IOException
+     */
+    private void writeStateValues(JsonGenerator generator,
+            StateValue[] currentStateValues, boolean numericMeasures)
+            throws IOException
+    {
+        generator.writeStartArray();
+
+        for (int j = 0; j < currentStateValues.length; j++)
+        {
+            // get the key classification for the state value class
+            ConcurrentHashMap<String, SerializedString> names = this
+                    .getFeatureNames(currentStateValues[j].getClass());
+
+            // only one value feature is written for each state value: as
+            // when the features were collected in a map, the last one wins
+            Object stateValue = null;
+            boolean hasValue = false;
+
+            generator.writeStartObject();
+
+            // iterate over the features
+            for (Entry<String, Object> feature : currentStateValues[j]
+                    .getFeatures().entrySet())
+            {
+                Object value = feature.getValue();
+                SerializedString name = this.getFeatureName(names,
+                        feature.getKey());
+
+                if (name == VALUE)
+                {
+                    stateValue = value;
+                    hasValue = true;
+                }
+
+                // empty strings are never written, null values are written
+                // as null
+                else if ((!(value instanceof String))
+                        || (!((String) value).isEmpty()))
+                {
+                    generator.writeFieldName(name);
+                    this.writeScalar(generator, value);
+                }
+            }
+
+            // check the "value" feature and, if it is an instance of
+            // measure, serialize it as a String or as a number and a unit
+            if (stateValue instanceof Measure<?, ?>)
+                this.writeMeasure(generator, (Measure<?, ?>) stateValue,
+                        numericMeasures);
+            else if (hasValue)
+            {
+                generator.writeFieldName(VALUE);
+                this.writeScalar(generator, stateValue);
+            }
+
+            generator.writeEndObject();
+        }
+
+        generator.writeEndArray();
+    }
+
+    /**
+     * Writes the value of a {@link Measure}, either as a single string field
+     * or as a numeric value field followed by a unit field. Measures whose
+     * value is not a number are always written as strings.
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param measure
+     *            the measure to write
+     * @param numericMeasures
+     *            true to write the measure as a numeric value and a unit
+     * @throws IOException
+     */
+    private void writeMeasure(JsonGenerator generator, Measure<?, ?> measure,
+            boolean numericMeasures) throws IOException
+    {
+        Object value = measure.getValue();
+
+        generator.writeFieldName(VALUE);
+
+        if ((!numericMeasures) || (!(value instanceof Number)))
+        {
+            generator.writeString(measure.toString());
+        }
+        else
+        {
+            // write the raw number, with no intermediate formatting
+            this.writeNumber(generator, (Number) value);
+
+            generator.writeFieldName(UNIT);
+            generator.writeString(this.getUnitName(measure.getUnit()));
+        }
+    }
+
+    /**
+     * Writes a feature value: null, strings, numbers and booleans are written
+     * directly, any other value is handed to the generator codec
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param value
+     *            the value to write, may be null
+     * @throws IOException
+     */
+    private void writeScalar(JsonGenerator generator, Object value)
+            throws IOException
+    {
+        if (value == null)
+            generator.writeNull();
+        else if (value instanceof String)
+            generator.writeString((String) value);
+        else if (value instanceof Number)
+            this.writeNumber(generator, (Number) value);
+        else if (value instanceof Boolean)
+            generator.writeBoolean((Boolean) value);
+        else
+            generator.writeObject(value);
+    }
+
+    /**
+     * Writes a number, with no intermediate formatting
+     *
+     * @param generator
+     *            the {@link JsonGenerator} to write on
+     * @param value
+     *            the number to write
+     * @throws IOException
+     */
+    private void writeNumber(JsonGenerator generator, Number value)
+            throws IOException
+    {
+        if (value instanceof BigDecimal)
+            generator.writeNumber((BigDecimal) value);
+        else if (value instanceof BigInteger)
+            generator.writeNumber((BigInteger) value);
+        else if ((value instanceof Long) || (value instanceof Integer)
+                || (value instanceof Short) || (value instanceof Byte))
+            generator.writeNumber(value.longValue());
+        else if (value instanceof Float)
+            generator.writeNumber(value.floatValue());
+        else if (value instanceof Double)
+            generator.writeNumber(value.doubleValue());
+        else
+            generator.writeObject(value);
+    }
+
+    /**
+     * Gets the (cached) textual representation of the given unit
+     *
+     * @param unit
+     *            the unit
+     * @return the pre-encoded unit name
+     */
+    private SerializedString getUnitName(Unit<?> unit)
+    {
+        SerializedString name = this.unitNames.get(unit);
+
+        if (name == null)
+        {
+            name = new SerializedString(unit.toString().intern());
+            this.unitNames.putIfAbsent(unit, name);
+        }
+
+        return name;
+    }
+
+    /**
+     * Gets the (cached) feature key classification for the given state value
+     * class
+     *
+     * @param stateValueClass
+     *            the state value class
+     * @return the map associating feature keys to output field names
+     */
+    private ConcurrentHashMap<String, SerializedString> getFeatureNames(
+            Class<?> stateValueClass)
+    {
+        ConcurrentHashMap<String, SerializedString> names = this.featureNames
+                .get(stateValueClass);
+
+        if (names == null)
+        {
+            ConcurrentHashMap<String, SerializedString> newNames = new ConcurrentHashMap<String, SerializedString>();
+            names = this.featureNames.putIfAbsent(stateValueClass, newNames);
+            if (names == null)
+                names = newNames;
+        }
+
+        return names;
+    }
+
+    /**
+     * Gets the output field name for the given feature key: every key
+     * containing "Value" is rendered as "value", any other key is rendered as
+     * is.
+     *
+     * @param names
+     *            the feature key classification of the state value class
+     * @param featureKey
+     *            the feature key
+     * @return the pre-encoded output field name
+     */
+    private SerializedString getFeatureName(
+            ConcurrentHashMap<String, SerializedString> names,
+            String featureKey)
+    {
+        SerializedString name = names.get(featureKey);
+
+        if (name == null)
+        {
+            name = featureKey.contains("Value") ? VALUE
+                    : new SerializedString(featureKey);
+            names.putIfAbsent(featureKey, name);
+        }
+
+        return name;
+    }
+
+    /**
+     * Gets the (cached) name of the given state, i.e., the simple name of its
+     * class
+     *
+     * @param state
+     *            the state
+     * @return the pre-encoded state name
+     */
+    private SerializedString getStateName(State state)
+    {
+        SerializedString name = this.stateNames.get(state.getClass());
+
+        if (name == null)
+        {
+            name = new SerializedString(state.getClass().getSimpleName());
+            this.stateNames.putIfAbsent(state.getClass(), name);
+        }
+
+        return name;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed, read-only access to the component properties received upon
+ * activation, i.e., the defaults declared in the component description
+ * possibly overridden through the Configuration Admin service. Values can
+ * either be typed (e.g., Integer) or plain strings; malformed values fall
+ * back to the given default.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class ComponentConfiguration
+{
+    // the component properties
+    private final Map<String, ?> properties;
+
+    /**
+     * Creates a configuration wrapping the given component properties
+     *
+     * @param properties
+     *            the component properties, may be null
+     */
+    public ComponentConfiguration(Map<String, ?> properties)
+    {
+        if (properties != null)
+            this.properties = properties;
+        else
+            this.properties = Collections.<String, Object> emptyMap();
+    }
+
+    /**
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing or malformed
+     * @return the property value as an int
+     */
+    public int getInt(String key, int defaultValue)
+    {
+        return (int) this.getLong(key, defaultValue);
+    }
+
+    /**
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing or malformed
+     * @return the property value as a long
+     */
+    public long getLong(String key, long defaultValue)
+    {
+        Object value = this.properties.get(key);
+
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+
+        if (value != null)
+        {
+            try
+            {
+                return Long.parseLong(value.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // fall back to the default value
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing
+     * @return the property value as a boolean
+     */
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        Object value = this.properties.get(key);
+
+        if (value instanceof Boolean)
+            return (Boolean) value;
+
+        if (value != null)
+            return Boolean.parseBoolean(value.toString().trim());
+
+        return defaultValue;
+    }
+
+    /**
+     * @param key
+     *            the property name
+     * @param defaultValue
+     *            the value to use if the property is missing
+     * @return the property value as a String
+     */
+    public String getString(String key, String defaultValue)
+    {
+        Object value = this.properties.get(key);
+
+        return (value != null) ? value.toString().trim() : defaultValue;
+    }
+
+    /**
+     * Gets all the long-valued properties whose name starts with the given
+     * prefix, indexed by the remainder of their name, e.g., with the prefix
+     * "ttl.", the property "ttl.ZWave" is returned with the key "ZWave".
+     *
+     * @param prefix
+     *            the property name prefix
+     * @return the matching properties, possibly empty
+     */
+    public Map<String, Long> getLongsByPrefix(String prefix)
+    {
+        Map<String, Long> values = new HashMap<String, Long>();
+
+        for (String key : this.properties.keySet())
+        {
+            if ((key.startsWith(prefix)) && (key.length() > prefix.length()))
+            {
+                long value = this.getLong(key, Long.MIN_VALUE);
+
+                if (value != Long.MIN_VALUE)
+                    values.put(key.substring(prefix.length()), value);
+            }
+        }
+
+        return values;
+    }
+}
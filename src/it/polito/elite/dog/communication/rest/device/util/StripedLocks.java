@@ -0,0 +1,70 @@
+/*
+ * Dog - Device Rest Endpoint
+ *
+ * Copyright (c) 2013-2014 Dario Bonino, Luigi De Russis and Teodoro Montanaro
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package it.polito.elite.dog.communication.rest.device.util;
+
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks shared by all the devices, each device id being
+ * mapped to always the same lock: operations on the same device are
+ * serialized, while operations on different devices only contend when their
+ * ids map to the same stripe. The memory used does not depend on the number
+ * of devices.
+ *
+ * @author <a href="mailto:dario.bonino@polito.it">Dario Bonino</a>
+ * @author <a href="mailto:luigi.derussis@polito.it">Luigi De Russis</a>
+ * @see <a href="http://elite.polito.it">http://elite.polito.it</a>
+ *
+ */
+public class StripedLocks
+{
+    // the locks
+    private final ReentrantLock[] locks;
+
+    /**
+     * Creates a new set of locks
+     *
+     * @param stripes
+     *            the minimum number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int stripes)
+    {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++)
+            this.locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * Gets the lock of the given device, ignoring the id case
+     *
+     * @param deviceId
+     *            the device unique identifier
+     * @return the corresponding lock
+     */
+    public ReentrantLock get(String deviceId)
+    {
+        int hash = deviceId.toLowerCase(Locale.ENGLISH).hashCode();
+
+        // spread the higher bits, as HashMap does
+        hash ^= (hash >>> 16);
+
+        return this.locks[hash & (this.locks.length - 1)];
+    }
+}